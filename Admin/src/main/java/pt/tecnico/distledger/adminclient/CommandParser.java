@@ -1,8 +1,12 @@
 package pt.tecnico.distledger.adminclient;
 
 import pt.tecnico.distledger.adminclient.grpc.AdminService;
-import pt.ulisboa.tecnico.distledger.contract.admin.AdminDistLedger.getLedgerStateResponse;
+import pt.ulisboa.tecnico.distledger.contract.DistLedgerCommonDefinitions.Operation;
+import pt.ulisboa.tecnico.distledger.contract.admin.AdminDistLedger.MetricSample;
 
+import com.google.protobuf.TextFormat;
+
+import java.util.Map;
 import java.util.Scanner;
 import pt.tecnico.distledger.utils.Logger;
 
@@ -13,6 +17,7 @@ public class CommandParser {
     private static final String DEACTIVATE = "deactivate";
     private static final String GET_LEDGER_STATE = "getLedgerState";
     private static final String GOSSIP = "gossip";
+    private static final String GET_METRICS = "getMetrics";
     private static final String HELP = "help";
     private static final String EXIT = "exit";
 
@@ -47,6 +52,10 @@ public class CommandParser {
                     this.gossip(line);
                     break;
 
+                case GET_METRICS:
+                    this.getMetrics(line);
+                    break;
+
                 case HELP:
                     this.printUsage();
                     break;
@@ -106,23 +115,53 @@ public class CommandParser {
     private void dump(String line){
         String[] split = line.split(SPACE);
 
-        if (split.length != 2){
+        if (split.length != 2 && split.length != 3){
             this.printUsage();
             return;
         }
         String server = split[1];
+        long fromIndex;
+        try {
+            fromIndex = split.length == 3 ? Long.parseLong(split[2]) : 0;
+        } catch (NumberFormatException e) {
+            this.printUsage();
+            return;
+        }
 
-        Logger.log("Getting ledger state from server " + server);
+        Logger.log("Getting ledger state from server " + server + " from index " + fromIndex);
 
+        // the ledger is printed chunk by chunk as it arrives, in the same format as a single response
+        boolean[] started = {false};
         try {
-            getLedgerStateResponse response = adminService.dump(server);
-            System.out.println("OK");
-            System.out.println(response);
+            adminService.streamLedgerState(server, fromIndex, chunk -> {
+                if (!started[0]) {
+                    started[0] = true;
+                    System.out.println("OK");
+                    System.out.println("ledgerState {");
+                }
+                for (Operation op : chunk.getLedgerList()) {
+                    System.out.print(formatOperation(op));
+                }
+                Logger.log("Received chunk, next index is " + chunk.getNextIndex());
+            });
+            if (!started[0]) {
+                System.out.println("OK");
+                System.out.println("ledgerState {");
+            }
+            System.out.println("}\n");
         } catch (Exception e) {
             System.err.println("Error: " + e.getMessage());
         }
     }
 
+    private static String formatOperation(Operation op) {
+        StringBuilder builder = new StringBuilder("  ledger {\n");
+        for (String field : TextFormat.printer().printToString(op).split("\n")) {
+            builder.append("    ").append(field).append('\n');
+        }
+        return builder.append("  }\n").toString();
+    }
+
     private void gossip(String line){
         String[] split = line.split(SPACE);
 
@@ -143,12 +182,57 @@ public class CommandParser {
         }
     }
 
+    private void getMetrics(String line){
+        String[] split = line.split(SPACE);
+
+        if (split.length != 2){
+            this.printUsage();
+            return;
+        }
+        String server = split[1];
+
+        Logger.log("Getting metrics from server " + server);
+
+        try {
+            StringBuilder output = new StringBuilder("OK\n");
+            for (MetricSample sample : adminService.getMetrics(server).getSamplesList()) {
+                output.append(formatSample(sample)).append('\n');
+            }
+            System.out.println(output);
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+    }
+
+    // same format as the metrics endpoint of the server, e.g. distledger_ledger_operations 42
+    private static String formatSample(MetricSample sample) {
+        StringBuilder builder = new StringBuilder(sample.getName());
+        if (sample.getLabelsCount() > 0) {
+            builder.append('{');
+            String separator = "";
+            for (Map.Entry<String, String> label : sample.getLabelsMap().entrySet()) {
+                builder.append(separator).append(label.getKey()).append("=\"").append(label.getValue()).append('"');
+                separator = ",";
+            }
+            builder.append('}');
+        }
+        double value = sample.getValue();
+        builder.append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            builder.append((long) value);
+        } else {
+            builder.append(value);
+        }
+        return builder.toString();
+    }
+
     private void printUsage() {
         System.out.println("Usage:\n" +
                 "- activate <server>\n" +
                 "- deactivate <server>\n" +
-                "- getLedgerState <server>\n" +
+                "- getLedgerState <server> [fromIndex]\n" +
                 "- gossip <server>\n" +
+                "- getMetrics <server>\n" +
                 "- exit\n");
     }
 
@@ -7,7 +7,9 @@ import pt.ulisboa.tecnico.distledger.contract.admin.AdminDistLedger.*;
 import pt.ulisboa.tecnico.distledger.contract.namingserver.NamingServerDistLedger.*;
 
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.function.Consumer;
 
 public class AdminService implements AutoCloseable {
 
@@ -70,6 +72,31 @@ public class AdminService implements AutoCloseable {
         }
     }
 
+    // hands every chunk to the consumer as it arrives; if the stream breaks, it is opened
+    // again from the last chunk received instead of starting over
+    public void streamLedgerState(String server, long fromIndex, Consumer<LedgerStateChunk> consumer) {
+        long[] next = {fromIndex};
+        Consumer<LedgerStateChunk> tracker = chunk -> {
+            next[0] = chunk.getNextIndex();
+            consumer.accept(chunk);
+        };
+        try {
+            cacheStub(server);
+            readLedgerChunks(server, next[0], tracker);
+        } catch (Exception e) {
+            invalidateAndCacheStub(server);
+            readLedgerChunks(server, next[0], tracker);
+        }
+    }
+
+    private void readLedgerChunks(String server, long fromIndex, Consumer<LedgerStateChunk> consumer) {
+        Iterator<LedgerStateChunk> chunks = this.serverStubs.get(server)
+                .streamLedgerState(streamLedgerStateRequest.newBuilder().setFromIndex(fromIndex).build());
+        while (chunks.hasNext()) {
+            consumer.accept(chunks.next());
+        }
+    }
+
     public void gossip(String server) {
         try {
             cacheStub(server);
@@ -80,6 +107,16 @@ public class AdminService implements AutoCloseable {
         }
     }
 
+    public getMetricsResponse getMetrics(String server) {
+        try {
+            cacheStub(server);
+            return this.serverStubs.get(server).getMetrics(getMetricsRequest.getDefaultInstance());
+        } catch (Exception e) {
+            invalidateAndCacheStub(server);
+            return this.serverStubs.get(server).getMetrics(getMetricsRequest.getDefaultInstance());
+        }
+    }
+
     @Override
     public void close() {
         this.serverChannels.forEach((k, v) -> v.shutdownNow());
@@ -0,0 +1,33 @@
+package pt.tecnico.distledger.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Runs the benchmarks once for each thread count in -Dthreads (1 by default), with the GC
+// profiler for the allocation rate. The results of each thread count go to
+// <results>-<threads>t.json so a later run can be compared with them. The arguments are the
+// usual JMH ones, e.g. a benchmark name pattern or -p accounts=1000.
+public class BenchmarkRunner {
+    private static final String DEFAULT_THREADS = "1";
+    private static final String DEFAULT_RESULTS = "jmh-results";
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        String results = System.getProperty("results", DEFAULT_RESULTS);
+        for (String threads : System.getProperty("threads", DEFAULT_THREADS).split(",")) {
+            ChainedOptionsBuilder options = new OptionsBuilder()
+                    .parent(commandLine)
+                    .threads(Integer.parseInt(threads.trim()))
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(results + "-" + threads.trim() + "t.json");
+            new Runner(options.build()).run();
+        }
+    }
+}
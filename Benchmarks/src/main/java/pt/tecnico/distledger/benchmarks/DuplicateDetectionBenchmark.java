@@ -0,0 +1,97 @@
+package pt.tecnico.distledger.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import pt.tecnico.distledger.server.domain.SeenOperations;
+import pt.tecnico.distledger.server.domain.operation.Operation;
+import pt.tecnico.distledger.utils.VectorClock;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Telling received operations from new ones, SeenOperations replaced the set of the TS of
+// every operation. The register benchmarks record a stream of operations from scratch, so the
+// GC profiler shows what each one costs in memory; the lookups are the check done for every
+// operation a peer sends, against the given number of operations already received.
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DuplicateDetectionBenchmark {
+    private static final int OUT_OF_ORDER = 16;
+    // operations recorded per invocation of the register benchmarks
+    private static final int REGISTERED = 10000;
+
+    @Param({"3", "9"})
+    public int replicas;
+
+    @Param({"10000", "100000"})
+    public int operations;
+
+    private List<Operation> received;
+    private List<Operation> fresh;
+    private Set<VectorClock> set;
+    private SeenOperations seen;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        List<Operation> stream = Workloads.interleavedOperations(replicas, 2 * operations, OUT_OF_ORDER);
+        received = stream.subList(0, operations);
+        fresh = stream.subList(operations, 2 * operations);
+        set = ConcurrentHashMap.newKeySet();
+        seen = new SeenOperations(replicas);
+        for (Operation op : received) {
+            set.add(op.getTS());
+            seen.add(op);
+        }
+    }
+
+    private int nextIndex() {
+        next = next + 1 == operations ? 0 : next + 1;
+        return next;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REGISTERED)
+    public Set<VectorClock> registerSet() {
+        Set<VectorClock> registered = ConcurrentHashMap.newKeySet();
+        for (Operation op : received.subList(0, REGISTERED)) {
+            registered.add(op.getTS());
+        }
+        return registered;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REGISTERED)
+    public SeenOperations registerSeen() {
+        SeenOperations registered = new SeenOperations(replicas);
+        for (Operation op : received.subList(0, REGISTERED)) {
+            registered.add(op);
+        }
+        return registered;
+    }
+
+    @Benchmark
+    public boolean duplicateSet() {
+        return set.contains(received.get(nextIndex()).getTS());
+    }
+
+    @Benchmark
+    public boolean duplicateSeen() {
+        return seen.contains(received.get(nextIndex()));
+    }
+
+    @Benchmark
+    public boolean freshSet() {
+        return set.contains(fresh.get(nextIndex()).getTS());
+    }
+
+    @Benchmark
+    public boolean freshSeen() {
+        return seen.contains(fresh.get(nextIndex()));
+    }
+}
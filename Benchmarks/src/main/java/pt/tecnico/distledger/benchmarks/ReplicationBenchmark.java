@@ -0,0 +1,65 @@
+package pt.tecnico.distledger.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import pt.tecnico.distledger.server.domain.ServerState;
+import pt.tecnico.distledger.server.domain.operation.Operation;
+import pt.tecnico.distledger.utils.VectorClock;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Receiving and sending state between replicas while the ledger grows
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReplicationBenchmark {
+    private static final int BATCH_SIZE = 100;
+    private static final String PEER = "peer";
+
+    // operations already in the ledger when an iteration starts
+    @Param({"1000", "100000"})
+    public int ledgerLength;
+
+    @Param({"3", "9"})
+    public int replicas;
+
+    private ServerState state;
+    private int received;
+
+    // the receiving side is rebuilt every iteration so its ledger length stays close to ledgerLength
+    @Setup(Level.Iteration)
+    public void setUp() {
+        state = new ServerState(Workloads.REPLICA_ID, replicas);
+        state.propagateState(Workloads.peerOperations(state.getAccountNames(), replicas, 0, ledgerLength),
+                VectorClock.zero(replicas).with(Workloads.PEER_ID, ledgerLength));
+        received = ledgerLength;
+        // the peer acknowledged half of the ledger
+        state.updatePeerTS(PEER, VectorClock.zero(replicas).with(Workloads.PEER_ID, ledgerLength / 2));
+    }
+
+    // a batch of new operations from a peer, including building them
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void propagateState() {
+        List<Operation> batch = Workloads.peerOperations(state.getAccountNames(), replicas, received, BATCH_SIZE);
+        received += BATCH_SIZE;
+        state.propagateState(batch, VectorClock.zero(replicas).with(Workloads.PEER_ID, received));
+    }
+
+    // a gossip round resending a batch the replica already has, only the duplicate checks run
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void propagateDuplicates() {
+        state.propagateState(Workloads.peerOperations(state.getAccountNames(), replicas, 0, BATCH_SIZE),
+                VectorClock.zero(replicas).with(Workloads.PEER_ID, BATCH_SIZE));
+    }
+
+    // what a gossip round collects for a peer that is missing half of the ledger
+    @Benchmark
+    public List<Operation> getOperationsMissingFrom() {
+        return state.getOperationsMissingFrom(PEER);
+    }
+}
@@ -0,0 +1,42 @@
+package pt.tecnico.distledger.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import pt.tecnico.distledger.server.Serializer;
+import pt.tecnico.distledger.server.domain.AccountNames;
+import pt.tecnico.distledger.server.domain.operation.Operation;
+import pt.ulisboa.tecnico.distledger.contract.DistLedgerCommonDefinitions;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Turning ledger operations into their protobuf form, as every gossip does: accounts are sent
+// as ids with the name of each id once per message
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SerializerBenchmark {
+
+    @Param({"100", "10000"})
+    public int ledgerLength;
+
+    @Param({"3", "9"})
+    public int replicas;
+
+    private AccountNames names;
+    private List<Operation> ledger;
+
+    @Setup
+    public void setUp() {
+        names = new AccountNames();
+        ledger = Workloads.peerOperations(names, replicas, 0, ledgerLength);
+    }
+
+    @Benchmark
+    public List<DistLedgerCommonDefinitions.Operation> serializeOperations() {
+        return new Serializer(names, new BitSet()).serializeOperations(ledger);
+    }
+}
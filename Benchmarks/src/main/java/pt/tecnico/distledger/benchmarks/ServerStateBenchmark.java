@@ -0,0 +1,83 @@
+package pt.tecnico.distledger.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import pt.tecnico.distledger.server.domain.ServerState;
+import pt.tecnico.distledger.utils.VectorClock;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// User operations on a replica with a growing number of accounts. Run with -t to add
+// threads, they all share the same replica.
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ServerStateBenchmark {
+
+    @Param({"1000", "100000"})
+    public int accounts;
+
+    @Param({"3"})
+    public int replicas;
+
+    private ServerState state;
+    private String[] names;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        names = Workloads.accountNames(accounts);
+        state = Workloads.stateWithAccounts(replicas, names);
+    }
+
+    // The transfers append to the ledger and nobody acknowledges them, so the ledger would
+    // grow for the whole run. Pretending every peer has caught up lets it be collected.
+    @TearDown(Level.Iteration)
+    public void collectLedger() {
+        VectorClock TS = state.getReplicaTS();
+        for (int peer = 1; peer < replicas; peer++) {
+            state.updatePeerTS("peer-" + peer, TS);
+        }
+        state.collectStableOperations();
+    }
+
+    // Each thread owns one unit of money that it keeps passing to a random account, so its
+    // transfers never fail for lack of funds, whatever the other threads do.
+    @State(Scope.Thread)
+    public static class Token {
+        int holder;
+
+        @Setup(Level.Trial)
+        public void setUp(ServerStateBenchmark benchmark) {
+            holder = ThreadLocalRandom.current().nextInt(benchmark.accounts);
+            benchmark.state.transferTo(Workloads.BROKER, benchmark.names[holder], 1,
+                    benchmark.state.getReplicaTS());
+        }
+    }
+
+    @Benchmark
+    public void transferTo(Token token) {
+        int to = ThreadLocalRandom.current().nextInt(accounts);
+        state.transferTo(names[token.holder], names[to], 1, VectorClock.empty());
+        token.holder = to;
+    }
+
+    @Benchmark
+    public long getAccountBalance() {
+        return state.getAccountBalance(names[ThreadLocalRandom.current().nextInt(accounts)], VectorClock.empty());
+    }
+
+    @Benchmark
+    public void mixed(Token token, Blackhole blackhole) {
+        // one write for every nine reads
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (random.nextInt(10) == 0) {
+            transferTo(token);
+        } else {
+            blackhole.consume(getAccountBalance());
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package pt.tecnico.distledger.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import pt.tecnico.distledger.utils.VectorClock;
+
+import java.util.concurrent.TimeUnit;
+
+// The timestamp comparisons every operation goes through, dominates replaced TSBiggerThan
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class VectorClockBenchmark {
+
+    @Param({"3", "9", "64"})
+    public int replicas;
+
+    private VectorClock older;
+    private VectorClock newer;
+    private VectorClock concurrent;
+
+    @Setup
+    public void setUp() {
+        older = VectorClock.from(replicas, i -> i * 10);
+        newer = older.increment(replicas - 1);
+        concurrent = older.increment(0);
+    }
+
+    @Benchmark
+    public boolean dominates() {
+        return newer.dominates(older);
+    }
+
+    @Benchmark
+    public boolean dominatesConcurrent() {
+        return newer.dominates(concurrent);
+    }
+
+    @Benchmark
+    public VectorClock merge() {
+        return newer.merge(concurrent);
+    }
+}
@@ -0,0 +1,76 @@
+package pt.tecnico.distledger.benchmarks;
+
+import pt.tecnico.distledger.server.domain.AccountNames;
+import pt.tecnico.distledger.server.domain.ServerState;
+import pt.tecnico.distledger.server.domain.operation.CreateOp;
+import pt.tecnico.distledger.server.domain.operation.Operation;
+import pt.tecnico.distledger.server.domain.operation.TransferOp;
+import pt.tecnico.distledger.utils.VectorClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Builds the states and operations the benchmarks run on
+final class Workloads {
+    static final int REPLICA_ID = 0;
+    static final int PEER_ID = 1;
+    static final String BROKER = "broker";
+
+    private Workloads() {
+    }
+
+    static String[] accountNames(int accounts) {
+        String[] names = new String[accounts];
+        for (int i = 0; i < accounts; i++) {
+            names[i] = "account-" + i;
+        }
+        return names;
+    }
+
+    // a replica with the given accounts, all created locally
+    static ServerState stateWithAccounts(int replicas, String[] names) {
+        ServerState state = new ServerState(REPLICA_ID, replicas);
+        for (String name : names) {
+            state.createAccount(name, state.getReplicaTS());
+        }
+        return state;
+    }
+
+    // Operations issued one after the other by a peer, starting after its operation number
+    // first. Every tenth one creates an account and the others move money between the
+    // accounts it created, so the receiver also runs the execution path. The accounts get
+    // their ids from the given dictionary.
+    static List<Operation> peerOperations(AccountNames names, int replicas, int first, int count) {
+        List<Operation> operations = new ArrayList<>(count);
+        for (int i = first; i < first + count; i++) {
+            VectorClock prevTS = VectorClock.zero(replicas).with(PEER_ID, i);
+            VectorClock TS = prevTS.with(PEER_ID, i + 1);
+            int created = i / 10;
+            Operation op = i % 10 == 0 || created == 0
+                    ? new CreateOp(names.idOf("peer-account-" + created), prevTS, TS)
+                    : new TransferOp(names.idOf("peer-account-" + (i % created)),
+                            names.idOf("peer-account-" + created), 1, prevTS, TS);
+            operations.add(op);
+        }
+        return operations;
+    }
+
+    // Operations issued by every replica in turn, as a replica receives them from its peers.
+    // One in outOfOrder operations of each replica arrives after the next one, as when two
+    // peers forward the same updates.
+    static List<Operation> interleavedOperations(int replicas, int count, int outOfOrder) {
+        List<Operation> operations = new ArrayList<>(count);
+        VectorClock replicaTS = VectorClock.zero(replicas);
+        for (int i = 0; i < count; i++) {
+            int origin = i % replicas;
+            VectorClock TS = replicaTS.increment(origin);
+            operations.add(new CreateOp(0, replicaTS, TS));
+            replicaTS = TS;
+        }
+        for (int i = 0; i + replicas < count; i += outOfOrder * replicas) {
+            Collections.swap(operations, i, i + replicas);
+        }
+        return operations;
+    }
+}
@@ -1,29 +1,90 @@
 package pt.tecnico.distledger.server;
 
+import pt.tecnico.distledger.server.codec.BlockCodec;
+import pt.tecnico.distledger.server.codec.BlockCodecs;
+import pt.tecnico.distledger.server.domain.AccountNames;
+import pt.tecnico.distledger.server.domain.AccountStore;
+import pt.tecnico.distledger.server.domain.StateSnapshot;
 import pt.tecnico.distledger.server.domain.operation.Operation;
 import pt.tecnico.distledger.server.domain.operation.CreateOp;
 import pt.tecnico.distledger.server.domain.operation.DeleteOp;
 import pt.tecnico.distledger.server.domain.operation.TransferOp;
 import pt.ulisboa.tecnico.distledger.contract.DistLedgerCommonDefinitions;
+import pt.ulisboa.tecnico.distledger.contract.DistLedgerCommonDefinitions.AccountName;
+import pt.ulisboa.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.AccountBalance;
+import pt.ulisboa.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.CompactLedger;
+import pt.ulisboa.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.PackedLedger;
+import pt.ulisboa.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.SnapshotChunk;
+import pt.tecnico.distledger.utils.VectorClock;
+
+import com.google.protobuf.InvalidProtocolBufferException;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 
+// Turns operations into ours, with the ids of our AccountNames. An operation either has its
+// account names or the sender's ids, whose names must have been given to addNames first. The
+// ids of a sender are remembered, so one deserializer can read all the messages of a stream.
 public class Deserializer {
+    private final AccountNames names;
+    // our id + 1 of each id of the sender, 0 when its name was not received
+    private int[] senderIds = new int[0];
+
+    public Deserializer(AccountNames names) {
+        this.names = names;
+    }
+
+    // The sender hands out ids in the order names reach its ledger and sends its ledger in that
+    // order, so its ids stay within the names we know plus the ones it sends along. An id past
+    // that is malformed and would only make us allocate for it.
+    public void addNames(List<AccountName> senderNames) {
+        int limit = Math.max(senderIds.length, names.size()) + senderNames.size();
+        for (AccountName name : senderNames) {
+            if (name.getId() < 0 || name.getId() >= limit) {
+                throw new IllegalArgumentException("Account id " + name.getId() + " out of range");
+            }
+            if (name.getId() >= senderIds.length) {
+                senderIds = Arrays.copyOf(senderIds, Math.min(Math.max(name.getId() + 1, senderIds.length * 2), limit));
+            }
+            senderIds[name.getId()] = names.idOf(name.getName()) + 1;
+        }
+    }
+
     public Operation deserialize(DistLedgerCommonDefinitions.Operation op) {
         switch (op.getType()) {
             case OP_CREATE_ACCOUNT:
-                return new CreateOp(op.getUserId(), op.getPrevTSList(), op.getTSList());
+                return new CreateOp(account(op.getUserId(), op.getAccount()), prevTS(op), TS(op));
             case OP_DELETE_ACCOUNT:
-                return new DeleteOp(op.getUserId(), op.getPrevTSList(), op.getTSList());
+                return new DeleteOp(account(op.getUserId(), op.getAccount()), prevTS(op), TS(op));
             case OP_TRANSFER_TO:
-                return new TransferOp(op.getUserId(), op.getDestUserId(), op.getAmount(), op.getPrevTSList(),
-                        op.getTSList());
+                return new TransferOp(account(op.getUserId(), op.getAccount()),
+                        account(op.getDestUserId(), op.getDestAccount()), op.getAmount(), prevTS(op), TS(op));
             default:
                 return null;
         }
     }
 
+    private int account(String name, int senderId) {
+        return !name.isEmpty() ? names.idOf(name) : senderAccount(senderId);
+    }
+
+    private int senderAccount(int senderId) {
+        if (senderId < 0 || senderId >= senderIds.length || senderIds[senderId] == 0) {
+            throw new IllegalArgumentException("No name was received for account id " + senderId);
+        }
+        return senderIds[senderId] - 1;
+    }
+
+    private static VectorClock prevTS(DistLedgerCommonDefinitions.Operation op) {
+        return VectorClock.from(op.getPrevTSCount(), op::getPrevTS);
+    }
+
+    private static VectorClock TS(DistLedgerCommonDefinitions.Operation op) {
+        return VectorClock.from(op.getTSCount(), op::getTS);
+    }
+
     public List<Operation> deserialize(List<DistLedgerCommonDefinitions.Operation> ops) {
         List<Operation> deserializedOps = new ArrayList<>();
         for (DistLedgerCommonDefinitions.Operation op : ops) {
@@ -31,4 +92,86 @@ public class Deserializer {
         }
         return deserializedOps;
     }
-}
\ No newline at end of file
+
+    // the names of the ids it uses must have been given to addNames first
+    public List<Operation> deserializeCompact(CompactLedger compact) {
+        BlockCodec codec = BlockCodecs.get(compact.getCodec());
+        if (codec == null) {
+            throw new IllegalArgumentException("Unknown codec " + compact.getCodec());
+        }
+        PackedLedger packed;
+        try {
+            packed = PackedLedger.parseFrom(codec.decode(compact.getBlock().toByteArray(), compact.getSize()));
+        } catch (InvalidProtocolBufferException e) {
+            throw new IllegalArgumentException("Corrupt packed ledger: " + e.getMessage());
+        }
+        int replicas = packed.getReplicas();
+        int count = packed.getTypesCount();
+        if (packed.getAccountsCount() != count || packed.getTimestampsCount() != 2 * replicas * count
+                || packed.getDestAccountsCount() != packed.getAmountsCount()) {
+            throw new IllegalArgumentException("Packed ledger columns of different lengths");
+        }
+        List<Operation> operations = new ArrayList<>(count);
+        int[] previous = new int[replicas];
+        int[] entries = new int[replicas];
+        int timestamp = 0;
+        int transfer = 0;
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < replicas; j++) {
+                previous[j] += packed.getTimestamps(timestamp++);
+            }
+            VectorClock prevTS = VectorClock.of(previous);
+            for (int j = 0; j < replicas; j++) {
+                entries[j] = previous[j] + packed.getTimestamps(timestamp++);
+            }
+            VectorClock TS = VectorClock.of(entries);
+            int account = senderAccount(packed.getAccounts(i));
+            switch (packed.getTypes(i)) {
+                case OP_CREATE_ACCOUNT:
+                    operations.add(new CreateOp(account, prevTS, TS));
+                    break;
+                case OP_DELETE_ACCOUNT:
+                    operations.add(new DeleteOp(account, prevTS, TS));
+                    break;
+                case OP_TRANSFER_TO:
+                    if (transfer == packed.getDestAccountsCount()) {
+                        throw new IllegalArgumentException("Packed ledger is missing transfer columns");
+                    }
+                    operations.add(new TransferOp(account, senderAccount(packed.getDestAccounts(transfer)),
+                            packed.getAmounts(transfer), prevTS, TS));
+                    transfer++;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown operation type " + packed.getTypes(i));
+            }
+        }
+        return operations;
+    }
+
+    public StateSnapshot deserializeSnapshot(Iterator<SnapshotChunk> chunks, long logSequence) {
+        AccountStore accounts = new AccountStore(names);
+        List<Operation> ledger = new ArrayList<>();
+        VectorClock replicaTS = VectorClock.empty();
+        VectorClock valueTS = VectorClock.empty();
+        VectorClock checkpointTS = VectorClock.empty();
+        boolean first = true;
+        while (chunks.hasNext()) {
+            SnapshotChunk chunk = chunks.next();
+            if (first) {
+                replicaTS = VectorClock.from(chunk.getReplicaTSCount(), chunk::getReplicaTS);
+                valueTS = VectorClock.from(chunk.getValueTSCount(), chunk::getValueTS);
+                checkpointTS = VectorClock.from(chunk.getCheckpointTSCount(), chunk::getCheckpointTS);
+                first = false;
+            }
+            for (AccountBalance account : chunk.getAccountsList()) {
+                accounts.create(names.idOf(account.getUserId()), account.getBalance());
+            }
+            addNames(chunk.getNamesList());
+            ledger.addAll(deserialize(chunk.getLedgerList()));
+        }
+        if (first) {
+            return null; // empty stream
+        }
+        return new StateSnapshot(accounts, ledger, replicaTS, valueTS, checkpointTS, logSequence);
+    }
+}
@@ -0,0 +1,100 @@
+package pt.tecnico.distledger.server;
+
+import pt.tecnico.distledger.server.domain.ServerState;
+import pt.tecnico.distledger.server.grpc.CrossServerService;
+import pt.tecnico.distledger.server.grpc.PropagationResult;
+import pt.tecnico.distledger.utils.Logger;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Gossips with the other replicas in the background. A round runs when the current interval
+// has passed, or earlier once enough local operations were written since the last round.
+// After each round the interval is halved while the replica is busy or peers fall further
+// behind, and doubled while nothing happens, always within [minInterval, maxInterval].
+public class GossipScheduler implements AutoCloseable {
+    private final ServerState state;
+    private final CrossServerService crossServerService;
+    private final long baseInterval;
+    private final long minInterval;
+    private final long maxInterval;
+    private final int backlogThreshold;
+    private final ScheduledExecutorService executor;
+
+    // only touched by the scheduler thread
+    private long interval;
+    private long lastRound;
+    private int lastOwnTS;
+    private int lastBacklog;
+
+    public GossipScheduler(ServerState state, CrossServerService crossServerService, long baseInterval,
+            long minInterval, long maxInterval, int backlogThreshold) {
+        this.state = state;
+        this.crossServerService = crossServerService;
+        this.baseInterval = baseInterval;
+        this.minInterval = Math.min(minInterval, baseInterval);
+        this.maxInterval = Math.max(maxInterval, baseInterval);
+        this.backlogThreshold = backlogThreshold;
+        this.interval = baseInterval;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "gossip-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        this.lastRound = System.currentTimeMillis();
+        this.lastOwnTS = ownTS();
+        // the tick bounds how long a full backlog waits for its round
+        executor.scheduleWithFixedDelay(this::tick, minInterval, minInterval, TimeUnit.MILLISECONDS);
+        Logger.debug("Gossip scheduler started with interval {} ms", baseInterval);
+    }
+
+    private void tick() {
+        long now = System.currentTimeMillis();
+        int written = ownTS() - lastOwnTS;
+        if (now - lastRound < interval && written < backlogThreshold) {
+            return;
+        }
+        if (written >= backlogThreshold) {
+            Logger.debug("{} operations written since the last gossip, gossiping early", written);
+        }
+        try {
+            for (PropagationResult result : crossServerService.propagateState(state)) {
+                if (!result.isSuccess()) {
+                    Logger.warn("Scheduled gossip to {} failed: {}", result.getHost(),
+                            result.getFailure().getMessage());
+                }
+            }
+        } catch (Exception e) {
+            Logger.warn("Scheduled gossip failed: {}", e.getMessage());
+        }
+        int backlog = state.getReplicationBacklog();
+        adaptInterval(written, backlog);
+        lastRound = System.currentTimeMillis();
+        lastOwnTS += written;
+        lastBacklog = backlog;
+    }
+
+    private void adaptInterval(int written, int backlog) {
+        if (written == 0 && backlog <= lastBacklog) {
+            interval = Math.min(maxInterval, interval * 2);
+        } else if (written >= backlogThreshold / 2 || backlog > lastBacklog) {
+            interval = Math.max(minInterval, interval / 2);
+        } else {
+            interval = baseInterval;
+        }
+        Logger.debug("Gossip interval is now {} ms (written {}, backlog {})", interval, written, backlog);
+    }
+
+    private int ownTS() {
+        return state.getReplicaTS().get(state.getReplicaId());
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -1,17 +1,59 @@
 package pt.tecnico.distledger.server;
 
+import pt.tecnico.distledger.server.codec.BlockCodec;
+import pt.tecnico.distledger.server.codec.IdentityCodec;
+import pt.tecnico.distledger.server.domain.AccountNames;
+import pt.tecnico.distledger.server.domain.AccountStore;
+import pt.tecnico.distledger.server.domain.StateSnapshot;
 import pt.tecnico.distledger.server.domain.operation.Operation;
 import pt.tecnico.distledger.server.domain.operation.CreateOp;
 import pt.tecnico.distledger.server.domain.operation.DeleteOp;
 import pt.tecnico.distledger.server.domain.operation.TransferOp;
 import pt.ulisboa.tecnico.distledger.contract.DistLedgerCommonDefinitions;
+import pt.ulisboa.tecnico.distledger.contract.DistLedgerCommonDefinitions.AccountName;
 import pt.ulisboa.tecnico.distledger.contract.DistLedgerCommonDefinitions.OperationType;
+import pt.ulisboa.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.AccountBalance;
+import pt.ulisboa.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.CompactLedger;
+import pt.ulisboa.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.PackedLedger;
+import pt.ulisboa.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.SnapshotChunk;
+import pt.tecnico.distledger.utils.VectorClock;
+
+import com.google.protobuf.ByteString;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
+import java.util.function.Consumer;
 
+// Operations are written either with their account names, for the admin and the write-ahead
+// log, or, for other replicas, with the ids of our AccountNames. In the second case the name
+// of an id is only written the first time it is used: sentNames holds the ids the receiver
+// already got, and the names to send along with the operations are collected in newNames.
 public class Serializer {
+    // below this many operations the plain list is about as small as a compact ledger
+    public static final int MIN_COMPACT_OPERATIONS = 8;
+    // every replica that decodes compact ledgers knows it
+    private static final BlockCodec IDENTITY_CODEC = new IdentityCodec();
     List<DistLedgerCommonDefinitions.Operation> protoOperations = new ArrayList<>();
+    private final AccountNames names;
+    // null to write the names in the operations
+    private final BitSet sentNames;
+    private final List<AccountName> newNames = new ArrayList<>();
+
+    public Serializer(AccountNames names) {
+        this(names, null);
+    }
+
+    // sentNames may be kept across messages sent in order on the same stream
+    public Serializer(AccountNames names, BitSet sentNames) {
+        this.names = names;
+        this.sentNames = sentNames;
+    }
+
+    // names of the ids used by the operations serialized so far and not sent before
+    public List<AccountName> getNewNames() {
+        return newNames;
+    }
 
     public List<DistLedgerCommonDefinitions.Operation> serializeOperations(List<Operation> ledgerOperations) {
         for (Operation operation : ledgerOperations) {
@@ -22,35 +64,151 @@ public class Serializer {
 
     public void serialize(CreateOp operation) {
         // create ProtoOperation from Operation
-        DistLedgerCommonDefinitions.Operation protoOperation = DistLedgerCommonDefinitions.Operation.newBuilder()
-                .setType(OperationType.OP_CREATE_ACCOUNT)
-                .setUserId(operation.getAccount())
-                .addAllPrevTS(operation.getPrevTS())
-                .addAllTS(operation.getTS())
-                .build();
-        protoOperations.add(protoOperation);
+        DistLedgerCommonDefinitions.Operation.Builder protoOperation = DistLedgerCommonDefinitions.Operation.newBuilder()
+                .setType(OperationType.OP_CREATE_ACCOUNT);
+        setAccount(protoOperation, operation.getAccount());
+        operation.getPrevTS().forEach(protoOperation::addPrevTS);
+        operation.getTS().forEach(protoOperation::addTS);
+        protoOperations.add(protoOperation.build());
     }
 
     public void serialize(DeleteOp operation) {
         // create ProtoOperation from Operation
-        DistLedgerCommonDefinitions.Operation protoOperation = DistLedgerCommonDefinitions.Operation.newBuilder()
-                .setType(OperationType.OP_DELETE_ACCOUNT)
-                .setUserId(operation.getAccount())
-                .build();
-        protoOperations.add(protoOperation);
+        DistLedgerCommonDefinitions.Operation.Builder protoOperation = DistLedgerCommonDefinitions.Operation.newBuilder()
+                .setType(OperationType.OP_DELETE_ACCOUNT);
+        setAccount(protoOperation, operation.getAccount());
+        operation.getPrevTS().forEach(protoOperation::addPrevTS);
+        operation.getTS().forEach(protoOperation::addTS);
+        protoOperations.add(protoOperation.build());
     }
 
     public void serialize(TransferOp operation) {
         // create ProtoOperation from Operation
-        DistLedgerCommonDefinitions.Operation protoOperation = DistLedgerCommonDefinitions.Operation.newBuilder()
+        DistLedgerCommonDefinitions.Operation.Builder protoOperation = DistLedgerCommonDefinitions.Operation.newBuilder()
                 .setType(OperationType.OP_TRANSFER_TO)
-                .setUserId(operation.getAccount())
-                .setDestUserId(operation.getDestAccount())
-                .setAmount(operation.getAmount())
-                .addAllPrevTS(operation.getPrevTS())
-                .addAllTS(operation.getTS())
-                .build();
-        protoOperations.add(protoOperation);
+                .setAmount(operation.getAmount());
+        setAccount(protoOperation, operation.getAccount());
+        setDestAccount(protoOperation, operation.getDestAccount());
+        operation.getPrevTS().forEach(protoOperation::addPrevTS);
+        operation.getTS().forEach(protoOperation::addTS);
+        protoOperations.add(protoOperation.build());
+    }
+
+    // The operations packed column by column, with each timestamp written as its difference
+    // with the one before it (see PackedLedger), and the packed block encoded with the codec.
+    // Only for other replicas: the accounts are ids, as with sentNames.
+    public CompactLedger serializeCompact(List<Operation> ledgerOperations, BlockCodec codec, VectorClock replicaTS) {
+        if (sentNames == null) {
+            throw new IllegalStateException("A compact ledger refers to accounts by id");
+        }
+        PackedLedger.Builder packed = PackedLedger.newBuilder();
+        VectorClock previous = null;
+        for (Operation operation : ledgerOperations) {
+            VectorClock prevTS = operation.getPrevTS();
+            VectorClock TS = operation.getTS();
+            if (previous == null) {
+                previous = VectorClock.zero(prevTS.size());
+                packed.setReplicas(prevTS.size());
+            }
+            if (prevTS.size() != packed.getReplicas() || TS.size() != packed.getReplicas()) {
+                throw new IllegalArgumentException("Timestamps of different sizes in " + operation);
+            }
+            packed.addAccounts(reference(operation.getAccount()));
+            if (operation instanceof TransferOp) {
+                TransferOp transfer = (TransferOp) operation;
+                packed.addTypes(OperationType.OP_TRANSFER_TO)
+                        .addDestAccounts(reference(transfer.getDestAccount()))
+                        .addAmounts(transfer.getAmount());
+            } else if (operation instanceof CreateOp) {
+                packed.addTypes(OperationType.OP_CREATE_ACCOUNT);
+            } else {
+                packed.addTypes(OperationType.OP_DELETE_ACCOUNT);
+            }
+            for (int i = 0; i < prevTS.size(); i++) {
+                packed.addTimestamps(prevTS.get(i) - previous.get(i));
+            }
+            for (int i = 0; i < TS.size(); i++) {
+                packed.addTimestamps(TS.get(i) - prevTS.get(i));
+            }
+            previous = prevTS;
+        }
+        byte[] data = packed.build().toByteArray();
+        byte[] block = codec.encode(data);
+        if (block.length >= data.length) {
+            // small batches, as a stream sends under light load, do not pay for the codec's header
+            codec = IDENTITY_CODEC;
+            block = data;
+        }
+        CompactLedger.Builder compact = CompactLedger.newBuilder()
+                .setCodec(codec.getName())
+                .setSize(data.length)
+                .setBlock(ByteString.copyFrom(block));
+        replicaTS.forEach(compact::addReplicaTS);
+        return compact.build();
     }
 
-}
\ No newline at end of file
+    private void setAccount(DistLedgerCommonDefinitions.Operation.Builder protoOperation, int id) {
+        if (sentNames == null) {
+            protoOperation.setUserId(names.nameOf(id));
+        } else {
+            protoOperation.setAccount(reference(id));
+        }
+    }
+
+    private void setDestAccount(DistLedgerCommonDefinitions.Operation.Builder protoOperation, int id) {
+        if (sentNames == null) {
+            protoOperation.setDestUserId(names.nameOf(id));
+        } else {
+            protoOperation.setDestAccount(reference(id));
+        }
+    }
+
+    private int reference(int id) {
+        if (!sentNames.get(id)) {
+            sentNames.set(id);
+            newNames.add(AccountName.newBuilder().setId(id).setName(names.nameOf(id)).build());
+        }
+        return id;
+    }
+
+    // The ledger of the chunks refers to accounts by id, each chunk carrying the names it is the
+    // first to use, so the chunks must be read in order. The accounts keep their names, each
+    // one is only written once anyway.
+    public void serializeSnapshot(StateSnapshot snapshot, int chunkSize, Consumer<SnapshotChunk> consumer) {
+        // the first chunk carries the timestamps, the following ones only accounts and operations
+        SnapshotChunk.Builder chunk = SnapshotChunk.newBuilder();
+        snapshot.getReplicaTS().forEach(chunk::addReplicaTS);
+        snapshot.getValueTS().forEach(chunk::addValueTS);
+        snapshot.getCheckpointTS().forEach(chunk::addCheckpointTS);
+        int size = 0;
+        AccountStore accounts = snapshot.getAccounts();
+        for (int slot = 0; slot < accounts.capacity(); slot++) {
+            String name = accounts.getName(slot);
+            if (name == null) {
+                continue;
+            }
+            chunk.addAccounts(AccountBalance.newBuilder()
+                    .setUserId(name)
+                    .setBalance(accounts.getBalance(slot)));
+            if (++size == chunkSize) {
+                consumer.accept(chunk.build());
+                chunk = SnapshotChunk.newBuilder();
+                size = 0;
+            }
+        }
+        List<Operation> ledger = snapshot.getLedger();
+        BitSet sent = new BitSet();
+        for (int i = 0; i < ledger.size(); i += chunkSize) {
+            List<Operation> operations = ledger.subList(i, Math.min(i + chunkSize, ledger.size()));
+            Serializer serializer = new Serializer(accounts.getNames(), sent);
+            chunk.addAllLedger(serializer.serializeOperations(operations));
+            chunk.addAllNames(serializer.getNewNames());
+            consumer.accept(chunk.build());
+            chunk = SnapshotChunk.newBuilder();
+            size = 0;
+        }
+        if (size > 0 || chunk.getReplicaTSCount() > 0) {
+            consumer.accept(chunk.build());
+        }
+    }
+}
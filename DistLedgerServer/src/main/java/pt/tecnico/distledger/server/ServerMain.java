@@ -3,20 +3,53 @@ package pt.tecnico.distledger.server;
 import io.grpc.BindableService;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import pt.tecnico.distledger.server.grpc.CrossServerService;
+import pt.tecnico.distledger.server.grpc.ReplicationService;
 import pt.tecnico.distledger.utils.Logger;
+import pt.tecnico.distledger.server.codec.BlockCodec;
+import pt.tecnico.distledger.server.codec.BlockCodecs;
+import pt.tecnico.distledger.server.domain.AccountNames;
 import pt.tecnico.distledger.server.domain.ServerState;
+import pt.tecnico.distledger.server.domain.StateSnapshot;
+import pt.tecnico.distledger.server.domain.operation.Operation;
 import pt.tecnico.distledger.server.service.*;
 import pt.tecnico.distledger.server.grpc.NamingServerService;
+import pt.ulisboa.tecnico.distledger.contract.namingserver.NamingServerDistLedger.RegisterResponse;
+import pt.tecnico.distledger.server.metrics.MetricsHttpServer;
+import pt.tecnico.distledger.server.metrics.MetricsInterceptor;
+import pt.tecnico.distledger.server.metrics.ServerMetrics;
+import pt.tecnico.distledger.server.persistence.SnapshotStore;
+import pt.tecnico.distledger.server.persistence.WriteAheadLog;
 
 public class ServerMain {
     private static final String LOCALHOST = "localhost";
     private static final String SERVICE = "DistLedger";
     private static final int NS_PORT = 5001;
-    private static final NamingServerService namingServerService = new NamingServerService(LOCALHOST, NS_PORT);
+    private static final long WAL_SEGMENT_SIZE = 64L * 1024 * 1024;
+    private static final long DEFAULT_SNAPSHOT_INTERVAL = 60;
+    private static final long DEFAULT_GOSSIP_INTERVAL = 1000;
+    private static final long DEFAULT_GOSSIP_MIN_INTERVAL = 100;
+    private static final long DEFAULT_GOSSIP_MAX_INTERVAL = 10000;
+    private static final int DEFAULT_GOSSIP_BACKLOG = 1000;
+    private static final long DEFAULT_GOSSIP_DEADLINE = 5000;
+    private static final String REPLICATION_STREAM = "stream";
+    private static final long DEFAULT_NAMING_TTL = 30000;
+    private static final long DEFAULT_BALANCE_WAIT = 5000;
+    private static final NamingServerService namingServerService = new NamingServerService(LOCALHOST, NS_PORT,
+            Long.getLong("naming.ttl", DEFAULT_NAMING_TTL));
     private static CrossServerService crossServerService;
 
     public static void main(String[] args) throws IOException, InterruptedException {
@@ -36,47 +69,159 @@ public class ServerMain {
             return;
         }
 
+        // -Dreplication.codec sends the operations to the replicas that support it as a
+        // compact ledger encoded with the codec, instead of a plain list
+        String codecName = System.getProperty("replication.codec");
+        BlockCodec codec = codecName != null ? BlockCodecs.get(codecName) : null;
+        if (codecName != null && codec == null) {
+            System.err.println("Unknown replication codec: " + codecName);
+            System.err.println("Known codecs: " + BlockCodecs.names());
+            return;
+        }
+
         final int port = Integer.parseInt(args[0]);
         final String qualifier = args[1];
         String host_address = LOCALHOST + ":" + port;
-        crossServerService = new CrossServerService(namingServerService, SERVICE, host_address);
+
+        // persistence is only enabled when a data directory is given
+        WriteAheadLog log = null;
+        SnapshotStore snapshotStore = null;
+        // the log recovers its operations with the same account dictionary as the state
+        AccountNames accountNames = new AccountNames();
+        String dataDir = System.getProperty("data.dir");
+        if (dataDir != null) {
+            Path serverDir = Paths.get(dataDir, String.valueOf(port));
+            snapshotStore = new SnapshotStore(serverDir);
+            log = new WriteAheadLog(serverDir.resolve("wal"), WAL_SEGMENT_SIZE, accountNames);
+            Logger.debug("Persistence enabled in {}", serverDir);
+        }
 
         ServerState state = null;
         try {
-            int server_id = namingServerService.register(SERVICE, host_address, qualifier);
+            // a server with state on disk asks for the id it was written with, so it never
+            // replays the history of one replica under the id of another
+            Integer storedId = snapshotStore != null ? snapshotStore.loadReplicaId() : null;
+            RegisterResponse registration = storedId != null
+                    ? namingServerService.register(SERVICE, host_address, qualifier, storedId)
+                    : namingServerService.register(SERVICE, host_address, qualifier);
+            int server_id = registration.getServerId();
+            if (snapshotStore != null && storedId == null) {
+                snapshotStore.writeReplicaId(server_id);
+            }
             int numServers = namingServerService.maxServers(SERVICE).getMaxServers();
-            Logger.log("Server id: " + (server_id + 1) + " of " + numServers);
-            state = new ServerState(server_id, numServers);
+            // the other replicas are found through the naming server pushing every change
+            namingServerService.watch(SERVICE);
+            Logger.debug("Server id: {} of {}", (server_id + 1), numServers);
+            ServerState registered = new ServerState(server_id, numServers, accountNames, log);
+            namingServerService.keepRegistered(SERVICE, host_address, qualifier, server_id,
+                    registration.getLeaseDuration(), registered::stopUpdates);
+            state = registered;
+        } catch (StatusRuntimeException e) {
+            // e.g. the id of the data directory was given to another server
+            System.out.println(e.getStatus().getCode() == Status.Code.ALREADY_EXISTS
+                    ? "Server could not register" : "Naming server not available");
+            System.out.println(e.getMessage());
+            System.exit(1);
         } catch (Exception e) {
             System.out.println("Naming server not available");
             System.out.println(e.getMessage());
             System.exit(1);
         }
+        final ServerMetrics metrics = new ServerMetrics(state);
+        crossServerService = new CrossServerService(namingServerService, SERVICE, host_address,
+                Long.getLong("gossip.deadline", DEFAULT_GOSSIP_DEADLINE), metrics, codec);
+        restoreState(state, snapshotStore, log);
+        if (log != null) {
+            log.clearRecoveredOperations();
+        }
+
+        final ScheduledExecutorService snapshotScheduler = Executors.newSingleThreadScheduledExecutor();
+        if (snapshotStore != null) {
+            long interval = Long.getLong("snapshot.interval", DEFAULT_SNAPSHOT_INTERVAL);
+            final ServerState serverState = state;
+            final SnapshotStore store = snapshotStore;
+            final WriteAheadLog snapshotLog = log;
+            final AtomicLong lastSnapshot = new AtomicLong(-1);
+            snapshotScheduler.scheduleWithFixedDelay(
+                    () -> saveSnapshot(serverState, store, snapshotLog, lastSnapshot),
+                    interval, interval, TimeUnit.SECONDS);
+        }
 
-        final BindableService userImpl = new userDistLedgerServiceImpl(state);
-        Logger.log("userImpl created");
-        final BindableService adminImpl = new adminDistLedgerServiceImpl(state, crossServerService);
-        Logger.log("adminImpl created");
-        final BindableService crossServerImpl = new CrossServerDistLedgerServiceImpl(state);
-        Logger.log("crossServerImpl created");
+        final BindableService userImpl = new userDistLedgerServiceImpl(state, metrics,
+                Long.getLong("balance.wait", DEFAULT_BALANCE_WAIT));
+        Logger.debug("userImpl created");
+        final BindableService adminImpl = new adminDistLedgerServiceImpl(state, crossServerService, metrics);
+        Logger.debug("adminImpl created");
+        final BindableService crossServerImpl = new CrossServerDistLedgerServiceImpl(state, metrics, crossServerService);
+        Logger.debug("crossServerImpl created");
 
-        // Create a new server to listen on port
+        // Create a new server to listen on port, every call is counted and timed
+        MetricsInterceptor metricsInterceptor = new MetricsInterceptor(metrics);
         Server server = ServerBuilder.forPort(port)
-                .addService(adminImpl)
-                .addService(userImpl)
-                .addService(crossServerImpl)
+                .addService(ServerInterceptors.intercept(adminImpl, metricsInterceptor))
+                .addService(ServerInterceptors.intercept(userImpl, metricsInterceptor))
+                .addService(ServerInterceptors.intercept(crossServerImpl, metricsInterceptor))
                 .build();
-        Logger.log("Server created");
+        Logger.debug("Server created");
 
         // Start the server
         server.start();
 
+        // the metrics are also served over HTTP on localhost when -Dmetrics.port is given
+        MetricsHttpServer metricsHttpServer = null;
+        Integer metricsPort = Integer.getInteger("metrics.port");
+        if (metricsPort != null) {
+            try {
+                metricsHttpServer = new MetricsHttpServer(metrics, metricsPort);
+                metricsHttpServer.start();
+            } catch (IOException e) {
+                System.out.println("Metrics endpoint not available: " + e.getMessage());
+            }
+        }
+
         // Server threads are running in the background.
         System.out.println("Server started");
 
+        // operations are streamed to the other replicas as they are recorded, unless
+        // -Dreplication=gossip asks for the periodic gossip rounds instead
+        ReplicationService replicationService = null;
+        GossipScheduler gossipScheduler = null;
+        String replication = System.getProperty("replication", REPLICATION_STREAM);
+        if (replication.equals(REPLICATION_STREAM)) {
+            replicationService = new ReplicationService(state, crossServerService, metrics);
+            replicationService.start();
+        } else {
+            // gossip in the background unless disabled with -Dgossip.interval=0
+            long gossipInterval = Long.getLong("gossip.interval", DEFAULT_GOSSIP_INTERVAL);
+            if (gossipInterval > 0) {
+                gossipScheduler = new GossipScheduler(state, crossServerService, gossipInterval,
+                        Long.getLong("gossip.min.interval", DEFAULT_GOSSIP_MIN_INTERVAL),
+                        Long.getLong("gossip.max.interval", DEFAULT_GOSSIP_MAX_INTERVAL),
+                        Integer.getInteger("gossip.backlog", DEFAULT_GOSSIP_BACKLOG));
+                gossipScheduler.start();
+            }
+        }
+
         // Shutdown hook
+        final WriteAheadLog serverLog = log;
+        final GossipScheduler serverGossipScheduler = gossipScheduler;
+        final ReplicationService serverReplicationService = replicationService;
+        final MetricsHttpServer serverMetricsHttpServer = metricsHttpServer;
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             System.out.println("\nServer shut down");
+            if (serverGossipScheduler != null) {
+                serverGossipScheduler.close();
+            }
+            if (serverReplicationService != null) {
+                serverReplicationService.close();
+            }
+            if (serverMetricsHttpServer != null) {
+                serverMetricsHttpServer.close();
+            }
+            snapshotScheduler.shutdown();
+            if (serverLog != null) {
+                serverLog.close();
+            }
             namingServerService.unregister(SERVICE, host_address);
             namingServerService.shutdown();
             crossServerService.shutdownAll();
@@ -85,4 +230,39 @@ public class ServerMain {
         // Do not exit the main thread. Wait until server is terminated.
         server.awaitTermination();
     }
+
+    private static void restoreState(ServerState state, SnapshotStore snapshotStore, WriteAheadLog log)
+            throws IOException {
+        StateSnapshot snapshot = snapshotStore != null ? snapshotStore.load(state.getAccountNames()) : null;
+        List<Operation> operations = log != null
+                ? log.getRecoveredOperations(snapshot != null ? snapshot.getLogSequence() : 0)
+                : List.of();
+        if (snapshot != null || !operations.isEmpty()) {
+            state.recover(snapshot, operations);
+            return;
+        }
+        // nothing on disk, so start from the state of another replica instead of replaying its history
+        StateSnapshot peerSnapshot = crossServerService.fetchSnapshot(state.getAccountNames());
+        if (peerSnapshot != null) {
+            state.installSnapshot(peerSnapshot);
+            if (snapshotStore != null) {
+                snapshotStore.write(state.takeSnapshot());
+            }
+        }
+    }
+
+    private static void saveSnapshot(ServerState state, SnapshotStore snapshotStore, WriteAheadLog log,
+            AtomicLong lastSnapshot) {
+        if (log.getNextSequence() == lastSnapshot.get()) {
+            return; // nothing was logged since the last snapshot
+        }
+        try {
+            StateSnapshot snapshot = state.takeSnapshot();
+            snapshotStore.write(snapshot);
+            log.deleteSegmentsBefore(snapshot.getLogSequence());
+            lastSnapshot.set(snapshot.getLogSequence());
+        } catch (Exception e) {
+            Logger.warn("Failed to save snapshot: {}", e.getMessage());
+        }
+    }
 }
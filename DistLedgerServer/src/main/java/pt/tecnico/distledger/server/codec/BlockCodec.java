@@ -0,0 +1,13 @@
+package pt.tecnico.distledger.server.codec;
+
+// Encodes the block of a CompactLedger. A codec is known to the peers by its name, so a new
+// one only needs to be registered in BlockCodecs on both sides.
+public interface BlockCodec {
+    String getName();
+
+    byte[] encode(byte[] data);
+
+    // size is the length of the data before encoding; throws IllegalArgumentException if the
+    // block is corrupt
+    byte[] decode(byte[] block, int size);
+}
@@ -0,0 +1,33 @@
+package pt.tecnico.distledger.server.codec;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The codecs this replica can decode, by name. Their names are sent to the peers, which
+// only use one of them in the messages they send us.
+public final class BlockCodecs {
+    private static final Map<String, BlockCodec> codecs = new ConcurrentHashMap<>();
+
+    static {
+        register(new IdentityCodec());
+        register(new DeflateCodec());
+    }
+
+    private BlockCodecs() {
+    }
+
+    public static void register(BlockCodec codec) {
+        codecs.put(codec.getName(), codec);
+    }
+
+    // null if there is no codec with the name
+    public static BlockCodec get(String name) {
+        return codecs.get(name);
+    }
+
+    public static List<String> names() {
+        return new ArrayList<>(codecs.keySet());
+    }
+}
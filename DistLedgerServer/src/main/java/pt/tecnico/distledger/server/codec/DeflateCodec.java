@@ -0,0 +1,63 @@
+package pt.tecnico.distledger.server.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// zlib at its fastest level: the packed timestamps are mostly zeros and the same few values,
+// which even the fastest level squeezes well, and replication should not wait for the CPU
+public class DeflateCodec implements BlockCodec {
+    public static final String NAME = "deflate";
+    private static final int BUFFER_SIZE = 8192;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] encode(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public byte[] decode(byte[] block, int size) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(block);
+            byte[] data = new byte[size];
+            int length = 0;
+            while (!inflater.finished() && length <= size) {
+                // once data is full, one more byte is asked for to notice a block longer than size
+                int read = length < size
+                        ? inflater.inflate(data, length, size - length)
+                        : inflater.inflate(new byte[1]);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += read;
+            }
+            if (length != size || !inflater.finished()) {
+                throw new IllegalArgumentException("Block does not inflate to " + size + " bytes");
+            }
+            return data;
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt block: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+}
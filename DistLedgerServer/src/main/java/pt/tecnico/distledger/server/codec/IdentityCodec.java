@@ -0,0 +1,24 @@
+package pt.tecnico.distledger.server.codec;
+
+// Leaves the block as it is, only the packing of the operations makes it smaller
+public class IdentityCodec implements BlockCodec {
+    public static final String NAME = "none";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public byte[] encode(byte[] data) {
+        return data;
+    }
+
+    @Override
+    public byte[] decode(byte[] block, int size) {
+        if (block.length != size) {
+            throw new IllegalArgumentException("Block of " + block.length + " bytes, expected " + size);
+        }
+        return block;
+    }
+}
@@ -0,0 +1,117 @@
+package pt.tecnico.distledger.server.domain;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+// Dictionary of the account names known to the replica. A name gets a small integer id the
+// first time it appears in an operation, so operations, balances and stripe locks only deal
+// with ids and names are only looked up at the edges: client requests, the admin ledger dump
+// and the disk.
+// Ids are handed out densely and never reused, an account created again after being deleted
+// keeps its id. They are local to the replica: messages between replicas carry the sender's
+// ids and, the first time an id is used, its name.
+// The dictionary is an open addressing table of ids next to the array of names indexed by
+// id, so a name costs an int slot and a reference, with no node or boxed id per name. Names
+// are never removed, so there are no tombstones.
+// Lookups take no lock, only adding a name is serialized.
+public class AccountNames {
+    public static final int NOT_FOUND = -1;
+    private static final int INITIAL_CAPACITY = 64;
+    private static final float LOAD_FACTOR = 0.7f;
+
+    // replaced as a whole when it grows, so a lookup always probes slots and names that match
+    private volatile Table table = new Table(INITIAL_CAPACITY);
+    private volatile int size;
+
+    // id of the name, NOT_FOUND if it was never added
+    public int find(String name) {
+        return table.find(name);
+    }
+
+    // id of the name, adding it if needed
+    public int idOf(String name) {
+        int id = table.find(name);
+        if (id != NOT_FOUND) {
+            return id;
+        }
+        synchronized (this) {
+            Table current = table;
+            id = current.find(name);
+            if (id != NOT_FOUND) {
+                return id;
+            }
+            int next = size;
+            if (next == current.names.length) {
+                current = current.grow(next);
+                table = current;
+            }
+            current.insert(name, next);
+            size = next + 1;
+            return next;
+        }
+    }
+
+    public String nameOf(int id) {
+        return table.names[id];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static int spread(int hash) {
+        // String hashes are cached, this only mixes the high bits into the low ones
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static class Table {
+        // id + 1 of the name in each slot, 0 for a free slot
+        private final AtomicIntegerArray slots;
+        // sized to the load factor, the table grows when it is full
+        private final String[] names;
+
+        private Table(int capacity) {
+            this.slots = new AtomicIntegerArray(capacity);
+            this.names = new String[(int) (capacity * LOAD_FACTOR)];
+        }
+
+        private int find(String name) {
+            int mask = slots.length() - 1;
+            for (int slot = spread(name.hashCode()) & mask; ; slot = (slot + 1) & mask) {
+                int entry = slots.getAcquire(slot);
+                if (entry == 0) {
+                    return NOT_FOUND;
+                }
+                if (names[entry - 1].equals(name)) {
+                    return entry - 1;
+                }
+            }
+        }
+
+        // under the dictionary lock; the name is stored before the slot that publishes it
+        private void insert(String name, int id) {
+            names[id] = name;
+            int mask = slots.length() - 1;
+            int slot = spread(name.hashCode()) & mask;
+            while (slots.getPlain(slot) != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots.setRelease(slot, id + 1);
+        }
+
+        private Table grow(int size) {
+            Table bigger = new Table(slots.length() << 1);
+            for (int id = 0; id < size; id++) {
+                bigger.insert(names[id], id);
+            }
+            return bigger;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "AccountNames{" +
+                "size=" + size +
+                '}';
+    }
+}
@@ -0,0 +1,141 @@
+package pt.tecnico.distledger.server.domain;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.ObjLongConsumer;
+
+// Account balances indexed by the account id of the replica's AccountNames. Ids are dense,
+// so the store is two parallel arrays, whether the account exists and its 64-bit balance,
+// and finding an account is an array access: a balance update hashes nothing and allocates
+// nothing.
+// Adding and removing accounts must be done with exclusive access to the store. Balances
+// of different accounts can be read and updated concurrently, the caller serializes updates
+// to the same account.
+public class AccountStore {
+    public static final int NOT_FOUND = -1;
+    private static final int MIN_CAPACITY = 16;
+
+    private final AccountNames names;
+    private boolean[] live;
+    private AtomicLongArray balances;
+    private int size;
+
+    public AccountStore(AccountNames names) {
+        this.names = names;
+        int capacity = MIN_CAPACITY;
+        while (capacity < names.size()) {
+            capacity <<= 1;
+        }
+        this.live = new boolean[capacity];
+        this.balances = new AtomicLongArray(capacity);
+    }
+
+    // id of the account, NOT_FOUND if it does not exist
+    public int find(String name) {
+        int id = names.find(name);
+        return contains(id) ? id : NOT_FOUND;
+    }
+
+    public boolean contains(int id) {
+        // ids added to the dictionary after the last resize have no account yet
+        return id >= 0 && id < live.length && live[id];
+    }
+
+    public long getBalance(int id) {
+        return balances.get(id);
+    }
+
+    // updates of the same account are serialized by the caller, so this needs no atomic add,
+    // the release store is enough for concurrent readers to see a whole value
+    public void addToBalance(int id, long amount) {
+        balances.setRelease(id, balances.getPlain(id) + amount);
+    }
+
+    // returns false if the account already exists
+    public boolean create(int id, long balance) {
+        if (contains(id)) {
+            return false;
+        }
+        if (id >= live.length) {
+            int capacity = live.length;
+            while (capacity <= id) {
+                capacity <<= 1;
+            }
+            resize(capacity);
+        }
+        live[id] = true;
+        balances.set(id, balance);
+        size++;
+        return true;
+    }
+
+    public boolean remove(int id) {
+        if (!contains(id)) {
+            return false;
+        }
+        live[id] = false;
+        balances.set(id, 0);
+        size--;
+        return true;
+    }
+
+    public AccountNames getNames() {
+        return names;
+    }
+
+    public int capacity() {
+        return live.length;
+    }
+
+    // name of the account with the id, null if there is none
+    public String getName(int id) {
+        return contains(id) ? names.nameOf(id) : null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void forEach(ObjLongConsumer<String> consumer) {
+        for (int id = 0; id < live.length; id++) {
+            if (live[id]) {
+                consumer.accept(names.nameOf(id), balances.get(id));
+            }
+        }
+    }
+
+    // array copies, much cheaper than rebuilding a map of the same size; the dictionary only
+    // grows, so the copy shares it
+    public AccountStore copy() {
+        AccountStore copy = new AccountStore(names);
+        copy.live = live.clone();
+        long[] copiedBalances = new long[live.length];
+        for (int i = 0; i < copiedBalances.length; i++) {
+            copiedBalances[i] = balances.get(i);
+        }
+        copy.balances = new AtomicLongArray(copiedBalances);
+        copy.size = size;
+        return copy;
+    }
+
+    private void resize(int capacity) {
+        AtomicLongArray oldBalances = balances;
+        live = Arrays.copyOf(live, capacity);
+        balances = new AtomicLongArray(capacity);
+        for (int i = 0; i < oldBalances.length(); i++) {
+            balances.set(i, oldBalances.get(i));
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("{");
+        forEach((name, balance) -> {
+            if (builder.length() > 1) {
+                builder.append(", ");
+            }
+            builder.append(name).append('=').append(balance);
+        });
+        return builder.append('}').toString();
+    }
+}
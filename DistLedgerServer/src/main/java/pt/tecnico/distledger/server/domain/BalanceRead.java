@@ -0,0 +1,22 @@
+package pt.tecnico.distledger.server.domain;
+
+import pt.tecnico.distledger.utils.VectorClock;
+
+// A balance with the valueTS of the state it was read from
+public class BalanceRead {
+    private final long balance;
+    private final VectorClock valueTS;
+
+    public BalanceRead(long balance, VectorClock valueTS) {
+        this.balance = balance;
+        this.valueTS = valueTS;
+    }
+
+    public long getBalance() {
+        return balance;
+    }
+
+    public VectorClock getValueTS() {
+        return valueTS;
+    }
+}
@@ -0,0 +1,48 @@
+package pt.tecnico.distledger.server.domain;
+
+// An operation of a client batch as it was sent, with account names. The names only get an
+// id in the AccountNames when the operation is recorded, so a rejected operation adds
+// nothing to the dictionary.
+public class BatchEntry {
+    private final String account;
+    // null for an account creation
+    private final String destAccount;
+    private final int amount;
+
+    private BatchEntry(String account, String destAccount, int amount) {
+        this.account = account;
+        this.destAccount = destAccount;
+        this.amount = amount;
+    }
+
+    public static BatchEntry createAccount(String name) {
+        return new BatchEntry(name, null, 0);
+    }
+
+    public static BatchEntry transferTo(String from, String to, int amount) {
+        return new BatchEntry(from, to, amount);
+    }
+
+    public boolean isTransfer() {
+        return destAccount != null;
+    }
+
+    public String getAccount() {
+        return account;
+    }
+
+    public String getDestAccount() {
+        return destAccount;
+    }
+
+    public int getAmount() {
+        return amount;
+    }
+
+    @Override
+    public String toString() {
+        return isTransfer()
+                ? "BatchEntry{transfer " + amount + " from '" + account + "' to '" + destAccount + "'}"
+                : "BatchEntry{create '" + account + "'}";
+    }
+}
@@ -0,0 +1,104 @@
+package pt.tecnico.distledger.server.domain;
+
+import pt.tecnico.distledger.utils.VectorClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+// Items waiting for the valueTS to cover a timestamp, the prevTS of an operation received
+// but not executed yet or of a read ahead of the replica. Each one is indexed by a single
+// entry of its timestamp that is still ahead of the valueTS, so when the valueTS advances
+// only the items waiting on the entries that moved have to be looked at again.
+// Synchronized because items are added concurrently, e.g. user operations that cannot run
+// yet and parked reads.
+public class DependencyIndex<T> {
+    private final List<TreeMap<Integer, List<T>>> waiting = new ArrayList<>();
+    // items blocked on an entry past the replicas, no valueTS ever covers them; the services
+    // reject such timestamps, this only keeps one that gets through from being released
+    private final List<T> unreachable = new ArrayList<>();
+    private final Function<T, VectorClock> dependencies;
+    // written under the lock, read without it so an empty index costs nothing to check
+    private volatile int size = 0;
+
+    public DependencyIndex(int numReplicas, Function<T, VectorClock> dependencies) {
+        this.dependencies = dependencies;
+        for (int i = 0; i < numReplicas; i++) {
+            waiting.add(new TreeMap<>());
+        }
+    }
+
+    public synchronized void add(T item, VectorClock valueTS) {
+        VectorClock TS = dependencies.apply(item);
+        int entry = 0;
+        for (int i = 0; i < TS.size(); i++) {
+            if (TS.get(i) > valueTS.get(i)) {
+                entry = i;
+                break;
+            }
+        }
+        if (entry >= waiting.size()) {
+            unreachable.add(item);
+            size++;
+            return;
+        }
+        // an item that is not blocked is indexed on an entry valueTS already covers
+        waiting.get(entry).computeIfAbsent(TS.get(entry), k -> new ArrayList<>()).add(item);
+        size++;
+    }
+
+    // removes the items whose indexed entry is now covered by the valueTS, they may still be
+    // blocked on another entry, in which case they should be added again
+    public synchronized List<T> release(VectorClock valueTS) {
+        List<T> released = new ArrayList<>();
+        for (int i = 0; i < waiting.size(); i++) {
+            NavigableMap<Integer, List<T>> covered = waiting.get(i).headMap(valueTS.get(i), true);
+            for (List<T> items : covered.values()) {
+                released.addAll(items);
+            }
+            covered.clear();
+        }
+        size -= released.size();
+        return released;
+    }
+
+    // for an item that stopped waiting, returns false if it was released already
+    public synchronized boolean remove(T item) {
+        VectorClock TS = dependencies.apply(item);
+        for (int i = 0; i < TS.size() && i < waiting.size(); i++) {
+            Map<Integer, List<T>> index = waiting.get(i);
+            List<T> items = index.get(TS.get(i));
+            if (items != null && items.remove(item)) {
+                if (items.isEmpty()) {
+                    index.remove(TS.get(i));
+                }
+                size--;
+                return true;
+            }
+        }
+        if (unreachable.remove(item)) {
+            size--;
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized void clear() {
+        for (Map<Integer, List<T>> entry : waiting) {
+            entry.clear();
+        }
+        unreachable.clear();
+        size = 0;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+}
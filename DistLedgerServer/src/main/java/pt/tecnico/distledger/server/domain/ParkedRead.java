@@ -0,0 +1,22 @@
+package pt.tecnico.distledger.server.domain;
+
+import pt.tecnico.distledger.utils.VectorClock;
+
+// A read waiting for the valueTS to cover its prevTS, onStable runs once it does
+public class ParkedRead {
+    private final VectorClock prevTS;
+    private final Runnable onStable;
+
+    ParkedRead(VectorClock prevTS, Runnable onStable) {
+        this.prevTS = prevTS;
+        this.onStable = onStable;
+    }
+
+    VectorClock getPrevTS() {
+        return prevTS;
+    }
+
+    Runnable getOnStable() {
+        return onStable;
+    }
+}
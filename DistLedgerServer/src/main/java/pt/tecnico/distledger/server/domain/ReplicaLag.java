@@ -0,0 +1,116 @@
+package pt.tecnico.distledger.server.domain;
+
+import pt.tecnico.distledger.utils.VectorClock;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+// How far the replica is behind the operations it knows exist, in operations and in time.
+// The replica learns that a replica issued operations up to some sequence number from the
+// operations it receives and from the timestamps its peers acknowledge. The first time a
+// number is seen it is kept with the time, so the operations not executed yet can be given
+// an age: the one of the oldest number still ahead of the valueTS. Numbers are only kept
+// when they grow, and the samples of an entry the valueTS passed are dropped the next time
+// that entry grows.
+// Lock free: everything is in an immutable view that observe replaces with a compare and set,
+// and a timestamp that brings no news, the common case, allocates nothing.
+public class ReplicaLag {
+    // a replica that is far behind does not need the age of every step, only of the oldest
+    private static final int MAX_SAMPLES = 64;
+
+    private final AtomicReference<View> view;
+
+    public ReplicaLag(int numReplicas) {
+        int[][] sequences = new int[numReplicas][];
+        long[][] times = new long[numReplicas][];
+        Arrays.fill(sequences, new int[0]);
+        Arrays.fill(times, new long[0]);
+        this.view = new AtomicReference<>(new View(VectorClock.zero(numReplicas), new long[numReplicas],
+                sequences, times));
+    }
+
+    public void observe(VectorClock TS, VectorClock valueTS, long now) {
+        while (true) {
+            View current = view.get();
+            if (current.knownTS.dominates(TS)) {
+                return;
+            }
+            if (view.compareAndSet(current, current.observe(TS, valueTS, now))) {
+                return;
+            }
+        }
+    }
+
+    // the highest sequence number of each replica the replica heard of
+    public VectorClock getKnownTS() {
+        return view.get().knownTS;
+    }
+
+    // What has to be executed so that no operation the replica heard of before the given time
+    // is missing. An entry of prevTS beyond anything known is an operation the replica did not
+    // hear of since its last news of that replica, so it is as old as that news, and older
+    // than any time if there was none.
+    public VectorClock getTargetSince(VectorClock prevTS, long time) {
+        View current = view.get();
+        int[] target = new int[current.sequences.length];
+        for (int i = 0; i < target.length; i++) {
+            int[] sequences = current.sequences[i];
+            long[] times = current.times[i];
+            for (int k = 0; k < sequences.length && times[k] < time; k++) {
+                target[i] = sequences[k];
+            }
+            if (prevTS.get(i) > current.knownTS.get(i) && current.heardAt[i] < time) {
+                target[i] = Math.max(target[i], prevTS.get(i));
+            }
+        }
+        return VectorClock.of(target);
+    }
+
+    private static class View {
+        private final VectorClock knownTS;
+        // when each entry of knownTS last grew, 0 if it never did
+        private final long[] heardAt;
+        // per entry, the sequence numbers kept and when they were first seen, oldest first;
+        // the arrays of an entry that did not grow are shared with the next view
+        private final int[][] sequences;
+        private final long[][] times;
+
+        View(VectorClock knownTS, long[] heardAt, int[][] sequences, long[][] times) {
+            this.knownTS = knownTS;
+            this.heardAt = heardAt;
+            this.sequences = sequences;
+            this.times = times;
+        }
+
+        View observe(VectorClock TS, VectorClock valueTS, long now) {
+            long[] nextHeardAt = heardAt.clone();
+            int[][] nextSequences = sequences.clone();
+            long[][] nextTimes = times.clone();
+            for (int i = 0; i < sequences.length; i++) {
+                int sequence = TS.get(i);
+                if (sequence <= knownTS.get(i)) {
+                    continue;
+                }
+                int[] entrySequences = sequences[i];
+                long[] entryTimes = times[i];
+                int first = 0;
+                while (first < entrySequences.length && entrySequences[first] <= valueTS.get(i)) {
+                    first++;
+                }
+                int kept = entrySequences.length - first;
+                // when full the newest is replaced, the oldest keeps its age
+                int length = Math.min(kept + 1, MAX_SAMPLES);
+                int[] grownSequences = new int[length];
+                long[] grownTimes = new long[length];
+                System.arraycopy(entrySequences, first, grownSequences, 0, length - 1);
+                System.arraycopy(entryTimes, first, grownTimes, 0, length - 1);
+                grownSequences[length - 1] = sequence;
+                grownTimes[length - 1] = now;
+                nextSequences[i] = grownSequences;
+                nextTimes[i] = grownTimes;
+                nextHeardAt[i] = now;
+            }
+            return new View(knownTS.merge(TS), nextHeardAt, nextSequences, nextTimes);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package pt.tecnico.distledger.server.domain;
+
+import pt.tecnico.distledger.server.domain.operation.Operation;
+import pt.tecnico.distledger.utils.VectorClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+// The operations a replica has received, to drop the ones a peer sends again. An operation
+// is identified by the replica that issued it and its sequence number there, the entry of its
+// TS that differs from its prevTS. Each replica numbers its operations densely and they
+// mostly arrive in that order, so per origin only the sequence number up to which everything
+// was received is kept, plus the few numbers received ahead of a gap: a lookup is a couple of
+// comparisons and the memory does not grow with the ledger.
+// Thread safe, local operations are added concurrently.
+public class SeenOperations {
+    private static final int NO_ORIGIN = -1;
+
+    private final List<Origin> origins = new ArrayList<>();
+
+    public SeenOperations(int numReplicas) {
+        for (int i = 0; i < numReplicas; i++) {
+            origins.add(new Origin());
+        }
+    }
+
+    public boolean contains(Operation op) {
+        int origin = originOf(op);
+        return origin != NO_ORIGIN && origins.get(origin).contains(op.getTS().get(origin));
+    }
+
+    public void add(Operation op) {
+        int origin = originOf(op);
+        if (origin != NO_ORIGIN) {
+            origins.get(origin).add(op.getTS().get(origin));
+        }
+    }
+
+    // every operation covered by TS counts as received, for a replica whose replicaTS
+    // already includes them
+    public void addAll(VectorClock TS) {
+        for (int i = 0; i < origins.size(); i++) {
+            origins.get(i).addUpTo(TS.get(i));
+        }
+    }
+
+    public void reset(VectorClock TS) {
+        for (int i = 0; i < origins.size(); i++) {
+            origins.get(i).reset(TS.get(i));
+        }
+    }
+
+    // for each replica, the sequence number up to which every operation was received
+    public VectorClock getContiguousTS() {
+        int[] received = new int[origins.size()];
+        for (int i = 0; i < received.length; i++) {
+            received[i] = origins.get(i).received;
+        }
+        return VectorClock.of(received);
+    }
+
+    // sequence numbers kept because they arrived ahead of a gap
+    public int outOfOrder() {
+        int count = 0;
+        for (Origin origin : origins) {
+            count += origin.outOfOrder();
+        }
+        return count;
+    }
+
+    // Operations written by older versions may have no entry of their own, they are never
+    // taken for duplicates. So are operations of a replica beyond numReplicas.
+    private int originOf(Operation op) {
+        VectorClock TS = op.getTS();
+        VectorClock prevTS = op.getPrevTS();
+        for (int i = 0; i < TS.size() && i < origins.size(); i++) {
+            if (TS.get(i) != prevTS.get(i)) {
+                return i;
+            }
+        }
+        return NO_ORIGIN;
+    }
+
+    private static class Origin {
+        // every sequence number up to this one was received, only written under the lock
+        private volatile int received;
+        // highest sequence number received, also only written under the lock
+        private volatile int highest;
+        private final TreeSet<Integer> ahead = new TreeSet<>();
+
+        // most operations are either behind the mark or the next ones, neither takes the lock
+        boolean contains(int sequence) {
+            if (sequence <= received) {
+                return true;
+            }
+            if (sequence > highest) {
+                return false;
+            }
+            synchronized (this) {
+                return ahead.contains(sequence);
+            }
+        }
+
+        synchronized void add(int sequence) {
+            if (sequence <= received) {
+                return;
+            }
+            highest = Math.max(highest, sequence);
+            if (sequence != received + 1) {
+                ahead.add(sequence);
+                return;
+            }
+            received = sequence;
+            drain();
+        }
+
+        synchronized void addUpTo(int sequence) {
+            if (sequence <= received) {
+                return;
+            }
+            received = sequence;
+            highest = Math.max(highest, sequence);
+            ahead.headSet(sequence, true).clear();
+            drain();
+        }
+
+        // the numbers that now follow the mark are no longer ahead of a gap
+        private void drain() {
+            while (!ahead.isEmpty() && ahead.first() == received + 1) {
+                received = ahead.pollFirst();
+            }
+        }
+
+        synchronized void reset(int sequence) {
+            received = sequence;
+            highest = sequence;
+            ahead.clear();
+        }
+
+        synchronized int outOfOrder() {
+            return ahead.size();
+        }
+    }
+}
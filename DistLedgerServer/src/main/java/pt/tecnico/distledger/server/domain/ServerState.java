@@ -2,68 +2,216 @@ package pt.tecnico.distledger.server.domain;
 
 import pt.tecnico.distledger.server.domain.exceptions.*;
 import pt.tecnico.distledger.server.domain.operation.*;
+import pt.tecnico.distledger.server.persistence.WriteAheadLog;
 import pt.tecnico.distledger.utils.Logger;
+import pt.tecnico.distledger.utils.VectorClock;
 
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
-
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Concurrency: transfers and balance reads run in parallel under the read side of stateLock
+// and transfers only serialize on the stripe locks of the accounts they touch, taken in
+// stripe order. Creating or deleting accounts, gossip, garbage collection and snapshots take
+// the write side, so they see no operation half done and need no stripe locks.
+// Timestamps are immutable clocks swapped atomically.
+// Operations refer to accounts by their id in the AccountNames, account names are only
+// looked up for the requests of the clients.
 public class ServerState {
-    private boolean isActive = true;
-    private Map<String, Integer> accounts;
-    private final List<Operation> ledger;
-    private List<Integer> replicaTS = new ArrayList<>();
-    private List<Integer> valueTS = new ArrayList<>();
-    private Set<List<Integer>> registeredOps = new HashSet<List<Integer>>();
+    private volatile boolean isActive = true;
+    // cleared for good when the naming server gave our id to another server, the updates
+    // of both would share an entry of the timestamps
+    private volatile boolean acceptsUpdates = true;
+    private final AccountNames names;
+    private AccountStore accounts;
+    // operations by the order they were added, so readers can resume from an index
+    private final ConcurrentSkipListMap<Long, Operation> ledger;
+    private final Object ledgerAppendLock = new Object();
+    private long nextLedgerIndex = 0;
+    // the skip list counts its entries one by one, so the length is kept on the side
+    private final AtomicInteger ledgerSize = new AtomicInteger();
+    // called after operations are added to the ledger, e.g. to push them to the peers
+    private volatile Runnable ledgerListener = () -> { };
+    private final AtomicReference<VectorClock> replicaTS;
+    private final AtomicReference<VectorClock> valueTS;
+    // operations received, to ignore the ones a peer sends again
+    private final SeenOperations seenOps;
+    // last replicaTS acknowledged by each peer, used to send only the operations it is missing
+    private final Map<String, VectorClock> timestampTable = new ConcurrentHashMap<>();
+    // where the gossip to each peer resumes reading the ledger
+    private final Map<String, PeerCursor> peerCursors = new ConcurrentHashMap<>();
+    // operations covered by this TS were received by every replica and dropped from the ledger
+    private VectorClock checkpointTS;
+    // operations in the ledger that were not executed yet, indexed by what they wait for
+    private final DependencyIndex<Operation> pending;
+    // reads waiting for the valueTS to catch up with their client
+    private final DependencyIndex<ParkedRead> parkedReads;
+    // what the replica knows it has not executed yet, for reads that accept a stale state
+    private final ReplicaLag lag;
     private final int replicaId;
+    private final int numReplicas;
+    // null when the server runs without persistence
+    private final WriteAheadLog log;
+    private final ReentrantReadWriteLock stateLock = new ReentrantReadWriteLock();
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
     private static final String BROKER = "broker";
+    private static final long NOT_LOGGED = -1;
+    private static final int STRIPES = 1024;
 
     public ServerState(int replicaId, int numReplicas) {
-        Logger.log("Initializing ServerState");
-        this.ledger = new CopyOnWriteArrayList<>();
-        this.accounts = new ConcurrentHashMap<>();
-        Logger.log("Creating Broker Account");
-        this.addAccount(BROKER, 1000);
-        Logger.log("Broker Account created");
-        Logger.log("ServerState initialized");
+        this(replicaId, numReplicas, new AccountNames(), null);
+    }
+
+    // the log must encode its records with the same names
+    public ServerState(int replicaId, int numReplicas, AccountNames names, WriteAheadLog log) {
+        Logger.debug("Initializing ServerState");
+        this.ledger = new ConcurrentSkipListMap<>();
+        this.names = names;
+        this.accounts = new AccountStore(names);
+        Logger.debug("Creating Broker Account");
+        this.addAccount(names.idOf(BROKER), 1000);
+        Logger.debug("Broker Account created");
+        Logger.debug("ServerState initialized");
         this.replicaId = replicaId;
-        for (int i = 0; i < numReplicas; i++) {
-            this.replicaTS.add(0);
-            this.valueTS.add(0);
+        this.numReplicas = numReplicas;
+        this.pending = new DependencyIndex<>(numReplicas, Operation::getPrevTS);
+        this.parkedReads = new DependencyIndex<>(numReplicas, ParkedRead::getPrevTS);
+        this.seenOps = new SeenOperations(numReplicas);
+        this.lag = new ReplicaLag(numReplicas);
+        this.replicaTS = new AtomicReference<>(VectorClock.zero(numReplicas));
+        this.valueTS = new AtomicReference<>(VectorClock.zero(numReplicas));
+        this.checkpointTS = VectorClock.zero(numReplicas);
+        this.log = log;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
         }
     }
 
     // User Interface Operations
 
-    public synchronized void createAccount(String name, List<Integer> prevTS) {
-        Logger.log("Creating account \'" + name + "\'");
-        Logger.log("User prevTS is: " + prevTS);
-        Logger.log("Replica TS is: " + getReplicaTS());
-        if (!isActive) {
+    public void createAccount(String name, VectorClock prevTS) {
+        awaitDurable(recordCreateAccount(name, prevTS));
+    }
+
+    public void deleteAccount(String name, VectorClock prevTS) {
+        awaitDurable(recordDeleteAccount(name, prevTS));
+    }
+
+    public void transferTo(String from, String to, Integer amount, VectorClock prevTS) {
+        awaitDurable(recordTransferTo(from, to, amount, prevTS));
+    }
+
+    // Applies the operations in order under a single acquisition of the write lock and waits
+    // for the log once for all of them. Each operation depends on the one before it and on
+    // nothing else the client did not see, so every replica applies them in the same order.
+    // Returns, for each operation, null if it was applied or the exception that rejected it.
+    public List<RuntimeException> submitBatch(List<BatchEntry> operations, VectorClock prevTS) {
+        List<RuntimeException> results = new ArrayList<>(operations.size());
+        long sequence = NOT_LOGGED;
+        stateLock.writeLock().lock();
+        try {
+            if (!isActive) {
+                throw new ServerUnavailableException();
+            }
+            Logger.debug("Applying a batch of {} operations", operations.size());
+            for (BatchEntry op : operations) {
+                try {
+                    if (op.isTransfer()) {
+                        sequence = doTransferTo(op.getAccount(), op.getDestAccount(), op.getAmount(), prevTS);
+                    } else {
+                        sequence = doCreateAccount(op.getAccount(), prevTS);
+                    }
+                    // the TS the operation was given, its prevTS with the entry it took
+                    prevTS = prevTS.with(this.replicaId, this.replicaTS.get().get(this.replicaId));
+                    results.add(null);
+                } catch (RuntimeException e) {
+                    results.add(e);
+                }
+            }
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+        awaitDurable(sequence);
+        return results;
+    }
+
+    // adding or removing an account may rehash the account store, so it needs the write lock
+    private long recordCreateAccount(String name, VectorClock prevTS) {
+        stateLock.writeLock().lock();
+        try {
+            return doCreateAccount(name, prevTS);
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+    }
+
+    private long recordDeleteAccount(String name, VectorClock prevTS) {
+        stateLock.writeLock().lock();
+        try {
+            return doDeleteAccount(name, prevTS);
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+    }
+
+    private long recordTransferTo(String from, String to, Integer amount, VectorClock prevTS) {
+        stateLock.readLock().lock();
+        // both stripes are taken in index order, so two opposite transfers cannot deadlock
+        ReentrantLock first = stripeOf(from);
+        ReentrantLock second = stripeOf(to);
+        if (stripeIndex(to) < stripeIndex(from)) {
+            first = stripeOf(to);
+            second = stripeOf(from);
+        }
+        first.lock();
+        if (second != first) {
+            second.lock();
+        }
+        try {
+            return doTransferTo(from, to, amount, prevTS);
+        } finally {
+            if (second != first) {
+                second.unlock();
+            }
+            first.unlock();
+            stateLock.readLock().unlock();
+        }
+    }
+
+    private long doCreateAccount(String name, VectorClock prevTS) {
+        Logger.debug("Creating account \'{}\'", name);
+        Logger.debug("User prevTS is: {}", prevTS);
+        Logger.debug("Replica TS is: {}", this.replicaTS.get());
+        if (!isActive || !acceptsUpdates) {
             throw new ServerUnavailableException();
         }
         if (accountExists(name)) {
             throw new AccountAlreadyExistsException(name);
         }
-        CreateOp op = new CreateOp(name, prevTS, null);
-        updateReplicaTS();
-        if (TSBiggerThan(this.replicaTS, prevTS)) {
+        int id = names.idOf(name);
+        CreateOp op = new CreateOp(id, prevTS, null);
+        long sequence = recordLocal(op);
+        // the write lock keeps the replicaTS as recordLocal left it
+        if (this.replicaTS.get().dominates(prevTS)) {
             updateValueTS();
-            addAccount(name);
+            addAccount(id);
+        } else {
+            deferLocal(op);
         }
-        op.setTS(this.replicaId, this.replicaTS);
-        addOperation(op);
-        Logger.log("Account \'" + name + "\' created");
-        Logger.log("At the end, Replica TS is: " + getReplicaTS());
+        Logger.debug("Account \'{}\' created", name);
+        Logger.debug("At the end, Replica TS is: {}", this.replicaTS.get());
+        return sequence;
     }
 
-    public synchronized void deleteAccount(String name, List<Integer> prevTS) {
-        Logger.log("Deleting account \'" + name + "\'");
-        if (!isActive) {
+    private long doDeleteAccount(String name, VectorClock prevTS) {
+        Logger.debug("Deleting account \'{}\'", name);
+        if (!isActive || !acceptsUpdates) {
             throw new ServerUnavailableException();
         }
         if (name.equals(BROKER)) {
@@ -75,250 +223,678 @@ public class ServerState {
         if (getAccountBalance(name, getReplicaTS()) > 0) {
             throw new AccountHasBalanceException(name);
         }
-        DeleteOp op = new DeleteOp(name, prevTS, null);
-        if (TSBiggerThan(this.replicaTS, prevTS)) {
+        int id = names.find(name);
+        DeleteOp op = new DeleteOp(id, prevTS, null);
+        long sequence = recordLocal(op);
+        if (this.replicaTS.get().dominates(prevTS)) {
             updateValueTS();
-            removeAccount(name);
+            removeAccount(id);
+        } else {
+            deferLocal(op);
         }
-        op.setTS(this.replicaId, this.replicaTS);
-        addOperation(op);
-        Logger.log("Account \'" + name + "\' deleted");
+        Logger.debug("Account \'{}\' deleted", name);
+        return sequence;
     }
 
-    public synchronized void transferTo(String from, String to, Integer amount, List<Integer> prevTS) {
-        Logger.log("Transferring " + amount + " from \'" + from + "\' to \'" + to + "\'");
-        Logger.log("User prevTS is: " + prevTS);
-        Logger.log("Replica TS is: " + getReplicaTS());
-        if (!isActive) {
+    private long doTransferTo(String from, String to, Integer amount, VectorClock prevTS) {
+        Logger.debug("Transferring {} from \'{}\' to \'{}\'", amount, from, to);
+        Logger.debug("User prevTS is: {}", prevTS);
+        Logger.debug("Replica TS is: {}", this.replicaTS.get());
+        if (!isActive || !acceptsUpdates) {
             throw new ServerUnavailableException();
         }
         if (amount <= 0) {
             throw new InvalidAmountException();
         }
-        if (TSBiggerThan(this.replicaTS, prevTS)) {
-            if (!accountExists(from) && !accountExists(to)) {
+        boolean executed = this.replicaTS.get().dominates(prevTS);
+        int fromId;
+        int toId;
+        if (executed) {
+            fromId = accounts.find(from);
+            toId = accounts.find(to);
+            if (fromId == AccountStore.NOT_FOUND && toId == AccountStore.NOT_FOUND) {
                 throw new AccountDoesntExistException(from, to);
             }
-            if (!accountExists(from)) {
+            if (fromId == AccountStore.NOT_FOUND) {
                 throw new AccountDoesntExistException(from);
             }
-            if (!accountExists(to)) {
+            if (toId == AccountStore.NOT_FOUND) {
                 throw new AccountDoesntExistException(to);
             }
-            if (!accountHasBalance(from, amount)) {
+            if (accounts.getBalance(fromId) < amount) {
                 throw new InsufficientFundsException(from);
             }
+        } else {
+            // the accounts may be created by operations received but not executed yet, whose
+            // names are known; names never seen are not added, any client could grow the
+            // dictionary with made up ones
+            fromId = names.find(from);
+            toId = names.find(to);
+            if (fromId == AccountNames.NOT_FOUND && toId == AccountNames.NOT_FOUND) {
+                throw new AccountDoesntExistException(from, to);
+            }
+            if (fromId == AccountNames.NOT_FOUND) {
+                throw new AccountDoesntExistException(from);
+            }
+            if (toId == AccountNames.NOT_FOUND) {
+                throw new AccountDoesntExistException(to);
+            }
+        }
+        TransferOp op = new TransferOp(fromId, toId, amount, prevTS, null);
+        long sequence = recordLocal(op);
+        // the stripes of both accounts are held, so the checked balance still holds
+        if (executed) {
             updateValueTS();
-            updateAccount(from, -amount);
-            updateAccount(to, amount);
-        }
-        TransferOp op = new TransferOp(from, to, amount, prevTS, null);
-        updateReplicaTS();
-        op.setTS(this.replicaId, this.replicaTS);
-        addOperation(op);
-        Logger.log("Transfer completed");
-        Logger.log("At the end, Replica TS is: " + getReplicaTS());
-    }
-
-    public synchronized Integer getAccountBalance(String name, List<Integer> prevTS) {
-        Logger.log("Getting balance of account \'" + name + "\'");
-        Logger.log("User prevTS is: " + prevTS);
-        Logger.log("Replica TS is: " + getReplicaTS());
-        if (!isActive) {
-            throw new ServerUnavailableException();
+            accounts.addToBalance(fromId, -amount);
+            accounts.addToBalance(toId, amount);
+        } else {
+            deferLocal(op);
         }
-        if (!TSBiggerThan(this.replicaTS, prevTS)) {
-            throw new OperationNotStableException();
+        Logger.debug("Transfer completed");
+        Logger.debug("At the end, Replica TS is: {}", this.replicaTS.get());
+        return sequence;
+    }
+
+    public long getAccountBalance(String name, VectorClock prevTS) {
+        stateLock.readLock().lock();
+        try {
+            Logger.debug("Getting balance of account \'{}\'", name);
+            Logger.debug("User prevTS is: {}", prevTS);
+            Logger.debug("Replica TS is: {}", this.replicaTS.get());
+            if (!isActive) {
+                throw new ServerUnavailableException();
+            }
+            if (!this.replicaTS.get().dominates(prevTS)) {
+                throw new OperationNotStableException();
+            }
+            int id = accounts.find(name);
+            if (id == AccountStore.NOT_FOUND) {
+                throw new AccountDoesntExistException(name);
+            }
+            return accounts.getBalance(id);
+        } finally {
+            stateLock.readLock().unlock();
         }
-        if (!accountExists(name)) {
-            throw new AccountDoesntExistException(name);
+    }
+
+    // What a read that accepts the bound has to wait for: the empty clock when the replica is
+    // within the bound of the operations the client has seen and of the ones the replica
+    // knows were issued, otherwise the smallest valueTS that is. That covers every operation
+    // known for longer than maxMillis and leaves at most maxOperations of the others out.
+    public VectorClock getReadTarget(VectorClock prevTS, StalenessBound bound) {
+        if (bound.isAny()) {
+            return VectorClock.empty();
+        }
+        VectorClock value = this.valueTS.get();
+        // the replicaTS adds the operations issued here, the ones waiting are observed by lag
+        VectorClock known = prevTS.merge(lag.getKnownTS()).merge(this.replicaTS.get());
+        VectorClock target = value;
+        if (bound.limitsMillis()) {
+            target = target.merge(lag.getTargetSince(prevTS, System.currentTimeMillis() - bound.getMaxMillis()));
+        }
+        if (bound.limitsOperations()) {
+            int excess = countAhead(known, target) - bound.getMaxOperations();
+            for (int i = 0; i < known.size() && excess > 0; i++) {
+                int missing = Math.min(excess, known.get(i) - target.get(i));
+                if (missing > 0) {
+                    target = target.with(i, target.get(i) + missing);
+                    excess -= missing;
+                }
+            }
+        }
+        if (value.dominates(target)) {
+            return VectorClock.empty();
+        }
+        Logger.debug("Replica is not within {} of {}, waiting for value TS {}", bound, known, target);
+        return target;
+    }
+
+    // The balance as the replica has it, whatever its valueTS, with that valueTS
+    public BalanceRead readAccountBalance(String name) {
+        stateLock.readLock().lock();
+        // a transfer updates the balances and the valueTS holding the stripes of its accounts,
+        // so under the stripe of this one the two agree
+        ReentrantLock stripe = stripeOf(name);
+        stripe.lock();
+        try {
+            if (!isActive) {
+                throw new ServerUnavailableException();
+            }
+            int id = accounts.find(name);
+            if (id == AccountStore.NOT_FOUND) {
+                throw new AccountDoesntExistException(name);
+            }
+            return new BalanceRead(accounts.getBalance(id), this.valueTS.get());
+        } finally {
+            stripe.unlock();
+            stateLock.readLock().unlock();
         }
-        Logger.log("At the end, Replica TS is: " + getReplicaTS());
-        return accounts.get(name);
     }
 
     // Admin interface operations
 
-    public synchronized void activate() {
-        Logger.log("Admin activating server");
+    public void stopUpdates() {
+        Logger.warn("No longer accepting updates");
+        this.acceptsUpdates = false;
+    }
+
+    public void activate() {
+        Logger.debug("Admin activating server");
         this.isActive = true;
-        Logger.log("Server activated");
+        Logger.debug("Server activated");
     }
 
-    public synchronized void deactivate() {
-        Logger.log("Admin deactivating server");
+    public void deactivate() {
+        Logger.debug("Admin deactivating server");
         this.isActive = false;
-        Logger.log("Server deactivated");
+        Logger.debug("Server deactivated");
     }
 
-    public synchronized List<Operation> getLedgerState() {
-        Logger.log("Admin Getting ledger");
-        return getLedger();
+    public List<Operation> getLedgerState() {
+        Logger.debug("Admin Getting ledger");
+        stateLock.readLock().lock();
+        try {
+            return getLedger();
+        } finally {
+            stateLock.readLock().unlock();
+        }
     }
 
     // Propagate ledger operations
 
-    public synchronized void propagateState(List<Operation> ledger, List<Integer> propagatedTS) {
-        for (Operation op : ledger) {
-            if (registeredOps.contains(op.getTS())) { // duplicate operation
-                Logger.log("Ignoring duplicate operation " + op.toString());
-                continue;
+    // Reads the ledger without the state lock, like the replication channels: an operation
+    // reaches the ledger before the replicaTS covers it, so a caller that reads the replicaTS
+    // first never claims one it did not send. The ledger before the peer's cursor is covered
+    // by what it acknowledged, so each round only reads from the first operation it missed.
+    public List<Operation> getOperationsMissingFrom(String peer) {
+        VectorClock peerTS = timestampTable.get(peer);
+        if (peerTS == null) {
+            Logger.debug("No timestamp known for peer {}, sending whole ledger", peer);
+            return getLedger();
+        }
+        // a peer that lost its state acknowledges less than the cursor was taken for
+        PeerCursor cursor = peerCursors.get(peer);
+        long from = cursor != null && peerTS.dominates(cursor.peerTS) ? cursor.index : 0;
+        long covered = from;
+        List<Operation> missing = new ArrayList<>();
+        for (Map.Entry<Long, Operation> entry : ledger.tailMap(from).entrySet()) {
+            Operation op = entry.getValue();
+            if (!peerTS.dominates(op.getTS())) {
+                missing.add(op);
+            } else if (missing.isEmpty()) {
+                covered = entry.getKey() + 1;
+            }
+        }
+        peerCursors.put(peer, new PeerCursor(peerTS, covered));
+        Logger.debug("Peer {} with TS {} is missing {} operations", peer, peerTS, missing.size());
+        return missing;
+    }
+
+    public void updatePeerTS(String peer, VectorClock peerTS) {
+        if (peerTS.size() != numReplicas) {
+            return; // peer did not report its timestamp
+        }
+        // the peer's answer replaces what we knew, so a peer that lost its state gets the whole ledger again
+        Logger.debug("Peer {} acknowledged TS {}", peer, peerTS);
+        timestampTable.put(peer, peerTS);
+        lag.observe(peerTS, this.valueTS.get(), System.currentTimeMillis());
+    }
+
+    // operations the most outdated peer has not acknowledged yet, a peer we never heard from
+    // is counted as having nothing
+    public int getReplicationBacklog() {
+        VectorClock TS = this.replicaTS.get();
+        int backlog = timestampTable.size() < numReplicas - 1 ? countAhead(TS, VectorClock.empty()) : 0;
+        for (VectorClock peerTS : timestampTable.values()) {
+            backlog = Math.max(backlog, countAhead(TS, peerTS));
+        }
+        return backlog;
+    }
+
+    private static int countAhead(VectorClock TS, VectorClock peerTS) {
+        int ahead = 0;
+        for (int i = 0; i < TS.size(); i++) {
+            ahead += Math.max(0, TS.get(i) - peerTS.get(i));
+        }
+        return ahead;
+    }
+
+    public void propagateState(List<Operation> ledger, VectorClock propagatedTS) {
+        awaitDurable(recordPropagatedState(ledger, propagatedTS));
+    }
+
+    private long recordPropagatedState(List<Operation> ledger, VectorClock propagatedTS) {
+        stateLock.writeLock().lock();
+        try {
+            long sequence = NOT_LOGGED;
+            for (Operation op : ledger) {
+                // duplicate operation, either still in the ledger or already collected
+                if (seenOps.contains(op) || this.checkpointTS.dominates(op.getTS())) {
+                    Logger.debug("Ignoring duplicate operation {}", op);
+                    continue;
+                }
+                Logger.debug("Adding propagated operation {}", op);
+                sequence = addOperation(op);
+                pending.add(op, this.valueTS.get());
             }
-            Logger.log("Adding propagated operation " + op.toString());
-            addOperation(op);
-        }
-        Logger.log("Merging propagated TS " + propagatedTS + " with replica TS " + this.replicaTS);
-        mergeReplicaTS(propagatedTS);
-        Logger.log("State propagated, now going to execute ledger");
-        boolean noMoreExecutions = false;
-        // now we will go through all operations in the ledger and execute them if they
-        // are stable, updating the replicaTS after each execution
-        while (!noMoreExecutions) {
-            noMoreExecutions = true;
-            for (Operation op : getLedger()) {
-                Logger.log("Checking operation " + op.toString() + " for execution");
-                if (TSBiggerThan(this.valueTS, op.getTS())) {
-                    Logger.log("Ignoring operation " + op.toString() + " because it was already executed");
+            Logger.debug("Merging propagated TS {} with replica TS {}", propagatedTS, this.replicaTS.get());
+            mergeReplicaTS(propagatedTS);
+            lag.observe(propagatedTS, this.valueTS.get(), System.currentTimeMillis());
+            Logger.debug("State propagated, now going to execute ledger");
+            executeStableOperations();
+            return sequence;
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+    }
+
+    // must hold the write lock
+    private void executeStableOperations() {
+        // only the operations waiting on entries the valueTS already covers are looked at,
+        // executing them advances the valueTS and may release more operations
+        List<Operation> released = pending.release(this.valueTS.get());
+        while (!released.isEmpty()) {
+            for (Operation op : released) {
+                Logger.debug("Checking operation {} for execution", op);
+                if (this.valueTS.get().dominates(op.getTS())) {
+                    Logger.debug("Ignoring operation {} because it was already executed", op);
                     continue; // ignore operations already executed
                 }
-                if (TSBiggerThan(this.valueTS, op.getPrevTS())) { // prevTS < valueTS -> we can execute the operation
-                    Logger.log("Executing propagated operation " + op.toString());
-                    op.executeOperation(this);
-                    // set operation TS if it is uninitialized
-                    Logger.log("Merging propagated TS " + op.getTS() + " with replica TS " + this.replicaTS);
-                    mergeValueTS(op.getTS());
-                    noMoreExecutions = false; // if we can perform an operation, we need to go through the ledger again
+                if (!this.valueTS.get().dominates(op.getPrevTS())) {
+                    pending.add(op, this.valueTS.get()); // still waiting on another entry
+                    continue;
+                }
+                Logger.debug("Executing propagated operation {}", op);
+                op.executeOperation(this);
+                Logger.debug("Merging propagated TS {} with value TS {}", op.getTS(), this.valueTS.get());
+                mergeValueTS(op.getTS());
+            }
+            released = pending.release(this.valueTS.get());
+        }
+        Logger.debug("{} operations still waiting for execution", pending.size());
+    }
+
+    // Persistence
+
+    public StateSnapshot takeSnapshot() {
+        stateLock.writeLock().lock();
+        try {
+            Logger.debug("Taking snapshot of {} accounts and {} operations", accounts.size(), ledger.size());
+            return new StateSnapshot(this.accounts.copy(), getLedger(), this.replicaTS.get(),
+                    this.valueTS.get(), this.checkpointTS, log != null ? log.getNextSequence() : 0);
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+    }
+
+    public void installSnapshot(StateSnapshot snapshot) {
+        stateLock.writeLock().lock();
+        try {
+            Logger.debug("Installing {}", snapshot);
+            if (snapshot.getAccounts().getNames() != this.names) {
+                // the ids of its operations would mean other accounts here
+                throw new IllegalArgumentException("Snapshot was read with another account dictionary");
+            }
+            this.accounts = snapshot.getAccounts().copy();
+            this.ledger.clear();
+            this.ledgerSize.set(0);
+            this.pending.clear();
+            this.replicaTS.set(snapshot.getReplicaTS());
+            this.valueTS.set(snapshot.getValueTS());
+            releaseParkedReads();
+            this.checkpointTS = snapshot.getCheckpointTS();
+            // the operations the checkpoint covers were all received before being collected
+            this.seenOps.reset(this.checkpointTS);
+            for (Operation op : snapshot.getLedger()) {
+                appendToLedger(op);
+                seenOps.add(op);
+                if (!snapshot.getValueTS().dominates(op.getTS())) {
+                    pending.add(op, snapshot.getValueTS());
+                }
+            }
+            executeStableOperations();
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+    }
+
+    // rebuilds the state from the last snapshot (if any) and the log records written after it
+    public void recover(StateSnapshot snapshot, List<Operation> operations) {
+        stateLock.writeLock().lock();
+        try {
+            if (snapshot != null) {
+                installSnapshot(snapshot);
+            }
+            Logger.debug("Recovering {} operations from the log", operations.size());
+            for (Operation op : operations) {
+                if (seenOps.contains(op) || this.checkpointTS.dominates(op.getTS())) {
+                    continue;
                 }
+                appendToLedger(op);
+                seenOps.add(op);
+                pending.add(op, this.valueTS.get());
+                mergeReplicaTS(op.getTS());
             }
+            executeStableOperations();
+            Logger.debug("Recovered state with replica TS {} and value TS {}", this.replicaTS.get(),
+                    this.valueTS.get());
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+    }
+
+    private void awaitDurable(long sequence) {
+        // the state locks were released already, so other writers can join the same fsync
+        if (log != null && sequence != NOT_LOGGED) {
+            log.awaitDurable(sequence);
+        }
+    }
+
+    // Ledger garbage collection
+
+    // The cut is taken over every peer that ever acknowledged, registered or not: a replica
+    // whose lease expired or that is restarting comes back expecting the operations it had not
+    // received, and only the ledger can give them to it. So it holds the ledger until it does.
+    public void collectStableOperations() {
+        if (timestampTable.size() < numReplicas - 1) {
+            Logger.debug("Not every replica acknowledged our state yet, keeping the whole ledger");
+            return;
+        }
+        stateLock.writeLock().lock();
+        try {
+            // an operation is stable once we executed it and every peer has received it
+            VectorClock cut = this.valueTS.get();
+            for (VectorClock peerTS : timestampTable.values()) {
+                cut = cut.meet(peerTS);
+            }
+            VectorClock stableTS = cut;
+            Logger.debug("Collecting operations covered by stable TS {}", stableTS);
+            List<Operation> stable = new ArrayList<>();
+            for (Operation op : ledger.values()) {
+                if (stableTS.dominates(op.getTS())) {
+                    stable.add(op);
+                }
+            }
+            if (stable.isEmpty()) {
+                return;
+            }
+            // the balances already reflect these operations, so we only need to remember the checkpoint
+            for (Operation op : stable) {
+                mergeCheckpointTS(op.getTS());
+            }
+            // sequence numbers still waiting behind a gap the checkpoint closed are dropped
+            seenOps.addAll(this.checkpointTS);
+            ledger.values().removeIf(op -> stableTS.dominates(op.getTS()));
+            ledgerSize.addAndGet(-stable.size());
+            Logger.debug("Dropped {} stable operations, checkpoint TS is {}, {} received ahead of a gap",
+                    stable.size(), this.checkpointTS, seenOps.outOfOrder());
+        } finally {
+            stateLock.writeLock().unlock();
         }
     }
 
     // Operation execution methods
 
     public void executeOperation(CreateOp op) {
-        Logger.log("Executing create operation");
-        if (accountExists(op.getAccount())) {
+        Logger.debug("Executing create operation");
+        if (accounts.contains(op.getAccount())) {
             return;
         }
         addAccount(op.getAccount());
     }
 
     public void executeOperation(DeleteOp op) {
-        Logger.log("Executing delete operation");
+        Logger.debug("Executing delete operation");
         removeAccount(op.getAccount());
     }
 
     public void executeOperation(TransferOp op) {
-        Logger.log("Executing transfer operation");
-        String from = op.getAccount();
-        String to = op.getDestAccount();
-        Integer amount = op.getAmount();
-        if (!accountExists(from) && !accountExists(to)) {
-            return;
-        }
-        if (!accountExists(from)) {
-            return;
-        }
-        if (!accountExists(to)) {
+        Logger.debug("Executing transfer operation");
+        int from = op.getAccount();
+        int to = op.getDestAccount();
+        if (!accounts.contains(from) || !accounts.contains(to)) {
             return;
         }
-        if (!accountHasBalance(from, amount)) {
+        if (accounts.getBalance(from) < op.getAmount()) {
             return;
         }
-        updateAccount(op.getAccount(), -op.getAmount());
-        updateAccount(op.getDestAccount(), op.getAmount());
+        accounts.addToBalance(from, -op.getAmount());
+        accounts.addToBalance(to, op.getAmount());
     }
 
     // Timestamp manipulation methods
 
-    private void addOperation(Operation op) {
-        Logger.log("Adding operation " + op.toString() + " to ledger");
-        this.ledger.add(op);
-        registeredOps.add(op.getTS());
-        Logger.log("Operation added");
+    // the operation is logged first: one the log refuses is neither applied nor sent on
+    private long addOperation(Operation op) {
+        Logger.debug("Adding operation {} to ledger", op);
+        long sequence = log != null ? log.append(op) : NOT_LOGGED;
+        appendToLedger(op);
+        seenOps.add(op);
+        Logger.debug("Operation added");
+        ledgerListener.run();
+        return sequence;
     }
 
-    private void updateReplicaTS() {
-        replicaTS.set(this.replicaId, this.replicaTS.get(this.replicaId) + 1);
+    private void appendToLedger(Operation op) {
+        // indexes are handed out and inserted under one lock, so a reader that sees an index
+        // also sees every lower one
+        synchronized (ledgerAppendLock) {
+            ledger.put(nextLedgerIndex++, op);
+            ledgerSize.incrementAndGet();
+        }
     }
 
-    private void mergeReplicaTS(List<Integer> TS) {
-        for (int i = 0; i < TS.size(); i++) {
-            if (TS.get(i) > this.replicaTS.get(i)) {
-                this.replicaTS.set(i, TS.get(i));
-            }
+    // Gives an update issued here the next entry of this replica and appends it to the ledger
+    // in one step under ledgerAppendLock, so the updates of this replica reach the ledger in
+    // the order of their TS and a reader never sees one before an older one. The replicaTS
+    // only covers the update once it is in the ledger; its other changes hold the write lock.
+    // An update the log refuses takes no entry and is not applied, the caller applies it after.
+    private long recordLocal(Operation op) {
+        long sequence;
+        synchronized (ledgerAppendLock) {
+            VectorClock TS = this.replicaTS.get().increment(this.replicaId);
+            op.setTS(this.replicaId, TS);
+            sequence = log != null ? log.append(op) : NOT_LOGGED;
+            appendToLedger(op);
+            seenOps.add(op);
+            this.replicaTS.set(TS);
         }
+        ledgerListener.run();
+        return sequence;
+    }
+
+    // an update issued here that waits for its dependencies, it is known but not executed
+    // like the operations received from peers, so it counts for stale reads
+    private void deferLocal(Operation op) {
+        pending.add(op, this.valueTS.get());
+        lag.observe(op.getTS(), this.valueTS.get(), System.currentTimeMillis());
+    }
+
+    private void mergeReplicaTS(VectorClock TS) {
+        this.replicaTS.updateAndGet(current -> current.merge(TS));
     }
 
     private void updateValueTS() {
-        valueTS.set(this.replicaId, this.valueTS.get(this.replicaId) + 1);
+        this.valueTS.updateAndGet(TS -> TS.increment(this.replicaId));
+        releaseParkedReads();
     }
 
-    private void mergeValueTS(List<Integer> TS) {
-        for (int i = 0; i < TS.size(); i++) {
-            if (TS.get(i) > this.valueTS.get(i)) {
-                this.valueTS.set(i, TS.get(i));
-            }
+    private void mergeValueTS(VectorClock TS) {
+        this.valueTS.updateAndGet(current -> current.merge(TS));
+        releaseParkedReads();
+    }
+
+    // Runs onStable once the valueTS covers prevTS, right away if it already does, on the
+    // thread that advanced the valueTS, so it should only hand the read over to another thread.
+    // Returns the parked read, for a caller that stops waiting to cancel it, or null if
+    // onStable already ran.
+    public ParkedRead whenStable(VectorClock prevTS, Runnable onStable) {
+        if (this.valueTS.get().dominates(prevTS)) {
+            onStable.run();
+            return null;
         }
+        ParkedRead read = new ParkedRead(prevTS, onStable);
+        parkedReads.add(read, this.valueTS.get());
+        // the valueTS may have moved before the read was parked
+        releaseParkedReads();
+        return read;
     }
 
-    private boolean TSBiggerThan(List<Integer> TS1, List<Integer> TS2) {
-        for (int i = 0; i < TS1.size(); i++) {
-            if (TS1.get(i) < TS2.get(i)) {
-                return false;
-            }
+    public void cancelParkedRead(ParkedRead read) {
+        if (read != null) {
+            parkedReads.remove(read);
         }
-        return true;
+    }
+
+    private void releaseParkedReads() {
+        VectorClock TS;
+        do {
+            if (parkedReads.isEmpty()) {
+                return;
+            }
+            TS = this.valueTS.get();
+            for (ParkedRead read : parkedReads.release(TS)) {
+                if (TS.dominates(read.getPrevTS())) {
+                    read.getOnStable().run();
+                } else {
+                    parkedReads.add(read, TS); // still waiting on another entry
+                }
+            }
+            // a read parked again may have missed a valueTS that moved meanwhile
+        } while (this.valueTS.get() != TS);
+    }
+
+    private void mergeCheckpointTS(VectorClock TS) {
+        this.checkpointTS = this.checkpointTS.merge(TS);
     }
 
     // Getters and Setters
 
-    private void addAccount(String name) {
-        this.accounts.put(name, 0);
+    private void addAccount(int id) {
+        this.accounts.create(id, 0);
     }
 
-    private void addAccount(String name, int amount) {
-        this.accounts.put(name, amount);
+    private void addAccount(int id, long amount) {
+        this.accounts.create(id, amount);
     }
 
-    private void removeAccount(String name) {
-        this.accounts.remove(name);
+    private void removeAccount(int id) {
+        this.accounts.remove(id);
     }
 
-    private void updateAccount(String name, int amount) {
-        accounts.put(name, accounts.get(name) + amount);
+    public AccountNames getAccountNames() {
+        return this.names;
     }
 
     private List<Operation> getLedger() {
         // create a copy of the ledger to avoid concurrent modification
-        List<Operation> ledgerCopy = new CopyOnWriteArrayList<>();
-        ledgerCopy.addAll(ledger);
-        return ledgerCopy;
+        return new ArrayList<>(ledger.values());
+    }
+
+    // Adds to the list up to maxOperations operations from the given ledger index onwards,
+    // skipping the ones covered by skipTS (may be null). Returns the index to resume from.
+    public long readLedger(long fromIndex, int maxOperations, VectorClock skipTS, List<Operation> operations) {
+        long next = fromIndex;
+        int read = 0;
+        for (Map.Entry<Long, Operation> entry : ledger.tailMap(fromIndex).entrySet()) {
+            if (read == maxOperations) {
+                break;
+            }
+            next = entry.getKey() + 1;
+            Operation op = entry.getValue();
+            if (skipTS == null || !skipTS.dominates(op.getTS())) {
+                operations.add(op);
+                read++;
+            }
+        }
+        return next;
+    }
+
+    public void setLedgerListener(Runnable ledgerListener) {
+        this.ledgerListener = ledgerListener;
+    }
+
+    // last replicaTS the peer acknowledged, null if it never did
+    public VectorClock getPeerTS(String peer) {
+        return timestampTable.get(peer);
+    }
+
+    // the clock is immutable, so callers can keep it after the lock is released
+    public VectorClock getReplicaTS() {
+        return this.replicaTS.get();
     }
 
-    public synchronized List<Integer> getReplicaTS() {
-        return this.replicaTS;
+    public int getReplicaId() {
+        return this.replicaId;
+    }
+
+    public int getNumReplicas() {
+        return this.numReplicas;
+    }
+
+    public VectorClock getValueTS() {
+        return this.valueTS.get();
+    }
+
+    public int getLedgerSize() {
+        return ledgerSize.get();
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public int getParkedReadCount() {
+        return parkedReads.size();
+    }
+
+    // operations received but not executed yet, how far the valueTS is behind the replicaTS
+    public int getUnexecutedCount() {
+        return countAhead(this.replicaTS.get(), this.valueTS.get());
     }
 
     // Checker methods
 
-    public synchronized boolean isActive() {
+    public boolean isActive() {
         return this.isActive;
     }
 
     private boolean accountExists(String name) {
-        return accounts.get(name) != null;
+        return accounts.find(name) != AccountStore.NOT_FOUND;
+    }
+
+    // Stripe locks
+
+    private int stripeIndex(String name) {
+        int hash = name.hashCode();
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
     }
 
-    private boolean accountHasBalance(String name, int amount) {
-        return accounts.get(name) >= amount;
+    private ReentrantLock stripeOf(String name) {
+        return stripes[stripeIndex(name)];
+    }
+
+    // every operation before index in the ledger is covered by peerTS
+    private static final class PeerCursor {
+        private final VectorClock peerTS;
+        private final long index;
+
+        private PeerCursor(VectorClock peerTS, long index) {
+            this.peerTS = peerTS;
+            this.index = index;
+        }
     }
 
     @Override
-    public synchronized String toString() {
-        return "ServerState{" +
-                "ledger=" + ledger +
-                ", accounts=" + accounts +
-                '}';
+    public String toString() {
+        stateLock.readLock().lock();
+        try {
+            return "ServerState{" +
+                    "ledger=" + ledger.values() +
+                    ", accounts=" + accounts +
+                    '}';
+        } finally {
+            stateLock.readLock().unlock();
+        }
     }
 }
@@ -0,0 +1,44 @@
+package pt.tecnico.distledger.server.domain;
+
+// How far behind a balance read may be answered from: at most maxOperations operations and
+// maxMillis milliseconds behind, NO_LIMIT (any negative value) for no limit on either, so 0
+// asks for nothing missing. A bound without limits accepts any state of the replica.
+public class StalenessBound {
+    public static final int NO_LIMIT = -1;
+
+    private final int maxOperations;
+    private final long maxMillis;
+
+    public StalenessBound(int maxOperations, long maxMillis) {
+        this.maxOperations = maxOperations;
+        this.maxMillis = maxMillis;
+    }
+
+    public boolean isAny() {
+        return !limitsOperations() && !limitsMillis();
+    }
+
+    public boolean limitsOperations() {
+        return maxOperations >= 0;
+    }
+
+    public boolean limitsMillis() {
+        return maxMillis >= 0;
+    }
+
+    public int getMaxOperations() {
+        return maxOperations;
+    }
+
+    public long getMaxMillis() {
+        return maxMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "StalenessBound{" +
+                "maxOperations=" + maxOperations +
+                ", maxMillis=" + maxMillis +
+                '}';
+    }
+}
@@ -0,0 +1,60 @@
+package pt.tecnico.distledger.server.domain;
+
+import pt.tecnico.distledger.server.domain.operation.Operation;
+import pt.tecnico.distledger.utils.VectorClock;
+
+import java.util.List;
+
+public class StateSnapshot {
+    private final AccountStore accounts;
+    private final List<Operation> ledger;
+    private final VectorClock replicaTS;
+    private final VectorClock valueTS;
+    private final VectorClock checkpointTS;
+    // first write-ahead log record not included in the snapshot
+    private final long logSequence;
+
+    public StateSnapshot(AccountStore accounts, List<Operation> ledger, VectorClock replicaTS,
+            VectorClock valueTS, VectorClock checkpointTS, long logSequence) {
+        this.accounts = accounts;
+        this.ledger = ledger;
+        this.replicaTS = replicaTS;
+        this.valueTS = valueTS;
+        this.checkpointTS = checkpointTS;
+        this.logSequence = logSequence;
+    }
+
+    public AccountStore getAccounts() {
+        return accounts;
+    }
+
+    public List<Operation> getLedger() {
+        return ledger;
+    }
+
+    public VectorClock getReplicaTS() {
+        return replicaTS;
+    }
+
+    public VectorClock getValueTS() {
+        return valueTS;
+    }
+
+    public VectorClock getCheckpointTS() {
+        return checkpointTS;
+    }
+
+    public long getLogSequence() {
+        return logSequence;
+    }
+
+    @Override
+    public String toString() {
+        return "StateSnapshot{" +
+                "accounts=" + accounts.size() +
+                ", ledger=" + ledger.size() +
+                ", replicaTS=" + replicaTS +
+                ", valueTS=" + valueTS +
+                '}';
+    }
+}
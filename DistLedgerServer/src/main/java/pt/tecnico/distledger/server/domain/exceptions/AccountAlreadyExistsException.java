@@ -5,6 +5,6 @@ import pt.tecnico.distledger.utils.Logger;
 public class AccountAlreadyExistsException extends RuntimeException {
     public AccountAlreadyExistsException(String name) {
         super("Account " + name + " already exists");
-        Logger.log(getMessage());
+        Logger.debug(getMessage());
     }
 }
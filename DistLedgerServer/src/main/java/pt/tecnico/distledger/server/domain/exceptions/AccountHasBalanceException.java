@@ -5,11 +5,11 @@ import pt.tecnico.distledger.utils.Logger;
 public class AccountHasBalanceException extends RuntimeException {
     public AccountHasBalanceException() {
         super("Cannot delete account, it has balance remaining");
-        Logger.log(getMessage());
+        Logger.debug(getMessage());
     }
 
     public AccountHasBalanceException(String name) {
         super("Cannot delete account, " + name + " has balance remaining");
-        Logger.log(getMessage());
+        Logger.debug(getMessage());
     }
 }
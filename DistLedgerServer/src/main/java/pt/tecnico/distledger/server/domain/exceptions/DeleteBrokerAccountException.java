@@ -5,6 +5,6 @@ import pt.tecnico.distledger.utils.Logger;
 public class DeleteBrokerAccountException extends RuntimeException {
     public DeleteBrokerAccountException(String name) {
         super("Account " + name + " cannot be deleted");
-        Logger.log(getMessage());
+        Logger.debug(getMessage());
     }
 }
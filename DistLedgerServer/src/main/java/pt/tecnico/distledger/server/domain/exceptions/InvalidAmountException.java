@@ -5,6 +5,6 @@ import pt.tecnico.distledger.utils.Logger;
 public class InvalidAmountException extends RuntimeException {
     public InvalidAmountException() {
         super("Amount must be greater than 0");
-        Logger.log(getMessage());
+        Logger.debug(getMessage());
     }
 }
@@ -5,6 +5,6 @@ import pt.tecnico.distledger.utils.Logger;
 public class OperationNotStableException extends RuntimeException {
     public OperationNotStableException() {
         super("Cannot perform operation, server is not stable");
-        Logger.log(getMessage());
+        Logger.debug(getMessage());
     }
 }
@@ -0,0 +1,10 @@
+package pt.tecnico.distledger.server.domain.exceptions;
+
+import pt.tecnico.distledger.utils.Logger;
+
+public class PersistenceFailedException extends RuntimeException {
+    public PersistenceFailedException(Throwable cause) {
+        super("Failed to persist server state", cause);
+        Logger.debug("{}: {}", getMessage(), cause);
+    }
+}
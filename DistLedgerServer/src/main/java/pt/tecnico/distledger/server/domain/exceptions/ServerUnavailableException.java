@@ -5,6 +5,6 @@ import pt.tecnico.distledger.utils.Logger;
 public class ServerUnavailableException extends RuntimeException {
     public ServerUnavailableException() {
         super("UNAVAILABLE");
-        Logger.log("Server unavailable");
+        Logger.debug("Server unavailable");
     }
 }
@@ -2,12 +2,11 @@ package pt.tecnico.distledger.server.domain.operation;
 
 import pt.tecnico.distledger.server.domain.ServerState;
 import pt.tecnico.distledger.server.Serializer;
-
-import java.util.List;
+import pt.tecnico.distledger.utils.VectorClock;
 
 public class CreateOp extends Operation {
 
-    public CreateOp(String account, List<Integer> prevTS, List<Integer> TS) {
+    public CreateOp(int account, VectorClock prevTS, VectorClock TS) {
         super(account, prevTS, TS);
     }
 
@@ -24,7 +23,7 @@ public class CreateOp extends Operation {
     @Override
     public String toString() {
         return "CreateOp{" +
-                "account='" + getAccount() + '\'' +
+                "account=" + getAccount() +
                 '}';
     }
 }
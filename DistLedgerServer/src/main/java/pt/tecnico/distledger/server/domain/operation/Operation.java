@@ -3,8 +3,8 @@ package pt.tecnico.distledger.server.domain.operation;
 import pt.tecnico.distledger.server.Serializer;
 import pt.tecnico.distledger.server.domain.ServerState;
 
-import java.util.List;
-import java.util.ArrayList;
+import pt.tecnico.distledger.utils.Logger;
+import pt.tecnico.distledger.utils.VectorClock;
 
 public abstract class Operation {
 
@@ -14,35 +14,32 @@ public abstract class Operation {
         TRANSFER_TO
     }
 
-    private String account;
+    // id in the replica's AccountNames
+    private int account;
 
-    private List<Integer> prevTS = new ArrayList<>();
-    private List<Integer> TS = new ArrayList<>();
+    private VectorClock prevTS;
+    private VectorClock TS;
 
-    public Operation(String fromAccount, List<Integer> prevTS, List<Integer> TS) {
+    public Operation(int fromAccount, VectorClock prevTS, VectorClock TS) {
         this.account = fromAccount;
         this.prevTS = prevTS;
         this.TS = TS;
     }
 
-    public List<Integer> getPrevTS() {
+    public VectorClock getPrevTS() {
         return this.prevTS;
     }
 
-    public List<Integer> getTS() {
+    public VectorClock getTS() {
         return this.TS;
     }
 
-    public void setTS(int index, List<Integer> ReplicaTS) {
-        this.TS = new ArrayList<>();
-        System.out.println("Setting TS for " + this.account + " to " + ReplicaTS.get(index));
-        for (int i = 0; i < this.prevTS.size(); i++) {
-            this.TS.add(this.prevTS.get(i));
-        }
-        this.TS.set(index, ReplicaTS.get(index));
+    public void setTS(int index, VectorClock ReplicaTS) {
+        Logger.debug("Setting TS for {} to {}", this.account, ReplicaTS.get(index));
+        this.TS = this.prevTS.with(index, ReplicaTS.get(index));
     }
 
-    public String getAccount() {
+    public int getAccount() {
         return this.account;
     }
 
@@ -53,7 +50,7 @@ public abstract class Operation {
     @Override
     public String toString() {
         return "Operation{" +
-                "account='" + getAccount() + '\'' +
+                "account=" + getAccount() +
                 '}';
     }
 }
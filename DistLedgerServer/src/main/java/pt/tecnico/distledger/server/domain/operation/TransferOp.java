@@ -1,21 +1,20 @@
 package pt.tecnico.distledger.server.domain.operation;
 
 import pt.tecnico.distledger.server.Serializer;
+import pt.tecnico.distledger.utils.VectorClock;
 import pt.tecnico.distledger.server.domain.ServerState;
 
-import java.util.List;
-
 public class TransferOp extends Operation {
-    private String destAccount;
+    private int destAccount;
     private int amount;
 
-    public TransferOp(String fromAccount, String destAccount, int amount, List<Integer> prevTS, List<Integer> TS) {
+    public TransferOp(int fromAccount, int destAccount, int amount, VectorClock prevTS, VectorClock TS) {
         super(fromAccount, prevTS, TS);
         this.destAccount = destAccount;
         this.amount = amount;
     }
 
-    public String getDestAccount() {
+    public int getDestAccount() {
         return destAccount;
     }
 
@@ -35,8 +34,8 @@ public class TransferOp extends Operation {
     @Override
     public String toString() {
         return "TransferOp{" +
-                "account='" + getAccount() + '\'' +
-                ", destAccount='" + getDestAccount() + '\'' +
+                "account=" + getAccount() +
+                ", destAccount=" + getDestAccount() +
                 ", amount=" + getAmount() +
                 '}';
     }
@@ -1,6 +1,5 @@
 package pt.tecnico.distledger.server.grpc;
 
-import pt.ulisboa.tecnico.distledger.contract.DistLedgerCommonDefinitions;
 import pt.ulisboa.tecnico.distledger.contract.DistLedgerCommonDefinitions.*;
 
 import io.grpc.ManagedChannel;
@@ -8,44 +7,221 @@ import io.grpc.ManagedChannelBuilder;
 import pt.ulisboa.tecnico.distledger.contract.distledgerserver.DistLedgerCrossServerServiceGrpc;
 import pt.ulisboa.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.*;
 import pt.ulisboa.tecnico.distledger.contract.namingserver.NamingServerDistLedger.LookupResponse;
+import pt.ulisboa.tecnico.distledger.contract.namingserver.NamingServerDistLedger.ServerInfo;
+import pt.tecnico.distledger.server.Deserializer;
+import pt.tecnico.distledger.server.Serializer;
+import pt.tecnico.distledger.server.codec.BlockCodec;
+import pt.tecnico.distledger.server.domain.AccountNames;
+import pt.tecnico.distledger.server.domain.ServerState;
+import pt.tecnico.distledger.server.domain.StateSnapshot;
+import pt.tecnico.distledger.server.domain.operation.Operation;
+import pt.tecnico.distledger.server.metrics.ServerMetrics;
+import pt.tecnico.distledger.utils.Logger;
+import pt.tecnico.distledger.utils.VectorClock;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 public class CrossServerService {
+    private static final long SNAPSHOT_DEADLINE = 60;
     private final String service;
     private final String host_address;
+    private final ServerMetrics metrics;
+    // how long a peer has to acknowledge a propagated state, in milliseconds
+    private final long propagateDeadline;
     NamingServerService namingServerService;
     private final Map<String, DistLedgerCrossServerServiceGrpc.DistLedgerCrossServerServiceBlockingStub> stubs;
+    private final Map<String, DistLedgerCrossServerServiceGrpc.DistLedgerCrossServerServiceFutureStub> futureStubs;
+    private final Map<String, DistLedgerCrossServerServiceGrpc.DistLedgerCrossServerServiceStub> asyncStubs;
     private final Map<String, ManagedChannel> channels;
+    // null to always send the plain list of operations
+    private final BlockCodec codec;
+    // peers that listed our codec in their last answer
+    private final Map<String, Boolean> compactPeers = new ConcurrentHashMap<>();
 
-    public CrossServerService(NamingServerService namingServerService, String service, String host_address) {
+    public CrossServerService(NamingServerService namingServerService, String service, String host_address,
+            long propagateDeadline, ServerMetrics metrics, BlockCodec codec) {
         stubs = new HashMap<>();
+        futureStubs = new HashMap<>();
+        asyncStubs = new HashMap<>();
         channels = new HashMap<>();
         this.namingServerService = namingServerService;
         this.service = service;
         this.host_address = host_address;
+        this.propagateDeadline = propagateDeadline;
+        this.metrics = metrics;
+        this.codec = codec;
+    }
+
+    // Sends every peer the operations it is missing, all peers at the same time, so the round
+    // takes as long as the slowest peer within the deadline. A failing peer does not stop the
+    // others, each one gets its own result. Suspected peers are skipped: they missed their
+    // heartbeats and would likely only hold the round until the deadline, and they are sent
+    // everything they miss once they recover.
+    // The admin gossip command and the gossip scheduler may call this at the same time.
+    public synchronized List<PropagationResult> propagateState(ServerState state) {
+        Map<String, ListenableFuture<PropagateStateResponse>> calls = new LinkedHashMap<>();
+        Map<String, Integer> sentOperations = new HashMap<>();
+        // when each call was made and when it completed, the answers are collected one at a
+        // time, so a peer that answered first would otherwise be timed as the slowest before it
+        Map<String, Long> sentAt = new HashMap<>();
+        Map<String, Long> completedAt = new ConcurrentHashMap<>();
+        Set<String> suspected = getSuspectedPeers();
+        List<String> peers = getPeers();
+        for (String host : peers) {
+            if (suspected.contains(host)) {
+                Logger.debug("Skipping suspected {}", host);
+                continue;
+            }
+            // read the TS before the operations, so we never claim operations we did not send
+            VectorClock replicaTS = state.getReplicaTS();
+            List<Operation> operations = state.getOperationsMissingFrom(host);
+            // accounts are sent as ids, with the name of every id the request uses
+            Serializer serializer = new Serializer(state.getAccountNames(), new BitSet());
+            PropagateStateRequest.Builder request = PropagateStateRequest.newBuilder().setSender(host_address);
+            LedgerState.Builder ledgerState = LedgerState.newBuilder();
+            if (codec != null && operations.size() >= Serializer.MIN_COMPACT_OPERATIONS
+                    && compactPeers.getOrDefault(host, false)) {
+                request.setCompactLedger(serializer.serializeCompact(operations, codec, replicaTS));
+            } else {
+                ledgerState.addAllLedger(serializer.serializeOperations(operations));
+                replicaTS.forEach(request::addReplicaTS);
+            }
+            request.setState(ledgerState.addAllNames(serializer.getNewNames()));
+            PropagateStateRequest message = request.build();
+            Logger.debug("Sending {} operations to {}", operations.size(), host);
+            sentOperations.put(host, operations.size());
+            metrics.recordBytesSent(host, message.getSerializedSize());
+            sentAt.put(host, System.nanoTime());
+            ListenableFuture<PropagateStateResponse> call = getFutureStub(host)
+                    .withDeadlineAfter(propagateDeadline, TimeUnit.MILLISECONDS).propagateState(message);
+            call.addListener(() -> completedAt.put(host, System.nanoTime()), MoreExecutors.directExecutor());
+            calls.put(host, call);
+        }
+        List<PropagationResult> results = new ArrayList<>();
+        for (Map.Entry<String, ListenableFuture<PropagateStateResponse>> call : calls.entrySet()) {
+            String host = call.getKey();
+            Throwable failure = null;
+            try {
+                PropagateStateResponse response = call.getValue().get();
+                state.updatePeerTS(host, VectorClock.from(response.getReplicaTSCount(), response::getReplicaTS));
+                // a peer that does not know the codec, e.g. an older version, keeps getting plain lists
+                compactPeers.put(host, codec != null && response.getCodecsList().contains(codec.getName()));
+            } catch (ExecutionException e) {
+                failure = e.getCause();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = e;
+            }
+            // the listener may not have run yet when get returns, the call completed just now then
+            long completed = completedAt.getOrDefault(host, System.nanoTime());
+            PropagationResult result = new PropagationResult(host, sentOperations.get(host),
+                    TimeUnit.NANOSECONDS.toMillis(completed - sentAt.get(host)), failure);
+            Logger.debug("{}", result);
+            results.add(result);
+        }
+        state.collectStableOperations();
+        return results;
     }
 
-    public void propagateState(List<DistLedgerCommonDefinitions.Operation> operationList, List<Integer> replicaTS) {
-        // send response
-        LedgerState ledgerState = LedgerState.newBuilder().addAllLedger(operationList).build();
-        PropagateStateRequest request = PropagateStateRequest.newBuilder().setState(ledgerState)
-                .addAllReplicaTS(replicaTS).build();
+    // asks the other replicas for their latest state, returns null if none of them answers
+    public StateSnapshot fetchSnapshot(AccountNames names) {
         for (String host : searchForServers()) {
             if (host.equals(host_address)) {
                 continue;
             }
-            if (stubs.containsKey(host)) {
-                stubs.get(host).propagateState(request);
-            } else {
-                channels.put(host, ManagedChannelBuilder.forTarget(host).usePlaintext().build());
-                stubs.put(host, DistLedgerCrossServerServiceGrpc.newBlockingStub(channels.get(host)));
-                stubs.get(host).propagateState(request);
+            try {
+                Logger.debug("Fetching snapshot from {}", host);
+                StateSnapshot snapshot = new Deserializer(names).deserializeSnapshot(getStub(host)
+                        .withDeadlineAfter(SNAPSHOT_DEADLINE, TimeUnit.SECONDS)
+                        .getSnapshot(GetSnapshotRequest.getDefaultInstance()), 0);
+                if (snapshot != null) {
+                    return snapshot;
+                }
+            } catch (Exception e) {
+                Logger.warn("Failed to fetch snapshot from {}: {}", host, e.getMessage());
             }
         }
+        return null;
+    }
+
+    private synchronized DistLedgerCrossServerServiceGrpc.DistLedgerCrossServerServiceBlockingStub getStub(
+            String host) {
+        if (!stubs.containsKey(host)) {
+            stubs.put(host, DistLedgerCrossServerServiceGrpc.newBlockingStub(getChannel(host)));
+        }
+        return stubs.get(host);
+    }
+
+    private synchronized DistLedgerCrossServerServiceGrpc.DistLedgerCrossServerServiceFutureStub getFutureStub(
+            String host) {
+        if (!futureStubs.containsKey(host)) {
+            futureStubs.put(host, DistLedgerCrossServerServiceGrpc.newFutureStub(getChannel(host)));
+        }
+        return futureStubs.get(host);
+    }
+
+    public synchronized DistLedgerCrossServerServiceGrpc.DistLedgerCrossServerServiceStub getAsyncStub(String host) {
+        if (!asyncStubs.containsKey(host)) {
+            asyncStubs.put(host, DistLedgerCrossServerServiceGrpc.newStub(getChannel(host)));
+        }
+        return asyncStubs.get(host);
+    }
+
+    public BlockCodec getCodec() {
+        return codec;
+    }
+
+    public String getHostAddress() {
+        return host_address;
+    }
+
+    // the other replicas currently registered in the naming server
+    public List<String> getPeers() {
+        List<String> peers = searchForServers();
+        peers.remove(host_address);
+        return peers;
+    }
+
+    // The sender a request claims to be if it is a registered replica, UNKNOWN_PEER otherwise,
+    // so there is at most one metric series per replica whatever the callers put there
+    public String peerLabel(String sender) {
+        return getPeers().contains(sender) ? sender : ServerMetrics.UNKNOWN_PEER;
+    }
+
+    // the peers the naming server suspects of being down
+    public Set<String> getSuspectedPeers() {
+        Set<String> suspected = new HashSet<>();
+        for (ServerInfo server : namingServerService.lookup(service).getServersList()) {
+            if (server.getSuspected()) {
+                suspected.add(server.getHost());
+            }
+        }
+        return suspected;
+    }
+
+    // the listener runs when the naming server pushes a change of the replicas
+    public void addPeersListener(Runnable listener) {
+        namingServerService.addMembershipListener(listener);
+    }
+
+    private ManagedChannel getChannel(String host) {
+        if (!channels.containsKey(host)) {
+            channels.put(host, ManagedChannelBuilder.forTarget(host).usePlaintext().build());
+        }
+        return channels.get(host);
     }
 
     public void shutdownAll() {
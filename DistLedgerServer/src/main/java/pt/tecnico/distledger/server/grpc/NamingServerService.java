@@ -2,19 +2,67 @@ package pt.tecnico.distledger.server.grpc;
 
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
 import pt.ulisboa.tecnico.distledger.contract.namingserver.NamingServerServiceGrpc;
 import pt.ulisboa.tecnico.distledger.contract.namingserver.NamingServerDistLedger.*;
+import pt.tecnico.distledger.utils.Logger;
 
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Lookups are answered from a cache. A watched service is kept up to date by the naming
+// server, which pushes every change of its membership, so its lookups never leave the
+// process. Other lookups, and every lookup while the watch is broken, are cached for ttl
+// milliseconds.
 public class NamingServerService {
+    private static final long WATCH_RETRY_DELAY = 1000;
+
     private final NamingServerServiceGrpc.NamingServerServiceBlockingStub stub;
+    private final NamingServerServiceGrpc.NamingServerServiceStub asyncStub;
     private final ManagedChannel channel;
+    private final long ttl;
+    private final ScheduledExecutorService executor;
+    // latest membership pushed by the naming server for each watched service
+    private final Map<String, List<ServerInfo>> memberships = new ConcurrentHashMap<>();
+    private final Map<String, CachedLookup> lookups = new ConcurrentHashMap<>();
+    // called on the watch thread after every membership pushed, e.g. when a server is suspected
+    private final List<Runnable> membershipListeners = new CopyOnWriteArrayList<>();
+    private volatile boolean shutdown;
+    private ScheduledFuture<?> heartbeats;
+
+    private static class CachedLookup {
+        private final LookupResponse response;
+        private final long expiresAt;
+
+        private CachedLookup(LookupResponse response, long expiresAt) {
+            this.response = response;
+            this.expiresAt = expiresAt;
+        }
+    }
 
-    public NamingServerService(String host, int port) {
+    public NamingServerService(String host, int port, long ttl) {
         channel = ManagedChannelBuilder.forAddress(host, port).usePlaintext().build();
         stub = NamingServerServiceGrpc.newBlockingStub(channel);
+        asyncStub = NamingServerServiceGrpc.newStub(channel);
+        this.ttl = ttl;
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "naming-watch");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     public void shutdown() {
+        shutdown = true;
+        executor.shutdownNow();
         channel.shutdown();
     }
 
@@ -23,24 +71,145 @@ public class NamingServerService {
         return stub.maxServers(request);
     }
 
-    public int register(String service, String host, String qualifier) {
+    public RegisterResponse register(String service, String host, String qualifier) {
         RegisterRequest request = RegisterRequest.newBuilder().setService(service).setHost(host)
                 .setQualifier(qualifier).build();
-        return stub.registerServer(request).getServerId();
+        return stub.registerServer(request);
+    }
+
+    // for a server whose data directory was written with the given id, fails if it is taken
+    public RegisterResponse register(String service, String host, String qualifier, int serverId) {
+        RegisterRequest request = RegisterRequest.newBuilder().setService(service).setHost(host)
+                .setQualifier(qualifier).setReregister(true).setServerId(serverId).build();
+        return stub.registerServer(request);
+    }
+
+    // Renews the lease three times per lease duration, so a single lost heartbeat is not
+    // enough to be removed; a lease that ran out anyway is taken again by registering with
+    // the same id. If another server took the id meanwhile, onIdLost is called and the
+    // heartbeats stop: this server must no longer issue updates with that id.
+    public synchronized void keepRegistered(String service, String host, String qualifier, int serverId,
+            long leaseDuration, Runnable onIdLost) {
+        if (leaseDuration <= 0 || shutdown) {
+            return;
+        }
+        long interval = Math.max(1, leaseDuration / 3);
+        heartbeats = executor.scheduleWithFixedDelay(
+                () -> heartbeat(service, host, qualifier, serverId, interval, onIdLost),
+                interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private void heartbeat(String service, String host, String qualifier, int serverId, long deadline,
+            Runnable onIdLost) {
+        HeartbeatRequest request = HeartbeatRequest.newBuilder().setService(service).setHost(host).build();
+        try {
+            stub.withDeadlineAfter(deadline, TimeUnit.MILLISECONDS).heartbeat(request);
+        } catch (StatusRuntimeException e) {
+            if (e.getStatus().getCode() != Status.Code.NOT_FOUND) {
+                Logger.debug("Heartbeat failed: {}", e.getMessage());
+                return;
+            }
+            Logger.warn("Lease of {} ran out, registering again", host);
+            RegisterRequest register = RegisterRequest.newBuilder().setService(service).setHost(host)
+                    .setQualifier(qualifier).setReregister(true).setServerId(serverId).build();
+            try {
+                stub.withDeadlineAfter(deadline, TimeUnit.MILLISECONDS).registerServer(register);
+            } catch (StatusRuntimeException registerFailure) {
+                if (registerFailure.getStatus().getCode() != Status.Code.ALREADY_EXISTS) {
+                    Logger.warn("Failed to register again: {}", registerFailure.getMessage());
+                    return;
+                }
+                Logger.warn("Server {} was given to another server, no longer accepting updates", serverId + 1);
+                synchronized (this) {
+                    heartbeats.cancel(false);
+                }
+                onIdLost.run();
+            }
+        }
     }
 
     public LookupResponse lookup(String service, String qualifier) {
+        List<ServerInfo> servers = memberships.get(service);
+        if (servers != null) {
+            // as the naming server does, the servers suspected when the membership was pushed come last
+            LookupResponse.Builder response = LookupResponse.newBuilder();
+            for (boolean suspected : new boolean[] {false, true}) {
+                for (ServerInfo server : servers) {
+                    if (server.getSuspected() == suspected
+                            && (qualifier.isEmpty() || server.getQualifier().equals(qualifier))) {
+                        response.addHosts(server.getHost());
+                        response.addServers(server);
+                    }
+                }
+            }
+            return response.build();
+        }
+        String key = service + "/" + qualifier;
+        CachedLookup cached = lookups.get(key);
+        if (cached != null && System.currentTimeMillis() < cached.expiresAt) {
+            return cached.response;
+        }
         LookupRequest request = LookupRequest.newBuilder().setService(service).setQualifier(qualifier).build();
-        return stub.lookup(request);
+        LookupResponse response = stub.lookup(request);
+        lookups.put(key, new CachedLookup(response, System.currentTimeMillis() + ttl));
+        return response;
     }
 
     public LookupResponse lookup(String service) {
-        LookupRequest request = LookupRequest.newBuilder().setService(service).build();
-        return stub.lookup(request);
+        return lookup(service, "");
+    }
+
+    public void addMembershipListener(Runnable listener) {
+        membershipListeners.add(listener);
     }
 
     public void unregister(String service, String host) {
+        synchronized (this) {
+            if (heartbeats != null) {
+                heartbeats.cancel(false);
+            }
+        }
         DeleteRequest request = DeleteRequest.newBuilder().setService(service).setHost(host).build();
         stub.deleteServer(request);
     }
+
+    // keeps the membership of the service pushed by the naming server; a broken watch is
+    // opened again after a delay, the lookups fall back to the ttl cache in the meantime
+    public void watch(String service) {
+        if (shutdown) {
+            return;
+        }
+        WatchRequest request = WatchRequest.newBuilder().setService(service).build();
+        asyncStub.watch(request, new StreamObserver<MembershipEvent>() {
+            @Override
+            public void onNext(MembershipEvent event) {
+                Logger.debug("Membership of {} is now {} servers (version {})", service, event.getServersCount(),
+                        event.getVersion());
+                memberships.put(service, event.getServersList());
+                lookups.keySet().removeIf(key -> key.startsWith(service + "/"));
+                for (Runnable listener : membershipListeners) {
+                    listener.run();
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                rewatch(service, t.getMessage());
+            }
+
+            @Override
+            public void onCompleted() {
+                rewatch(service, "closed by the naming server");
+            }
+        });
+    }
+
+    private void rewatch(String service, String reason) {
+        memberships.remove(service);
+        if (shutdown) {
+            return;
+        }
+        Logger.debug("Watch of {} failed: {}", service, reason);
+        executor.schedule(() -> watch(service), WATCH_RETRY_DELAY, TimeUnit.MILLISECONDS);
+    }
 }
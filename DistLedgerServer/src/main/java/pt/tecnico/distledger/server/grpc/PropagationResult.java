@@ -0,0 +1,47 @@
+package pt.tecnico.distledger.server.grpc;
+
+// Outcome of sending our state to one peer during a gossip round
+public class PropagationResult {
+    private final String host;
+    private final int sentOperations;
+    private final long elapsedMillis;
+    // null when the peer acknowledged the state
+    private final Throwable failure;
+
+    public PropagationResult(String host, int sentOperations, long elapsedMillis, Throwable failure) {
+        this.host = host;
+        this.sentOperations = sentOperations;
+        this.elapsedMillis = elapsedMillis;
+        this.failure = failure;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getSentOperations() {
+        return sentOperations;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    public boolean isSuccess() {
+        return failure == null;
+    }
+
+    @Override
+    public String toString() {
+        return "PropagationResult{" +
+                "host='" + host + '\'' +
+                ", sentOperations=" + sentOperations +
+                ", elapsedMillis=" + elapsedMillis +
+                (failure != null ? ", failure=" + failure.getMessage() : "") +
+                '}';
+    }
+}
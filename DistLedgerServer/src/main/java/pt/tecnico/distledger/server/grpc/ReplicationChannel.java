@@ -0,0 +1,244 @@
+package pt.tecnico.distledger.server.grpc;
+
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import pt.ulisboa.tecnico.distledger.contract.distledgerserver.DistLedgerCrossServerServiceGrpc;
+import pt.ulisboa.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.*;
+import pt.tecnico.distledger.server.Serializer;
+import pt.tecnico.distledger.server.codec.BlockCodec;
+import pt.tecnico.distledger.server.domain.SeenOperations;
+import pt.tecnico.distledger.server.domain.ServerState;
+import pt.tecnico.distledger.server.domain.operation.Operation;
+import pt.tecnico.distledger.server.metrics.ServerMetrics;
+import pt.tecnico.distledger.utils.Logger;
+import pt.tecnico.distledger.utils.VectorClock;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Streams the ledger to one peer. Operations are read from the ledger in batches as soon as
+// they are recorded, and at most WINDOW batches wait for an acknowledgement at any time, so a
+// slow peer is sent less instead of piling up batches in memory.
+// Everything but the acknowledgements runs on the executor shared by all channels, which
+// never blocks: a peer that stops reading only stops its own stream.
+public class ReplicationChannel {
+    private static final int BATCH_SIZE = 256;
+    private static final int WINDOW = 4;
+    private static final long RECONNECT_DELAY = 1000;
+
+    private final String host;
+    private final String sender;
+    private final ServerState state;
+    private final ServerMetrics metrics;
+    private final DistLedgerCrossServerServiceGrpc.DistLedgerCrossServerServiceStub stub;
+    private final ScheduledExecutorService executor;
+    // null to always send the plain list of operations
+    private final BlockCodec codec;
+    // whether the peer listed our codec on the last call, kept across calls so a reconnecting
+    // stream sends its catch-up compact from the first batch
+    private volatile boolean compact;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile boolean closed;
+    // nothing is sent to a peer the naming server suspects, it resumes where it stopped
+    private volatile boolean suspected;
+
+    // only touched by the executor thread
+    private Connection connection;
+    private long cursor;
+    private long sequence;
+    private long retryAt;
+
+    public ReplicationChannel(String host, String sender, ServerState state, ServerMetrics metrics,
+            DistLedgerCrossServerServiceGrpc.DistLedgerCrossServerServiceStub stub,
+            ScheduledExecutorService executor, BlockCodec codec) {
+        this.host = host;
+        this.sender = sender;
+        this.state = state;
+        this.metrics = metrics;
+        this.stub = stub;
+        this.executor = executor;
+        this.codec = codec;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public void setSuspected(boolean suspected) {
+        if (this.suspected == suspected) {
+            return;
+        }
+        Logger.debug("{} is {} suspected", host, suspected ? "now" : "no longer");
+        this.suspected = suspected;
+        if (!suspected) {
+            signal();
+        }
+    }
+
+    // asks for the stream to be drained, cheap enough to call on every recorded operation
+    public void signal() {
+        if (!closed && scheduled.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        scheduled.set(false);
+        if (closed || suspected) {
+            return;
+        }
+        if (connection == null) {
+            if (System.currentTimeMillis() < retryAt) {
+                return;
+            }
+            connect();
+        }
+        Connection current = connection;
+        if (current.requestStream == null) {
+            return; // the call did not start yet
+        }
+        while (current.inFlight.get() < WINDOW && current.requestStream.isReady()) {
+            List<Operation> operations = new ArrayList<>();
+            // operations the peer already acknowledged are skipped, so after a reconnect the
+            // whole ledger is scanned again but only what the peer misses is sent
+            VectorClock peerTS = state.getPeerTS(host);
+            if (peerTS != null) {
+                // the operations the peer got from others are skipped, so they count as sent
+                current.sent.addAll(peerTS);
+            }
+            long next = state.readLedger(cursor, BATCH_SIZE, peerTS, operations);
+            cursor = next;
+            if (operations.isEmpty()) {
+                return;
+            }
+            Serializer serializer = new Serializer(state.getAccountNames(), current.sentNames);
+            ReplicationBatch.Builder batch = ReplicationBatch.newBuilder()
+                    .setSequence(++sequence)
+                    .setSender(sender);
+            for (Operation op : operations) {
+                current.sent.add(op);
+            }
+            VectorClock claimed = current.sent.getContiguousTS();
+            if (compact && operations.size() >= Serializer.MIN_COMPACT_OPERATIONS) {
+                batch.setCompactLedger(serializer.serializeCompact(operations, codec, claimed));
+                current.sentCompact = true;
+            } else {
+                batch.addAllLedger(serializer.serializeOperations(operations));
+                claimed.forEach(batch::addReplicaTS);
+            }
+            batch.addAllNames(serializer.getNewNames());
+            ReplicationBatch message = batch.build();
+            metrics.recordBytesSent(host, message.getSerializedSize());
+            current.inFlight.incrementAndGet();
+            current.requestStream.onNext(message);
+        }
+    }
+
+    // runs on the executor; the peer ignored the compact batches of the call, so the ledger is
+    // scanned again for what it misses
+    private void rewind(Connection current) {
+        if (connection == current && current.sentCompact) {
+            Logger.debug("{} does not decode compact batches, sending plain ones", host);
+            current.resetSent();
+            cursor = 0;
+            signal();
+        }
+    }
+
+    private void connect() {
+        Logger.debug("Opening replication stream to {}", host);
+        connection = new Connection();
+        connection.resetSent();
+        cursor = 0;
+        stub.replicate(connection);
+    }
+
+    // runs on the executor
+    private void disconnected(Connection failed, String reason) {
+        if (connection != failed) {
+            return;
+        }
+        Logger.debug("Replication stream to {} closed: {}", host, reason);
+        connection = null;
+        retryAt = System.currentTimeMillis() + RECONNECT_DELAY;
+        if (!closed) {
+            executor.schedule(this::signal, RECONNECT_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void close() {
+        closed = true;
+        executor.execute(() -> {
+            if (connection != null && connection.requestStream != null) {
+                connection.requestStream.onCompleted();
+            }
+            connection = null;
+        });
+    }
+
+    // one call of the replicate RPC, callbacks of an older call are ignored
+    private class Connection implements ClientResponseObserver<ReplicationBatch, ReplicationAck> {
+        private final AtomicInteger inFlight = new AtomicInteger();
+        // account ids whose names were sent on this call, only touched by the executor thread
+        private final BitSet sentNames = new BitSet();
+        // Batches only claim, for each replica, the operations up to which the peer has all of
+        // them: the ones it acknowledged and the ones sent on this call since, which it applies
+        // in order. A batch that carried an operation after a gap, e.g. one forwarded by another
+        // replica before the older ones arrived here, does not claim it, so the peer never
+        // acknowledges past an operation it lacks and the stream does not skip that one.
+        // Only touched by the executor thread.
+        private final SeenOperations sent = new SeenOperations(state.getReplicaTS().size());
+        // only touched by the executor thread
+        private boolean sentCompact;
+
+        private void resetSent() {
+            VectorClock peerTS = state.getPeerTS(host);
+            sent.reset(peerTS != null ? peerTS : VectorClock.zero(state.getReplicaTS().size()));
+        }
+        // only touched by the thread of the acknowledgements
+        private boolean acked;
+        private volatile ClientCallStreamObserver<ReplicationBatch> requestStream;
+
+        @Override
+        public void beforeStart(ClientCallStreamObserver<ReplicationBatch> requestStream) {
+            this.requestStream = requestStream;
+            requestStream.setOnReadyHandler(ReplicationChannel.this::signal);
+        }
+
+        @Override
+        public void onNext(ReplicationAck ack) {
+            if (!acked) {
+                // the codecs the peer decodes come with the first ack of the call
+                acked = true;
+                compact = codec != null && ack.getCodecsList().contains(codec.getName());
+                if (!compact) {
+                    executor.execute(() -> rewind(this));
+                }
+            }
+            state.updatePeerTS(host, VectorClock.from(ack.getReplicaTSCount(), ack::getReplicaTS));
+            inFlight.decrementAndGet();
+            signal();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            if (closed) {
+                return;
+            }
+            executor.execute(() -> disconnected(this, t.getMessage()));
+        }
+
+        @Override
+        public void onCompleted() {
+            if (closed) {
+                return;
+            }
+            executor.execute(() -> disconnected(this, "completed by the peer"));
+        }
+    }
+}
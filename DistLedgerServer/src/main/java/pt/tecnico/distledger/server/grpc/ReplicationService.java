@@ -0,0 +1,105 @@
+package pt.tecnico.distledger.server.grpc;
+
+import pt.tecnico.distledger.server.domain.ServerState;
+import pt.tecnico.distledger.server.metrics.ServerMetrics;
+import pt.tecnico.distledger.utils.Logger;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Keeps a replication stream open to every other replica. Recording an operation signals
+// all the streams, and a periodic tick picks up replicas that joined or left the naming
+// server and garbage collects the operations every peer acknowledged. The streams to the
+// replicas the naming server suspects are paused; a change pushed by the naming server is
+// picked up right away instead of on the next tick.
+public class ReplicationService implements AutoCloseable {
+    private static final long MAINTENANCE_INTERVAL = 1000;
+
+    private final ServerState state;
+    private final CrossServerService crossServerService;
+    private final ServerMetrics metrics;
+    private final ScheduledExecutorService executor;
+    private final Map<String, ReplicationChannel> channels = new ConcurrentHashMap<>();
+
+    public ReplicationService(ServerState state, CrossServerService crossServerService, ServerMetrics metrics) {
+        this.state = state;
+        this.crossServerService = crossServerService;
+        this.metrics = metrics;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "replication");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        state.setLedgerListener(this::signalAll);
+        crossServerService.addPeersListener(() -> {
+            if (!executor.isShutdown()) {
+                executor.execute(this::membershipChanged);
+            }
+        });
+        executor.scheduleWithFixedDelay(this::maintain, 0, MAINTENANCE_INTERVAL, TimeUnit.MILLISECONDS);
+        Logger.debug("Replication service started");
+    }
+
+    private void signalAll() {
+        for (ReplicationChannel channel : channels.values()) {
+            channel.signal();
+        }
+    }
+
+    private void maintain() {
+        try {
+            refreshPeers();
+            signalAll();
+            state.collectStableOperations();
+        } catch (Exception e) {
+            Logger.warn("Replication maintenance failed: {}", e.getMessage());
+        }
+    }
+
+    private void membershipChanged() {
+        try {
+            refreshPeers();
+        } catch (Exception e) {
+            Logger.warn("Failed to refresh the replicas: {}", e.getMessage());
+        }
+    }
+
+    private void refreshPeers() {
+        List<String> peers = crossServerService.getPeers();
+        for (String host : peers) {
+            if (!channels.containsKey(host)) {
+                Logger.debug("Starting replication to {}", host);
+                channels.put(host, new ReplicationChannel(host, crossServerService.getHostAddress(), state,
+                        metrics, crossServerService.getAsyncStub(host), executor, crossServerService.getCodec()));
+            }
+        }
+        Set<String> gone = new HashSet<>(channels.keySet());
+        gone.removeAll(peers);
+        for (String host : gone) {
+            Logger.debug("Stopping replication to {}", host);
+            channels.remove(host).close();
+        }
+        Set<String> suspected = crossServerService.getSuspectedPeers();
+        for (ReplicationChannel channel : channels.values()) {
+            channel.setSuspected(suspected.contains(channel.getHost()));
+        }
+    }
+
+    @Override
+    public void close() {
+        state.setLedgerListener(() -> { });
+        for (ReplicationChannel channel : channels.values()) {
+            channel.close();
+        }
+        executor.shutdown();
+    }
+}
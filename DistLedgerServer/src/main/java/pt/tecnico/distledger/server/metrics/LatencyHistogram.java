@@ -0,0 +1,45 @@
+package pt.tecnico.distledger.server.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Fixed buckets, so recording is a short search and two uncontended adds and never allocates
+public class LatencyHistogram {
+    // upper bounds of the buckets in microseconds, the last bucket has no bound
+    static final long[] BOUNDS = {50, 100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000,
+            500000, 1000000, 2500000, 5000000};
+
+    private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+    private final LongAdder sumMicros = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        int bucket = 0;
+        while (bucket < BOUNDS.length && micros > BOUNDS[bucket]) {
+            bucket++;
+        }
+        buckets[bucket].increment();
+        sumMicros.add(micros);
+    }
+
+    // cumulative counts, one per bound and a last one with every value
+    public long[] cumulativeCounts() {
+        long[] counts = new long[buckets.length];
+        long total = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            total += buckets[i].sum();
+            counts[i] = total;
+        }
+        return counts;
+    }
+
+    public long getSumMicros() {
+        return sumMicros.sum();
+    }
+}
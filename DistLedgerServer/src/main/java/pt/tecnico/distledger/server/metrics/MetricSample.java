@@ -0,0 +1,55 @@
+package pt.tecnico.distledger.server.metrics;
+
+import java.util.Map;
+
+// One value of a metric, e.g. the request count of one method
+public class MetricSample {
+    private final String name;
+    private final Map<String, String> labels;
+    private final double value;
+
+    public MetricSample(String name, Map<String, String> labels, double value) {
+        this.name = name;
+        this.labels = labels;
+        this.value = value;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Map<String, String> getLabels() {
+        return labels;
+    }
+
+    public double getValue() {
+        return value;
+    }
+
+    // the Prometheus text format, e.g. distledger_requests_total{method="balance"} 42
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(name);
+        if (!labels.isEmpty()) {
+            builder.append('{');
+            boolean first = true;
+            for (Map.Entry<String, String> label : labels.entrySet()) {
+                if (!first) {
+                    builder.append(',');
+                }
+                first = false;
+                builder.append(label.getKey()).append("=\"")
+                        .append(label.getValue().replace("\\", "\\\\").replace("\"", "\\\""))
+                        .append('"');
+            }
+            builder.append('}');
+        }
+        builder.append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            builder.append((long) value);
+        } else {
+            builder.append(value);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,32 @@
+package pt.tecnico.distledger.server.metrics;
+
+import io.grpc.ForwardingServerCall;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+// Counts every call by method and status and records how long it took, for a streaming
+// call until the stream was closed
+public class MetricsInterceptor implements ServerInterceptor {
+    private final ServerMetrics metrics;
+
+    public MetricsInterceptor(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+            ServerCallHandler<ReqT, RespT> next) {
+        String method = call.getMethodDescriptor().getFullMethodName();
+        long start = System.nanoTime();
+        return next.startCall(new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+            @Override
+            public void close(Status status, Metadata trailers) {
+                metrics.recordRequest(method, status.getCode(), System.nanoTime() - start);
+                super.close(status, trailers);
+            }
+        }, headers);
+    }
+}
@@ -0,0 +1,123 @@
+package pt.tecnico.distledger.server.metrics;
+
+import io.grpc.Status;
+import pt.tecnico.distledger.server.domain.ServerState;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters and histograms of one replica. Recording only touches LongAdders found in
+// concurrent maps, the state is read for the gauges when the metrics are collected.
+public class ServerMetrics {
+    private static final String PREFIX = "distledger_";
+    // traffic from a sender that is not a registered replica
+    public static final String UNKNOWN_PEER = "unknown";
+    private static final double MICROS_PER_SECOND = 1e6;
+
+    private final ServerState state;
+    private final Map<String, MethodMetrics> methods = new ConcurrentHashMap<>();
+    private final LongAdder notStable = new LongAdder();
+    private final Map<String, LongAdder> bytesSent = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> bytesReceived = new ConcurrentHashMap<>();
+
+    public ServerMetrics(ServerState state) {
+        this.state = state;
+    }
+
+    private static class MethodMetrics {
+        private final String service;
+        private final String method;
+        private final Map<Status.Code, LongAdder> codes = new ConcurrentHashMap<>();
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        private MethodMetrics(String service, String method) {
+            this.service = service;
+            this.method = method;
+        }
+    }
+
+    public void recordRequest(String fullMethodName, Status.Code code, long nanos) {
+        MethodMetrics metrics = methods.computeIfAbsent(fullMethodName, ServerMetrics::newMethodMetrics);
+        metrics.codes.computeIfAbsent(code, c -> new LongAdder()).increment();
+        metrics.latency.record(nanos);
+    }
+
+    private static MethodMetrics newMethodMetrics(String fullMethodName) {
+        // e.g. pt.ulisboa.tecnico.distledger.contract.user.UserService/balance
+        int slash = fullMethodName.lastIndexOf('/');
+        String service = fullMethodName.substring(0, slash);
+        return new MethodMetrics(service.substring(service.lastIndexOf('.') + 1),
+                fullMethodName.substring(slash + 1));
+    }
+
+    public void recordNotStable() {
+        notStable.increment();
+    }
+
+    public void recordBytesSent(String peer, long bytes) {
+        bytesSent.computeIfAbsent(peer, p -> new LongAdder()).add(bytes);
+    }
+
+    // peer is a registered address or UNKNOWN_PEER, never what a request claims unchecked
+    public void recordBytesReceived(String peer, long bytes) {
+        bytesReceived.computeIfAbsent(peer, p -> new LongAdder()).add(bytes);
+    }
+
+    public List<MetricSample> collect() {
+        List<MetricSample> samples = new ArrayList<>();
+        for (MethodMetrics metrics : methods.values()) {
+            for (Map.Entry<Status.Code, LongAdder> code : metrics.codes.entrySet()) {
+                Map<String, String> labels = methodLabels(metrics);
+                labels.put("code", code.getKey().name());
+                samples.add(new MetricSample(PREFIX + "requests_total", labels, code.getValue().sum()));
+            }
+            long[] counts = metrics.latency.cumulativeCounts();
+            for (int i = 0; i < counts.length; i++) {
+                Map<String, String> labels = methodLabels(metrics);
+                labels.put("le", i < LatencyHistogram.BOUNDS.length
+                        ? String.valueOf(LatencyHistogram.BOUNDS[i] / MICROS_PER_SECOND)
+                        : "+Inf");
+                samples.add(new MetricSample(PREFIX + "request_duration_seconds_bucket", labels, counts[i]));
+            }
+            samples.add(new MetricSample(PREFIX + "request_duration_seconds_sum", methodLabels(metrics),
+                    metrics.latency.getSumMicros() / MICROS_PER_SECOND));
+            samples.add(new MetricSample(PREFIX + "request_duration_seconds_count", methodLabels(metrics),
+                    counts[counts.length - 1]));
+        }
+        samples.add(new MetricSample(PREFIX + "not_stable_total", Map.of(), notStable.sum()));
+        samples.add(new MetricSample(PREFIX + "pending_operations", Map.of(), state.getPendingCount()));
+        samples.add(new MetricSample(PREFIX + "parked_reads", Map.of(), state.getParkedReadCount()));
+        samples.add(new MetricSample(PREFIX + "ledger_operations", Map.of(), state.getLedgerSize()));
+        samples.add(new MetricSample(PREFIX + "unexecuted_operations", Map.of(), state.getUnexecutedCount()));
+        samples.add(new MetricSample(PREFIX + "replication_backlog", Map.of(), state.getReplicationBacklog()));
+        for (Map.Entry<String, LongAdder> peer : bytesSent.entrySet()) {
+            samples.add(new MetricSample(PREFIX + "replication_sent_bytes_total", Map.of("peer", peer.getKey()),
+                    peer.getValue().sum()));
+        }
+        for (Map.Entry<String, LongAdder> peer : bytesReceived.entrySet()) {
+            samples.add(new MetricSample(PREFIX + "replication_received_bytes_total",
+                    Map.of("peer", peer.getKey()), peer.getValue().sum()));
+        }
+        return samples;
+    }
+
+    private static Map<String, String> methodLabels(MethodMetrics metrics) {
+        Map<String, String> labels = new LinkedHashMap<>();
+        labels.put("service", metrics.service);
+        labels.put("method", metrics.method);
+        return labels;
+    }
+
+    // the Prometheus text format
+    public String toText() {
+        StringBuilder builder = new StringBuilder();
+        for (MetricSample sample : collect()) {
+            builder.append(sample).append('\n');
+        }
+        return builder.toString();
+    }
+}
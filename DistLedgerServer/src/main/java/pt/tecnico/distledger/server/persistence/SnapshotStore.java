@@ -0,0 +1,155 @@
+package pt.tecnico.distledger.server.persistence;
+
+import pt.tecnico.distledger.server.Deserializer;
+import pt.tecnico.distledger.server.Serializer;
+import pt.tecnico.distledger.server.domain.AccountNames;
+import pt.tecnico.distledger.server.domain.StateSnapshot;
+import pt.tecnico.distledger.utils.Logger;
+import pt.ulisboa.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.SnapshotChunk;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Keeps the latest snapshot of the server state on disk, as a sequence of delimited
+// SnapshotChunk messages. The file name holds the first log record not in the snapshot.
+public class SnapshotStore {
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".snap";
+    private static final String TEMPORARY_FILE = "snapshot.tmp";
+    private static final String REPLICA_ID_FILE = "replica-id";
+    private static final int CHUNK_SIZE = 1000;
+
+    private final Path directory;
+
+    public SnapshotStore(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+    }
+
+    public synchronized void write(StateSnapshot snapshot) throws IOException {
+        Path temporary = directory.resolve(TEMPORARY_FILE);
+        try (FileOutputStream file = new FileOutputStream(temporary.toFile());
+                BufferedOutputStream out = new BufferedOutputStream(file)) {
+            new Serializer(snapshot.getAccounts().getNames()).serializeSnapshot(snapshot, CHUNK_SIZE, chunk -> {
+                try {
+                    chunk.writeDelimitedTo(out);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            out.flush();
+            file.getFD().sync();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        Path target = directory.resolve(String.format("%s%020d%s", SNAPSHOT_PREFIX, snapshot.getLogSequence(),
+                SNAPSHOT_SUFFIX));
+        Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        Logger.debug("Wrote {} to {}", snapshot, target);
+        for (Path old : listSnapshots()) {
+            if (!old.equals(target)) {
+                Files.delete(old);
+            }
+        }
+    }
+
+    // returns null when there is no snapshot on disk
+    public synchronized StateSnapshot load(AccountNames names) throws IOException {
+        List<Path> snapshots = listSnapshots();
+        if (snapshots.isEmpty()) {
+            return null;
+        }
+        Path latest = snapshots.get(snapshots.size() - 1);
+        String name = latest.getFileName().toString();
+        long logSequence = Long.parseLong(
+                name.substring(SNAPSHOT_PREFIX.length(), name.length() - SNAPSHOT_SUFFIX.length()));
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(latest))) {
+            StateSnapshot snapshot = new Deserializer(names).deserializeSnapshot(new ChunkIterator(in), logSequence);
+            Logger.debug("Loaded {} from {}", snapshot, latest);
+            return snapshot;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // The replica id the snapshots and the log were written with, null for a directory that
+    // has none yet. Replaying them under another id would mix two histories in one entry of
+    // the timestamps.
+    public synchronized Integer loadReplicaId() throws IOException {
+        Path path = directory.resolve(REPLICA_ID_FILE);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try {
+            return Integer.parseInt(Files.readString(path).trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Corrupt replica id in " + path);
+        }
+    }
+
+    public synchronized void writeReplicaId(int replicaId) throws IOException {
+        Path temporary = directory.resolve(TEMPORARY_FILE);
+        try (FileOutputStream file = new FileOutputStream(temporary.toFile())) {
+            file.write(String.valueOf(replicaId).getBytes(StandardCharsets.US_ASCII));
+            file.getFD().sync();
+        }
+        Files.move(temporary, directory.resolve(REPLICA_ID_FILE), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private List<Path> listSnapshots() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.getFileName().toString().startsWith(SNAPSHOT_PREFIX)
+                    && path.getFileName().toString().endsWith(SNAPSHOT_SUFFIX))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    // reads chunks one at a time, so loading does not keep the whole file in memory
+    private static class ChunkIterator implements Iterator<SnapshotChunk> {
+        private final InputStream in;
+        private SnapshotChunk next;
+
+        ChunkIterator(InputStream in) {
+            this.in = in;
+            advance();
+        }
+
+        private void advance() {
+            try {
+                next = SnapshotChunk.parseDelimitedFrom(in);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public SnapshotChunk next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            SnapshotChunk chunk = next;
+            advance();
+            return chunk;
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package pt.tecnico.distledger.server.persistence;
+
+import pt.tecnico.distledger.server.Deserializer;
+import pt.tecnico.distledger.server.Serializer;
+import pt.tecnico.distledger.server.domain.AccountNames;
+import pt.tecnico.distledger.server.domain.exceptions.PersistenceFailedException;
+import pt.tecnico.distledger.server.domain.operation.Operation;
+import pt.tecnico.distledger.utils.Logger;
+import pt.ulisboa.tecnico.distledger.contract.DistLedgerCommonDefinitions;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+// Append-only log of ledger operations, split in segments of bounded size.
+// Each record is [length][crc32][Operation proto]. Appends only queue the record and a
+// single flusher thread writes everything queued so far with one fsync for the whole group.
+public class WriteAheadLog implements AutoCloseable {
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int HEADER_SIZE = 8;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final Path directory;
+    private final long segmentSize;
+    // records keep the account names, the ids of the dictionary do not outlive the process
+    private final AccountNames names;
+    // only needed until the state is restored, then dropped
+    private List<Operation> recoveredOperations = new ArrayList<>();
+    private long firstRecoveredSequence;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition hasPending = lock.newCondition();
+    private final Condition flushed = lock.newCondition();
+    private List<byte[]> pending = new ArrayList<>();
+    private long nextSequence;
+    private long durableSequence;
+    private IOException failure;
+    private boolean closed;
+
+    // only touched by the flusher thread after construction
+    private FileChannel segment;
+    private long segmentBytes;
+    private long writtenSequence;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final Thread flusher;
+
+    public WriteAheadLog(Path directory, long segmentSize, AccountNames names) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.names = names;
+        Files.createDirectories(directory);
+        recover();
+        this.durableSequence = nextSequence;
+        this.writtenSequence = nextSequence;
+        this.flusher = new Thread(this::flushLoop, "wal-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    // operations found on disk from the given sequence number onwards
+    public List<Operation> getRecoveredOperations(long fromSequence) {
+        int skip = (int) Math.max(0, Math.min(fromSequence - firstRecoveredSequence, recoveredOperations.size()));
+        return recoveredOperations.subList(skip, recoveredOperations.size());
+    }
+
+    public void clearRecoveredOperations() {
+        recoveredOperations = List.of();
+    }
+
+    public long getNextSequence() {
+        lock.lock();
+        try {
+            return nextSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // removes the segments that only hold records older than the given sequence number
+    public void deleteSegmentsBefore(long sequence) throws IOException {
+        List<Path> segments = listSegments();
+        for (int i = 0; i < segments.size() - 1; i++) {
+            if (firstSequence(segments.get(i + 1)) > sequence) {
+                break;
+            }
+            Logger.debug("Deleting log segment {}", segments.get(i));
+            Files.delete(segments.get(i));
+        }
+    }
+
+    // returns the sequence number of the record, to be given to awaitDurable
+    public long append(Operation op) {
+        byte[] record = encode(op);
+        lock.lock();
+        try {
+            if (failure != null) {
+                throw new PersistenceFailedException(failure);
+            }
+            if (closed) {
+                throw new PersistenceFailedException(new IOException("Log is closed"));
+            }
+            pending.add(record);
+            hasPending.signal();
+            return nextSequence++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void awaitDurable(long sequence) {
+        lock.lock();
+        try {
+            while (durableSequence <= sequence) {
+                if (failure != null) {
+                    throw new PersistenceFailedException(failure);
+                }
+                flushed.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            hasPending.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+            if (segment != null) {
+                segment.close();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            Logger.warn("Failed to close log segment: {}", e.getMessage());
+        }
+    }
+
+    // Flusher thread
+
+    private void flushLoop() {
+        while (true) {
+            List<byte[]> batch;
+            lock.lock();
+            try {
+                while (pending.isEmpty() && !closed) {
+                    hasPending.awaitUninterruptibly();
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = pending;
+                pending = new ArrayList<>();
+            } finally {
+                lock.unlock();
+            }
+            try {
+                write(batch);
+            } catch (IOException e) {
+                lock.lock();
+                try {
+                    failure = e;
+                    flushed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                return;
+            }
+            lock.lock();
+            try {
+                durableSequence += batch.size();
+                flushed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void write(List<byte[]> batch) throws IOException {
+        for (byte[] record : batch) {
+            int size = HEADER_SIZE + record.length;
+            if (segment == null || (segmentBytes > 0 && segmentBytes + size > segmentSize)) {
+                drainBuffer();
+                rotate();
+            }
+            if (size > buffer.remaining()) {
+                drainBuffer();
+            }
+            if (size > buffer.capacity()) {
+                writeFully(header(record));
+                writeFully(ByteBuffer.wrap(record));
+            } else {
+                buffer.putInt(record.length);
+                buffer.putInt(checksum(record));
+                buffer.put(record);
+            }
+            segmentBytes += size;
+            writtenSequence++;
+        }
+        drainBuffer();
+        segment.force(false);
+    }
+
+    private void drainBuffer() throws IOException {
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            segment.write(src);
+        }
+    }
+
+    private void rotate() throws IOException {
+        if (segment != null) {
+            segment.force(false);
+            segment.close();
+        }
+        Path path = directory.resolve(segmentName(writtenSequence));
+        Logger.debug("Opening log segment {}", path);
+        segment = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        segmentBytes = segment.size();
+        segment.position(segmentBytes);
+    }
+
+    // Recovery
+
+    private void recover() throws IOException {
+        List<Path> segments = listSegments();
+        Deserializer deserializer = new Deserializer(names);
+        if (!segments.isEmpty()) {
+            nextSequence = firstSequence(segments.get(0));
+        }
+        firstRecoveredSequence = nextSequence;
+        for (int i = 0; i < segments.size(); i++) {
+            Path path = segments.get(i);
+            if (firstSequence(path) != nextSequence) {
+                throw new IOException("Log segment " + path + " does not start at record " + nextSequence);
+            }
+            long validBytes = 0;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                while (data.remaining() >= HEADER_SIZE) {
+                    int length = data.getInt();
+                    int crc = data.getInt();
+                    if (length < 0 || length > data.remaining()) {
+                        break;
+                    }
+                    byte[] record = new byte[length];
+                    data.get(record);
+                    if (checksum(record) != crc) {
+                        break;
+                    }
+                    recoveredOperations.add(deserializer.deserialize(
+                            DistLedgerCommonDefinitions.Operation.parseFrom(record)));
+                    validBytes = data.position();
+                    nextSequence++;
+                }
+                if (validBytes < channel.size() && i < segments.size() - 1) {
+                    // only the segment being written can be torn; records cut out of an older
+                    // one would shift every later sequence number away from the segment names
+                    throw new IOException("Corrupt log segment " + path + " at byte " + validBytes);
+                }
+                if (validBytes < channel.size()) {
+                    // a crash in the middle of a write leaves a torn record at the end
+                    Logger.warn("Truncating torn log tail of {} at {}", path, validBytes);
+                    channel.truncate(validBytes);
+                }
+            }
+            if (i == segments.size() - 1) {
+                segment = FileChannel.open(path, StandardOpenOption.WRITE);
+                segmentBytes = validBytes;
+                segment.position(validBytes);
+            }
+        }
+        Logger.debug("Recovered {} operations from {} segments", recoveredOperations.size(), segments.size());
+    }
+
+    private List<Path> listSegments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.getFileName().toString().startsWith(SEGMENT_PREFIX)
+                    && path.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    // Record encoding
+
+    private byte[] encode(Operation op) {
+        return new Serializer(names).serializeOperations(List.of(op)).get(0).toByteArray();
+    }
+
+    private static ByteBuffer header(byte[] record) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(record.length);
+        header.putInt(checksum(record));
+        header.flip();
+        return header;
+    }
+
+    private static int checksum(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        return (int) crc.getValue();
+    }
+
+    private static long firstSequence(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static String segmentName(long firstSequence) {
+        return String.format("%s%020d%s", SEGMENT_PREFIX, firstSequence, SEGMENT_SUFFIX);
+    }
+}
@@ -6,7 +6,13 @@ import pt.tecnico.distledger.server.domain.operation.*;
 import pt.ulisboa.tecnico.distledger.contract.distledgerserver.DistLedgerCrossServerServiceGrpc;
 import pt.ulisboa.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.*;
 import pt.tecnico.distledger.server.Deserializer;
+import pt.tecnico.distledger.server.Serializer;
+import pt.tecnico.distledger.server.codec.BlockCodecs;
+import pt.tecnico.distledger.server.grpc.CrossServerService;
+import pt.tecnico.distledger.server.domain.StateSnapshot;
+import pt.tecnico.distledger.server.metrics.ServerMetrics;
 import pt.tecnico.distledger.utils.Logger;
+import pt.tecnico.distledger.utils.VectorClock;
 
 import java.util.List;
 
@@ -16,16 +22,25 @@ public class CrossServerDistLedgerServiceImpl
         extends DistLedgerCrossServerServiceGrpc.DistLedgerCrossServerServiceImplBase {
 
     private final ServerState state;
+    private final ServerMetrics metrics;
+    // the metrics label the traffic by the registered address of the sender
+    private final CrossServerService crossServerService;
     private static final String SECONDARY_SERVER_NOT_ACTIVE = "Secondary server is not active";
     private static final String FAILED = "Failed to propagate state";
+    private static final String SNAPSHOT_FAILED = "Failed to send snapshot";
+    private static final int SNAPSHOT_CHUNK_SIZE = 1000;
 
-    public CrossServerDistLedgerServiceImpl(ServerState state) {
+    public CrossServerDistLedgerServiceImpl(ServerState state, ServerMetrics metrics,
+            CrossServerService crossServerService) {
         this.state = state;
+        this.metrics = metrics;
+        this.crossServerService = crossServerService;
     }
 
     @Override
     public void propagateState(PropagateStateRequest request, StreamObserver<PropagateStateResponse> responseObserver) {
-        Logger.log("Received propagate state request");
+        Logger.debug("Received propagate state request");
+        metrics.recordBytesReceived(crossServerService.peerLabel(request.getSender()), request.getSerializedSize());
         // check if server is active
         if (!state.isActive()) {
             responseObserver
@@ -35,17 +50,117 @@ public class CrossServerDistLedgerServiceImpl
         // receive ledger state
         try {
             // set ledger state on server
-            state.propagateState(deserializeRequestOperationList(request), request.getReplicaTSList());
-            // return response
-            responseObserver.onNext(PropagateStateResponse.newBuilder().build());
+            VectorClock replicaTS = request.hasCompactLedger()
+                    ? VectorClock.from(request.getCompactLedger().getReplicaTSCount(),
+                            request.getCompactLedger()::getReplicaTS)
+                    : VectorClock.from(request.getReplicaTSCount(), request::getReplicaTS);
+            state.propagateState(deserializeRequestOperationList(request), replicaTS);
+            // return response with our replicaTS, so the sender knows what we already have
+            PropagateStateResponse.Builder response = PropagateStateResponse.newBuilder()
+                    .addAllCodecs(BlockCodecs.names());
+            state.getReplicaTS().forEach(response::addReplicaTS);
+            responseObserver.onNext(response.build());
             responseObserver.onCompleted();
+        } catch (IllegalArgumentException e) {
+            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
         } catch (Exception e) {
             responseObserver.onError(Status.UNKNOWN.withDescription(FAILED).asRuntimeException());
         }
     }
 
+    @Override
+    public void getSnapshot(GetSnapshotRequest request, StreamObserver<SnapshotChunk> responseObserver) {
+        Logger.debug("Received snapshot request");
+        if (!state.isActive()) {
+            responseObserver
+                    .onError(Status.UNAVAILABLE.withDescription(SECONDARY_SERVER_NOT_ACTIVE).asRuntimeException());
+            return;
+        }
+        try {
+            // the copy is taken under the state lock, the chunks are sent without holding it
+            StateSnapshot snapshot = state.takeSnapshot();
+            new Serializer(state.getAccountNames()).serializeSnapshot(snapshot, SNAPSHOT_CHUNK_SIZE, responseObserver::onNext);
+            responseObserver.onCompleted();
+        } catch (Exception e) {
+            responseObserver.onError(Status.UNKNOWN.withDescription(SNAPSHOT_FAILED).asRuntimeException());
+        }
+    }
+
+    @Override
+    public StreamObserver<ReplicationBatch> replicate(StreamObserver<ReplicationAck> responseObserver) {
+        Logger.debug("Replication stream opened");
+        return new StreamObserver<ReplicationBatch>() {
+            private boolean closed = false;
+            // the sender only sends the name of an account id the first time the stream uses it
+            private final Deserializer deserializer = new Deserializer(state.getAccountNames());
+            // the codecs we can decode are listed in the first ack
+            private boolean codecsSent = false;
+            // looked up again while the sender is not registered, e.g. on a stream opened before
+            private String peer = ServerMetrics.UNKNOWN_PEER;
+
+            @Override
+            public void onNext(ReplicationBatch batch) {
+                if (closed) {
+                    return;
+                }
+                if (peer.equals(ServerMetrics.UNKNOWN_PEER)) {
+                    peer = crossServerService.peerLabel(batch.getSender());
+                }
+                metrics.recordBytesReceived(peer, batch.getSerializedSize());
+                if (!state.isActive()) {
+                    closed = true;
+                    responseObserver.onError(
+                            Status.UNAVAILABLE.withDescription(SECONDARY_SERVER_NOT_ACTIVE).asRuntimeException());
+                    return;
+                }
+                try {
+                    // the next batch is only read after this one is applied, which slows the sender down
+                    deserializer.addNames(batch.getNamesList());
+                    if (batch.hasCompactLedger()) {
+                        CompactLedger compact = batch.getCompactLedger();
+                        state.propagateState(deserializer.deserializeCompact(compact),
+                                VectorClock.from(compact.getReplicaTSCount(), compact::getReplicaTS));
+                    } else {
+                        state.propagateState(deserializer.deserialize(batch.getLedgerList()),
+                                VectorClock.from(batch.getReplicaTSCount(), batch::getReplicaTS));
+                    }
+                    ReplicationAck.Builder ack = ReplicationAck.newBuilder().setSequence(batch.getSequence());
+                    if (!codecsSent) {
+                        ack.addAllCodecs(BlockCodecs.names());
+                        codecsSent = true;
+                    }
+                    state.getReplicaTS().forEach(ack::addReplicaTS);
+                    responseObserver.onNext(ack.build());
+                } catch (IllegalArgumentException e) {
+                    closed = true;
+                    responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asRuntimeException());
+                } catch (Exception e) {
+                    closed = true;
+                    responseObserver.onError(Status.UNKNOWN.withDescription(FAILED).asRuntimeException());
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                Logger.warn("Replication stream failed: {}", t.getMessage());
+            }
+
+            @Override
+            public void onCompleted() {
+                Logger.debug("Replication stream closed");
+                if (!closed) {
+                    responseObserver.onCompleted();
+                }
+            }
+        };
+    }
+
     private List<Operation> deserializeRequestOperationList(PropagateStateRequest request) {
-        Deserializer deserializer = new Deserializer();
+        Deserializer deserializer = new Deserializer(state.getAccountNames());
+        deserializer.addNames(request.getState().getNamesList());
+        if (request.hasCompactLedger()) {
+            return deserializer.deserializeCompact(request.getCompactLedger());
+        }
         return deserializer.deserialize(request.getState().getLedgerList());
     }
 }
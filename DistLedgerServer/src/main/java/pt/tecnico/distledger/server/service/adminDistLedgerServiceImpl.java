@@ -2,29 +2,43 @@ package pt.tecnico.distledger.server.service;
 
 import io.grpc.Status;
 import pt.ulisboa.tecnico.distledger.contract.admin.AdminServiceGrpc;
+import pt.ulisboa.tecnico.distledger.contract.admin.AdminDistLedger;
 import pt.ulisboa.tecnico.distledger.contract.admin.AdminDistLedger.*;
 import pt.ulisboa.tecnico.distledger.contract.DistLedgerCommonDefinitions;
 import pt.ulisboa.tecnico.distledger.contract.DistLedgerCommonDefinitions.*;
 import pt.tecnico.distledger.server.domain.operation.Operation;
 import pt.tecnico.distledger.server.grpc.CrossServerService;
+import pt.tecnico.distledger.server.grpc.PropagationResult;
 import pt.tecnico.distledger.server.Serializer;
 import pt.tecnico.distledger.server.domain.ServerState;
+import pt.tecnico.distledger.server.metrics.MetricSample;
+import pt.tecnico.distledger.server.metrics.ServerMetrics;
+import pt.tecnico.distledger.utils.Logger;
+import pt.tecnico.distledger.utils.VectorClock;
 
+import java.util.ArrayList;
 import java.util.List;
 
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 
 public class adminDistLedgerServiceImpl extends AdminServiceGrpc.AdminServiceImplBase {
     private final ServerState state;
     private CrossServerService crossServerService;
+    private final ServerMetrics metrics;
     private static final String ACTIVATION_FAILED = "Server activation failed";
     private static final String DEACTIVATION_FAILED = "Server deactivation failed";
     private static final String LEDGER_FAILED = "Getting ledger failed";
     private static final String GOSSIP_FAILED = "Gossip failed";
+    private static final String METRICS_FAILED = "Getting metrics failed";
+    private static final int DEFAULT_LEDGER_CHUNK_SIZE = 1000;
+    private static final int MAX_LEDGER_CHUNK_SIZE = 10000;
 
-    public adminDistLedgerServiceImpl(ServerState state, CrossServerService crossServerService) {
+    public adminDistLedgerServiceImpl(ServerState state, CrossServerService crossServerService,
+            ServerMetrics metrics) {
         this.state = state;
         this.crossServerService = crossServerService;
+        this.metrics = metrics;
     }
 
     @Override
@@ -75,10 +89,63 @@ public class adminDistLedgerServiceImpl extends AdminServiceGrpc.AdminServiceImp
         }
     }
 
+    @Override
+    public void streamLedgerState(streamLedgerStateRequest request,
+            StreamObserver<LedgerStateChunk> responseObserver) {
+        int chunkSize = request.getChunkSize() > 0
+                ? Math.min(request.getChunkSize(), MAX_LEDGER_CHUNK_SIZE)
+                : DEFAULT_LEDGER_CHUNK_SIZE;
+        VectorClock sinceTS = request.getSinceTSCount() > 0
+                ? VectorClock.from(request.getSinceTSCount(), request::getSinceTS)
+                : null;
+        ServerCallStreamObserver<LedgerStateChunk> observer =
+                (ServerCallStreamObserver<LedgerStateChunk>) responseObserver;
+        observer.setOnCancelHandler(() -> Logger.debug("Ledger dump cancelled by the client"));
+        // the ledger is read one chunk at a time without the state lock, and only while the
+        // client keeps up, so a big ledger is never copied or buffered as a whole
+        observer.setOnReadyHandler(new Runnable() {
+            private long next = request.getFromIndex();
+            private boolean done = false;
+
+            @Override
+            public void run() {
+                try {
+                    while (!done && observer.isReady()) {
+                        List<Operation> operations = new ArrayList<>(chunkSize);
+                        next = state.readLedger(next, chunkSize, sinceTS, operations);
+                        if (operations.isEmpty()) {
+                            done = true;
+                            observer.onCompleted();
+                            return;
+                        }
+                        observer.onNext(LedgerStateChunk.newBuilder()
+                                .addAllLedger(serializeOperations(operations))
+                                .setNextIndex(next)
+                                .build());
+                    }
+                } catch (Exception e) {
+                    done = true;
+                    observer.onError(Status.UNKNOWN.withDescription(LEDGER_FAILED).asRuntimeException());
+                }
+            }
+        });
+    }
+
     @Override
     public void gossip(GossipRequest request, StreamObserver<GossipResponse> responseObserver) {
         try {
-            crossServerService.propagateState(serializeOperations(state.getLedgerState()), state.getReplicaTS());
+            // every peer is tried, the command fails if any of them did not get our state
+            List<String> failed = new ArrayList<>();
+            for (PropagationResult result : crossServerService.propagateState(state)) {
+                if (!result.isSuccess()) {
+                    failed.add(result.getHost());
+                }
+            }
+            if (!failed.isEmpty()) {
+                responseObserver.onError(Status.UNAVAILABLE.withDescription(
+                        GOSSIP_FAILED + " for " + String.join(", ", failed)).asRuntimeException());
+                return;
+            }
             GossipResponse response = GossipResponse.getDefaultInstance();
             responseObserver.onNext(response);
             responseObserver.onCompleted();
@@ -88,8 +155,26 @@ public class adminDistLedgerServiceImpl extends AdminServiceGrpc.AdminServiceImp
         }
     }
 
+    @Override
+    public void getMetrics(getMetricsRequest request, StreamObserver<getMetricsResponse> responseObserver) {
+        try {
+            getMetricsResponse.Builder response = getMetricsResponse.newBuilder();
+            for (MetricSample sample : metrics.collect()) {
+                response.addSamples(AdminDistLedger.MetricSample.newBuilder()
+                        .setName(sample.getName())
+                        .putAllLabels(sample.getLabels())
+                        .setValue(sample.getValue()));
+            }
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+        } catch (Exception e) {
+            responseObserver
+                    .onError(Status.UNKNOWN.withDescription(METRICS_FAILED).asRuntimeException());
+        }
+    }
+
     private List<DistLedgerCommonDefinitions.Operation> serializeOperations(List<Operation> operationList) {
-        Serializer serializer = new Serializer();
+        Serializer serializer = new Serializer(state.getAccountNames());
         return serializer.serializeOperations(operationList);
     }
 }
\ No newline at end of file
@@ -1,38 +1,67 @@
 package pt.tecnico.distledger.server.service;
 
-import java.util.List;
-
 import io.grpc.Status;
 import pt.ulisboa.tecnico.distledger.contract.user.UserServiceGrpc;
 import pt.ulisboa.tecnico.distledger.contract.user.UserDistLedger.*;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
+import pt.tecnico.distledger.server.domain.BalanceRead;
+import pt.tecnico.distledger.server.domain.BatchEntry;
+import pt.tecnico.distledger.server.domain.ParkedRead;
 import pt.tecnico.distledger.server.domain.ServerState;
+import pt.tecnico.distledger.server.domain.StalenessBound;
 import pt.tecnico.distledger.server.domain.exceptions.*;
+import pt.tecnico.distledger.server.metrics.ServerMetrics;
+import pt.tecnico.distledger.utils.VectorClock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class userDistLedgerServiceImpl extends UserServiceGrpc.UserServiceImplBase {
 
     private final ServerState state;
+    private final ServerMetrics metrics;
+    // how long a balance read ahead of this replica waits for it, 0 to fail right away
+    private final long balanceWait;
+    // answers the parked reads and times them out, no thread waits for a parked read
+    private final ScheduledExecutorService parkedReadExecutor;
     private static final String DEFAULT_ERROR_MESSAGE = "Operation Failed";
     private static final String INVALID_ARGUMENT_MESSAGE = "Invalid arguments";
+    private static final String BATCH_TOO_LARGE_MESSAGE = "Too many operations in the batch, the limit is ";
+    private static final int MAX_BATCH_SIZE = 10000;
 
-    public userDistLedgerServiceImpl(ServerState state) {
+    public userDistLedgerServiceImpl(ServerState state, ServerMetrics metrics, long balanceWait) {
         this.state = state;
+        this.metrics = metrics;
+        this.balanceWait = balanceWait;
+        this.parkedReadExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "parked-reads");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     @Override
     public void createAccount(CreateAccountRequest request, StreamObserver<CreateAccountResponse> responseObserver) {
         // check for invalid arguments
-        if (request.getUserId().isEmpty()) {
+        if (request.getUserId().isEmpty() || !isValidPrevTS(request.getPrevTSCount())) {
             responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(
                     INVALID_ARGUMENT_MESSAGE).asRuntimeException());
             return;
         }
         // try to create account
         try {
-            state.createAccount(request.getUserId(), request.getPrevTSList());
-            List<Integer> replicaTS = state.getReplicaTS();
-            CreateAccountResponse response = CreateAccountResponse.newBuilder().addAllTS(replicaTS).build();
-            responseObserver.onNext(response);
+            state.createAccount(request.getUserId(), VectorClock.from(request.getPrevTSCount(), request::getPrevTS));
+            CreateAccountResponse.Builder response = CreateAccountResponse.newBuilder();
+            state.getReplicaTS().forEach(response::addTS);
+            responseObserver.onNext(response.build());
             responseObserver.onCompleted();
         } catch (AccountAlreadyExistsException e) {
             // if account already exists, return ALREADY_EXISTS error
@@ -67,7 +96,8 @@ public class userDistLedgerServiceImpl extends UserServiceGrpc.UserServiceImplBa
         // try to delete account
         try {
             // Not supported in this version
-            // state.deleteAccount(request.getUserId(), request.getPrevTSList());
+            // state.deleteAccount(request.getUserId(),
+            //         VectorClock.from(request.getPrevTSCount(), request::getPrevTS));
             // return response
             DeleteAccountResponse response = DeleteAccountResponse.newBuilder().build();
             responseObserver.onNext(response);
@@ -99,17 +129,115 @@ public class userDistLedgerServiceImpl extends UserServiceGrpc.UserServiceImplBa
     @Override
     public void balance(BalanceRequest request, StreamObserver<BalanceResponse> responseObserver) {
         // check for invalid arguments
-        if (request.getUserId().isEmpty()) {
+        if (request.getUserId().isEmpty() || !isValidPrevTS(request.getPrevTSCount())) {
             responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(
                     INVALID_ARGUMENT_MESSAGE).asRuntimeException());
             return;
         }
-        // try to get balance
+        VectorClock prevTS = VectorClock.from(request.getPrevTSCount(), request::getPrevTS);
+        if (request.hasStaleness()) {
+            staleBalance(request, prevTS, responseObserver);
+            return;
+        }
+        // a client that saw more than this replica did waits for it instead of retrying; the read
+        // is released on the valueTS, so that is the clock it waits on
+        if (balanceWait > 0 && state.isActive() && !state.getValueTS().dominates(prevTS)) {
+            parkBalance(prevTS, (ServerCallStreamObserver<BalanceResponse>) responseObserver,
+                    () -> answerBalance(request, prevTS, responseObserver));
+            return;
+        }
+        answerBalance(request, prevTS, responseObserver);
+    }
+
+    // Answered right away from the state of the replica when it is within the bound, otherwise
+    // parked like a causal read until the replica catches up with what it knows it misses
+    private void staleBalance(BalanceRequest request, VectorClock prevTS,
+            StreamObserver<BalanceResponse> responseObserver) {
+        Staleness staleness = request.getStaleness();
+        VectorClock target = state.getReadTarget(prevTS,
+                new StalenessBound(staleness.getMaxOperations(), staleness.getMaxMillis()));
+        if (balanceWait > 0 && state.isActive() && !state.getValueTS().dominates(target)) {
+            parkBalance(target, (ServerCallStreamObserver<BalanceResponse>) responseObserver,
+                    () -> answerStaleBalance(request, target, responseObserver));
+            return;
+        }
+        answerStaleBalance(request, target, responseObserver);
+    }
+
+    // The read is answered by the parked reads thread once the valueTS covers prevTS, or
+    // fails as not stable when balanceWait runs out first, whichever comes first wins. The
+    // read is parked before the timeout and the cancel handler exist, so both always have it
+    // to remove.
+    private void parkBalance(VectorClock prevTS, ServerCallStreamObserver<BalanceResponse> responseObserver,
+            Runnable answer) {
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<ScheduledFuture<?>> timeout = new AtomicReference<>();
+        ParkedRead read = state.whenStable(prevTS, () -> parkedReadExecutor.execute(() -> {
+            if (done.compareAndSet(false, true)) {
+                ScheduledFuture<?> pendingTimeout = timeout.get();
+                if (pendingTimeout != null) {
+                    pendingTimeout.cancel(false);
+                }
+                answer.run();
+            }
+        }));
+        if (read == null) {
+            return; // stable already, answered by the parked reads thread
+        }
+        timeout.set(parkedReadExecutor.schedule(() -> {
+            if (done.compareAndSet(false, true)) {
+                state.cancelParkedRead(read);
+                metrics.recordNotStable();
+                responseObserver.onError(Status.ABORTED.withDescription(
+                        new OperationNotStableException().getMessage()).asRuntimeException());
+            }
+        }, balanceWait, TimeUnit.MILLISECONDS));
+        responseObserver.setOnCancelHandler(() -> {
+            if (done.compareAndSet(false, true)) {
+                timeout.get().cancel(false);
+                state.cancelParkedRead(read);
+            }
+        });
+    }
+
+    private void answerBalance(BalanceRequest request, VectorClock prevTS,
+            StreamObserver<BalanceResponse> responseObserver) {
         try {
-            int balance = state.getAccountBalance(request.getUserId(), request.getPrevTSList());
-            List<Integer> replicaTS = state.getReplicaTS();
-            BalanceResponse response = BalanceResponse.newBuilder().setValue(balance).addAllValueTS(replicaTS).build();
-            responseObserver.onNext(response);
+            long balance = state.getAccountBalance(request.getUserId(), prevTS);
+            BalanceResponse.Builder response = BalanceResponse.newBuilder().setValue(balance);
+            state.getReplicaTS().forEach(response::addValueTS);
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+        } catch (AccountDoesntExistException e) {
+            // if account doesn't exist, return NOT_FOUND error
+            responseObserver
+                    .onError(Status.NOT_FOUND.withDescription(e.getMessage()).asRuntimeException());
+        } catch (ServerUnavailableException e) {
+            // if server is unavailable, return UNAVAILABLE error
+            responseObserver.onError(Status.UNAVAILABLE.asRuntimeException());
+        } catch (OperationNotStableException e) {
+            metrics.recordNotStable();
+            responseObserver
+                    .onError(Status.ABORTED.withDescription(e.getMessage()).asRuntimeException());
+        } catch (FailedToPropagateException e) {
+            responseObserver
+                    .onError(Status.ABORTED.withDescription(e.getMessage()).asRuntimeException());
+        } catch (Exception e) {
+            responseObserver
+                    .onError(Status.UNKNOWN.withDescription(DEFAULT_ERROR_MESSAGE).asRuntimeException());
+        }
+    }
+
+    private void answerStaleBalance(BalanceRequest request, VectorClock target,
+            StreamObserver<BalanceResponse> responseObserver) {
+        try {
+            if (!state.getValueTS().dominates(target)) {
+                throw new OperationNotStableException();
+            }
+            BalanceRead read = state.readAccountBalance(request.getUserId());
+            BalanceResponse.Builder response = BalanceResponse.newBuilder().setValue(read.getBalance());
+            read.getValueTS().forEach(response::addValueTS);
+            responseObserver.onNext(response.build());
             responseObserver.onCompleted();
         } catch (AccountDoesntExistException e) {
             // if account doesn't exist, return NOT_FOUND error
@@ -118,7 +246,8 @@ public class userDistLedgerServiceImpl extends UserServiceGrpc.UserServiceImplBa
         } catch (ServerUnavailableException e) {
             // if server is unavailable, return UNAVAILABLE error
             responseObserver.onError(Status.UNAVAILABLE.asRuntimeException());
-        } catch (FailedToPropagateException | OperationNotStableException e) {
+        } catch (OperationNotStableException e) {
+            metrics.recordNotStable();
             responseObserver
                     .onError(Status.ABORTED.withDescription(e.getMessage()).asRuntimeException());
         } catch (Exception e) {
@@ -130,7 +259,8 @@ public class userDistLedgerServiceImpl extends UserServiceGrpc.UserServiceImplBa
     @Override
     public void transferTo(TransferToRequest request, StreamObserver<TransferToResponse> responseObserver) {
         // check for invalid arguments
-        if (request.getAccountFrom().isEmpty() || request.getAccountTo().isEmpty()) {
+        if (request.getAccountFrom().isEmpty() || request.getAccountTo().isEmpty()
+                || !isValidPrevTS(request.getPrevTSCount())) {
             responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(
                     INVALID_ARGUMENT_MESSAGE).asRuntimeException());
             return;
@@ -138,10 +268,10 @@ public class userDistLedgerServiceImpl extends UserServiceGrpc.UserServiceImplBa
         // try to transfer
         try {
             state.transferTo(request.getAccountFrom(), request.getAccountTo(), request.getAmount(),
-                    request.getPrevTSList());
-            List<Integer> replicaTS = state.getReplicaTS();
-            TransferToResponse response = TransferToResponse.newBuilder().addAllTS(replicaTS).build();
-            responseObserver.onNext(response);
+                    VectorClock.from(request.getPrevTSCount(), request::getPrevTS));
+            TransferToResponse.Builder response = TransferToResponse.newBuilder();
+            state.getReplicaTS().forEach(response::addTS);
+            responseObserver.onNext(response.build());
             responseObserver.onCompleted();
         } catch (AccountDoesntExistException e) {
             // if account doesn't exist, return NOT_FOUND error
@@ -171,4 +301,99 @@ public class userDistLedgerServiceImpl extends UserServiceGrpc.UserServiceImplBa
                     .onError(Status.UNKNOWN.withDescription(DEFAULT_ERROR_MESSAGE).asRuntimeException());
         }
     }
-}
\ No newline at end of file
+
+    @Override
+    public void submitBatch(SubmitBatchRequest request, StreamObserver<SubmitBatchResponse> responseObserver) {
+        // check for invalid arguments
+        if (request.getOperationsCount() > MAX_BATCH_SIZE) {
+            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(
+                    BATCH_TOO_LARGE_MESSAGE + MAX_BATCH_SIZE).asRuntimeException());
+            return;
+        }
+        if (!isValidPrevTS(request.getPrevTSCount())) {
+            responseObserver.onError(Status.INVALID_ARGUMENT.withDescription(
+                    INVALID_ARGUMENT_MESSAGE).asRuntimeException());
+            return;
+        }
+        // operations with invalid arguments get their result here, the others are applied together
+        BatchResult[] results = new BatchResult[request.getOperationsCount()];
+        List<BatchEntry> operations = new ArrayList<>();
+        List<Integer> positions = new ArrayList<>();
+        for (int i = 0; i < results.length; i++) {
+            BatchEntry op = toOperation(request.getOperations(i));
+            if (op == null) {
+                results[i] = batchResult(Status.INVALID_ARGUMENT.withDescription(INVALID_ARGUMENT_MESSAGE));
+                continue;
+            }
+            operations.add(op);
+            positions.add(i);
+        }
+        // try to apply the batch
+        try {
+            List<RuntimeException> applied = state.submitBatch(operations,
+                    VectorClock.from(request.getPrevTSCount(), request::getPrevTS));
+            for (int i = 0; i < applied.size(); i++) {
+                results[positions.get(i)] = batchResult(toStatus(applied.get(i)));
+            }
+            SubmitBatchResponse.Builder response = SubmitBatchResponse.newBuilder().addAllResults(Arrays.asList(results));
+            state.getReplicaTS().forEach(response::addTS);
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+        } catch (ServerUnavailableException e) {
+            // if server is unavailable, return UNAVAILABLE error
+            responseObserver.onError(Status.UNAVAILABLE.asRuntimeException());
+        } catch (Exception e) {
+            responseObserver
+                    .onError(Status.UNKNOWN.withDescription(DEFAULT_ERROR_MESSAGE).asRuntimeException());
+        }
+    }
+
+    // a prevTS with entries past the replicas could never be covered, so whatever waits on it
+    // would wait forever
+    private boolean isValidPrevTS(int size) {
+        return size <= state.getNumReplicas();
+    }
+
+    // null if the operation is missing its accounts
+    private static BatchEntry toOperation(BatchOperation operation) {
+        switch (operation.getOperationCase()) {
+            case CREATEACCOUNT:
+                CreateAccountRequest create = operation.getCreateAccount();
+                return create.getUserId().isEmpty() ? null : BatchEntry.createAccount(create.getUserId());
+            case TRANSFERTO:
+                TransferToRequest transfer = operation.getTransferTo();
+                if (transfer.getAccountFrom().isEmpty() || transfer.getAccountTo().isEmpty()) {
+                    return null;
+                }
+                return BatchEntry.transferTo(transfer.getAccountFrom(), transfer.getAccountTo(), transfer.getAmount());
+            default:
+                return null;
+        }
+    }
+
+    // same status codes as the single operation calls
+    private static Status toStatus(RuntimeException e) {
+        if (e == null) {
+            return Status.OK;
+        } else if (e instanceof AccountAlreadyExistsException) {
+            return Status.ALREADY_EXISTS.withDescription(e.getMessage());
+        } else if (e instanceof AccountDoesntExistException) {
+            return Status.NOT_FOUND.withDescription(e.getMessage());
+        } else if (e instanceof InsufficientFundsException) {
+            return Status.FAILED_PRECONDITION.withDescription(e.getMessage());
+        } else if (e instanceof InvalidAmountException) {
+            return Status.INVALID_ARGUMENT.withDescription(e.getMessage());
+        } else if (e instanceof ServerUnavailableException) {
+            return Status.UNAVAILABLE;
+        }
+        return Status.UNKNOWN.withDescription(DEFAULT_ERROR_MESSAGE);
+    }
+
+    private static BatchResult batchResult(Status status) {
+        BatchResult.Builder result = BatchResult.newBuilder().setCode(status.getCode().value());
+        if (status.getDescription() != null) {
+            result.setDescription(status.getDescription());
+        }
+        return result.build();
+    }
+}
@@ -0,0 +1,66 @@
+package pt.tecnico.distledger.server;
+
+import org.junit.jupiter.api.Test;
+import pt.tecnico.distledger.server.domain.AccountNames;
+import pt.tecnico.distledger.server.domain.operation.CreateOp;
+import pt.tecnico.distledger.server.domain.operation.Operation;
+import pt.ulisboa.tecnico.distledger.contract.DistLedgerCommonDefinitions;
+import pt.ulisboa.tecnico.distledger.contract.DistLedgerCommonDefinitions.AccountName;
+import pt.ulisboa.tecnico.distledger.contract.DistLedgerCommonDefinitions.OperationType;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DeserializerTest {
+
+    private static AccountName name(int id, String name) {
+        return AccountName.newBuilder().setId(id).setName(name).build();
+    }
+
+    private static DistLedgerCommonDefinitions.Operation create(int senderId) {
+        return DistLedgerCommonDefinitions.Operation.newBuilder().setType(OperationType.OP_CREATE_ACCOUNT)
+                .setAccount(senderId).addPrevTS(0).addPrevTS(0).addTS(1).addTS(0).build();
+    }
+
+    @Test
+    public void mapsSenderIdsToOurs() {
+        AccountNames names = new AccountNames();
+        names.idOf("broker");
+        Deserializer deserializer = new Deserializer(names);
+        // the sender gave its ids in another order
+        deserializer.addNames(List.of(name(0, "alice"), name(1, "broker")));
+        Operation op = deserializer.deserialize(create(1));
+        assertTrue(op instanceof CreateOp);
+        assertEquals("broker", names.nameOf(op.getAccount()));
+        assertEquals("alice", names.nameOf(deserializer.deserialize(create(0)).getAccount()));
+    }
+
+    @Test
+    public void idsAreRememberedAcrossFrames() {
+        AccountNames names = new AccountNames();
+        Deserializer deserializer = new Deserializer(names);
+        deserializer.addNames(List.of(name(0, "alice")));
+        deserializer.addNames(List.of(name(1, "bob")));
+        assertEquals("alice", names.nameOf(deserializer.deserialize(create(0)).getAccount()));
+    }
+
+    @Test
+    public void rejectsAnIdWithoutAName() {
+        Deserializer deserializer = new Deserializer(new AccountNames());
+        assertThrows(IllegalArgumentException.class, () -> deserializer.deserialize(create(3)));
+        assertThrows(IllegalArgumentException.class, () -> deserializer.deserialize(create(-1)));
+    }
+
+    @Test
+    public void rejectsIdsFarBeyondTheDictionary() {
+        AccountNames names = new AccountNames();
+        Deserializer deserializer = new Deserializer(names);
+        assertThrows(IllegalArgumentException.class,
+                () -> deserializer.addNames(List.of(name(Integer.MAX_VALUE - 1, "huge"))));
+        assertThrows(IllegalArgumentException.class, () -> deserializer.addNames(List.of(name(-1, "negative"))));
+        // ids within the names we know plus the ones in the frame are fine
+        deserializer.addNames(List.of(name(1, "alice"), name(0, "bob")));
+        assertEquals("alice", names.nameOf(deserializer.deserialize(create(1)).getAccount()));
+    }
+}
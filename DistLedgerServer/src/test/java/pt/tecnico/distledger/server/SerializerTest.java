@@ -0,0 +1,131 @@
+package pt.tecnico.distledger.server;
+
+import org.junit.jupiter.api.Test;
+import pt.tecnico.distledger.server.codec.BlockCodec;
+import pt.tecnico.distledger.server.codec.DeflateCodec;
+import pt.tecnico.distledger.server.codec.IdentityCodec;
+import pt.tecnico.distledger.server.domain.AccountNames;
+import pt.tecnico.distledger.server.domain.operation.CreateOp;
+import pt.tecnico.distledger.server.domain.operation.DeleteOp;
+import pt.tecnico.distledger.server.domain.operation.Operation;
+import pt.tecnico.distledger.server.domain.operation.TransferOp;
+import pt.tecnico.distledger.utils.VectorClock;
+import pt.ulisboa.tecnico.distledger.contract.distledgerserver.CrossServerDistLedger.CompactLedger;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SerializerTest {
+
+    // a ledger as replica 0 of 3 would build it, with the transfers of a few accounts
+    private static List<Operation> ledger(AccountNames names, int accounts, int transfers) {
+        List<Operation> ledger = new ArrayList<>();
+        int[] TS = new int[3];
+        for (int i = 0; i < accounts; i++) {
+            VectorClock prevTS = VectorClock.of(TS);
+            TS[0]++;
+            ledger.add(new CreateOp(names.idOf("account" + i), prevTS, VectorClock.of(TS)));
+        }
+        for (int i = 0; i < transfers; i++) {
+            VectorClock prevTS = VectorClock.of(TS);
+            TS[i % 3]++;
+            ledger.add(new TransferOp(names.idOf("account" + (i % accounts)),
+                    names.idOf("account" + ((i + 1) % accounts)), i + 1, prevTS, VectorClock.of(TS)));
+        }
+        VectorClock prevTS = VectorClock.of(TS);
+        TS[0]++;
+        ledger.add(new DeleteOp(names.idOf("account0"), prevTS, VectorClock.of(TS)));
+        return ledger;
+    }
+
+    private static void assertRoundTrip(BlockCodec codec, int accounts, int transfers) {
+        AccountNames senderNames = new AccountNames();
+        // the receiver has its own ids for the same names
+        AccountNames receiverNames = new AccountNames();
+        receiverNames.idOf("account" + (accounts - 1));
+        receiverNames.idOf("someone else");
+        List<Operation> ledger = ledger(senderNames, accounts, transfers);
+        VectorClock replicaTS = ledger.get(ledger.size() - 1).getTS();
+
+        Serializer serializer = new Serializer(senderNames, new BitSet());
+        CompactLedger compact = serializer.serializeCompact(ledger, codec, replicaTS);
+        Deserializer deserializer = new Deserializer(receiverNames);
+        deserializer.addNames(serializer.getNewNames());
+        List<Operation> received = deserializer.deserializeCompact(compact);
+
+        assertEquals(replicaTS, VectorClock.from(compact.getReplicaTSCount(), compact::getReplicaTS));
+        assertEquals(ledger.size(), received.size());
+        for (int i = 0; i < ledger.size(); i++) {
+            Operation sent = ledger.get(i);
+            Operation got = received.get(i);
+            assertEquals(sent.getClass(), got.getClass());
+            assertEquals(senderNames.nameOf(sent.getAccount()), receiverNames.nameOf(got.getAccount()));
+            assertEquals(sent.getPrevTS(), got.getPrevTS());
+            assertEquals(sent.getTS(), got.getTS());
+            if (sent instanceof TransferOp) {
+                TransferOp sentTransfer = (TransferOp) sent;
+                TransferOp gotTransfer = (TransferOp) got;
+                assertEquals(senderNames.nameOf(sentTransfer.getDestAccount()),
+                        receiverNames.nameOf(gotTransfer.getDestAccount()));
+                assertEquals(sentTransfer.getAmount(), gotTransfer.getAmount());
+            }
+        }
+    }
+
+    @Test
+    public void compactLedgerRoundTripsWithDeflate() {
+        assertRoundTrip(new DeflateCodec(), 10, 500);
+    }
+
+    @Test
+    public void compactLedgerRoundTripsWithIdentity() {
+        assertRoundTrip(new IdentityCodec(), 10, 500);
+    }
+
+    @Test
+    public void smallLedgerFallsBackToIdentity() {
+        // too few operations for deflate's header to pay off
+        assertRoundTrip(new DeflateCodec(), 1, 0);
+        AccountNames names = new AccountNames();
+        List<Operation> ledger = ledger(names, 1, 0);
+        CompactLedger compact = new Serializer(names, new BitSet())
+                .serializeCompact(ledger, new DeflateCodec(), VectorClock.zero(3));
+        assertEquals(new IdentityCodec().getName(), compact.getCodec());
+    }
+
+    @Test
+    public void namesAreOnlySentOnce() {
+        AccountNames names = new AccountNames();
+        List<Operation> ledger = ledger(names, 4, 100);
+        BitSet sentNames = new BitSet();
+        Serializer first = new Serializer(names, sentNames);
+        first.serializeCompact(ledger, new DeflateCodec(), VectorClock.zero(3));
+        assertEquals(4, first.getNewNames().size());
+        Serializer second = new Serializer(names, sentNames);
+        second.serializeCompact(ledger, new DeflateCodec(), VectorClock.zero(3));
+        assertTrue(second.getNewNames().isEmpty());
+    }
+
+    @Test
+    public void rejectsTimestampsOfDifferentSizes() {
+        AccountNames names = new AccountNames();
+        int alice = names.idOf("alice");
+        List<Operation> ledger = List.of(
+                new CreateOp(alice, VectorClock.of(0, 0), VectorClock.of(1, 0)),
+                new CreateOp(alice, VectorClock.of(1, 0, 0), VectorClock.of(2, 0, 0)));
+        assertThrows(IllegalArgumentException.class, () -> new Serializer(names, new BitSet())
+                .serializeCompact(ledger, new DeflateCodec(), VectorClock.zero(2)));
+    }
+
+    @Test
+    public void rejectsAnUnknownCodec() {
+        AccountNames names = new AccountNames();
+        CompactLedger compact = new Serializer(names, new BitSet())
+                .serializeCompact(ledger(names, 2, 10), new IdentityCodec(), VectorClock.zero(3))
+                .toBuilder().setCodec("no-such-codec").build();
+        assertThrows(IllegalArgumentException.class, () -> new Deserializer(names).deserializeCompact(compact));
+    }
+}
@@ -0,0 +1,87 @@
+package pt.tecnico.distledger.server.domain;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AccountNamesTest {
+
+    @Test
+    public void idsAreDenseAndStable() {
+        AccountNames names = new AccountNames();
+        assertEquals(AccountNames.NOT_FOUND, names.find("alice"));
+        assertEquals(0, names.idOf("alice"));
+        assertEquals(1, names.idOf("bob"));
+        assertEquals(0, names.idOf("alice"));
+        assertEquals(1, names.find("bob"));
+        assertEquals("bob", names.nameOf(1));
+        assertEquals(2, names.size());
+    }
+
+    @Test
+    public void findDoesNotAdd() {
+        AccountNames names = new AccountNames();
+        names.find("ghost");
+        assertEquals(0, names.size());
+    }
+
+    @Test
+    public void keepsEveryNameAcrossGrowth() {
+        AccountNames names = new AccountNames();
+        for (int i = 0; i < 100_000; i++) {
+            assertEquals(i, names.idOf("account-" + i));
+        }
+        for (int i = 0; i < 100_000; i++) {
+            assertEquals(i, names.find("account-" + i));
+            assertEquals("account-" + i, names.nameOf(i));
+        }
+        assertEquals(AccountNames.NOT_FOUND, names.find("account-100000"));
+    }
+
+    @Test
+    public void collidingHashesGetTheirOwnIds() {
+        AccountNames names = new AccountNames();
+        // "Aa" and "BB" have the same String hash
+        int first = names.idOf("Aa");
+        int second = names.idOf("BB");
+        assertNotEquals(first, second);
+        assertEquals(first, names.find("Aa"));
+        assertEquals(second, names.find("BB"));
+    }
+
+    @Test
+    public void concurrentAddsAgreeOnTheIds() throws Exception {
+        AccountNames names = new AccountNames();
+        int threads = 4;
+        int count = 20_000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<int[]>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            results.add(executor.submit(() -> {
+                int[] ids = new int[count];
+                for (int i = 0; i < count; i++) {
+                    ids[i] = names.idOf("account-" + i);
+                    // a lookup racing with the growth of the table still finds it
+                    assertEquals(ids[i], names.find("account-" + i));
+                }
+                return ids;
+            }));
+        }
+        int[] expected = results.get(0).get(30, TimeUnit.SECONDS);
+        for (Future<int[]> result : results) {
+            assertArrayEquals(expected, result.get(30, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+        assertEquals(count, names.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals("account-" + i, names.nameOf(expected[i]));
+        }
+    }
+}
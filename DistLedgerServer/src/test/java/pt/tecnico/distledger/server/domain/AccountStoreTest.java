@@ -0,0 +1,75 @@
+package pt.tecnico.distledger.server.domain;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AccountStoreTest {
+
+    @Test
+    public void createFindAndRemove() {
+        AccountNames names = new AccountNames();
+        AccountStore store = new AccountStore(names);
+        int alice = names.idOf("alice");
+        assertEquals(AccountStore.NOT_FOUND, store.find("alice"));
+        assertTrue(store.create(alice, 10));
+        assertFalse(store.create(alice, 20));
+        assertEquals(alice, store.find("alice"));
+        assertEquals(10, store.getBalance(alice));
+        assertEquals(1, store.size());
+
+        assertTrue(store.remove(alice));
+        assertFalse(store.remove(alice));
+        assertEquals(AccountStore.NOT_FOUND, store.find("alice"));
+        assertNull(store.getName(alice));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void idsAddedAfterTheStoreHaveNoAccount() {
+        AccountNames names = new AccountNames();
+        AccountStore store = new AccountStore(names);
+        int id = 0;
+        for (int i = 0; i < 100; i++) {
+            id = names.idOf("account-" + i);
+        }
+        assertFalse(store.contains(id));
+        assertFalse(store.contains(-1));
+        assertEquals(AccountStore.NOT_FOUND, store.find("account-99"));
+        assertEquals(AccountStore.NOT_FOUND, store.find("never-added"));
+    }
+
+    @Test
+    public void growsAndKeepsBalances() {
+        AccountNames names = new AccountNames();
+        AccountStore store = new AccountStore(names);
+        for (int i = 0; i < 1000; i++) {
+            store.create(names.idOf("account-" + i), i);
+        }
+        assertTrue(store.capacity() >= 1000);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, store.getBalance(store.find("account-" + i)));
+        }
+    }
+
+    @Test
+    public void copyIsIndependent() {
+        AccountNames names = new AccountNames();
+        AccountStore store = new AccountStore(names);
+        int alice = names.idOf("alice");
+        store.create(alice, 10);
+        AccountStore copy = store.copy();
+        store.addToBalance(alice, 5);
+        store.create(names.idOf("bob"), 1);
+        assertEquals(10, copy.getBalance(alice));
+        assertEquals(1, copy.size());
+        assertSame(names, copy.getNames());
+
+        Map<String, Long> balances = new HashMap<>();
+        store.forEach(balances::put);
+        assertEquals(Map.of("alice", 15L, "bob", 1L), balances);
+    }
+}
@@ -0,0 +1,92 @@
+package pt.tecnico.distledger.server.domain;
+
+import org.junit.jupiter.api.Test;
+import pt.tecnico.distledger.utils.VectorClock;
+
+import java.util.List;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DependencyIndexTest {
+
+    private static DependencyIndex<VectorClock> index(int numReplicas) {
+        return new DependencyIndex<>(numReplicas, Function.identity());
+    }
+
+    @Test
+    public void releasesItemsOnceTheirEntryIsCovered() {
+        DependencyIndex<VectorClock> index = index(3);
+        VectorClock item = VectorClock.of(0, 2, 0);
+        index.add(item, VectorClock.zero(3));
+        assertEquals(1, index.size());
+        assertTrue(index.release(VectorClock.of(5, 1, 5)).isEmpty());
+        assertEquals(List.of(item), index.release(VectorClock.of(0, 2, 0)));
+        assertTrue(index.isEmpty());
+    }
+
+    @Test
+    public void itemThatIsNotBlockedIsReleasedRightAway() {
+        DependencyIndex<VectorClock> index = index(2);
+        VectorClock item = VectorClock.of(1, 1);
+        index.add(item, VectorClock.of(1, 1));
+        assertEquals(List.of(item), index.release(VectorClock.of(1, 1)));
+    }
+
+    @Test
+    public void itemBlockedOnTwoEntriesIsReleasedOncePerEntry() {
+        DependencyIndex<VectorClock> index = index(2);
+        VectorClock item = VectorClock.of(1, 1);
+        index.add(item, VectorClock.zero(2));
+        // indexed on the first entry it waits for, the caller adds it again for the next one
+        VectorClock valueTS = VectorClock.of(1, 0);
+        assertEquals(List.of(item), index.release(valueTS));
+        index.add(item, valueTS);
+        assertTrue(index.release(valueTS).isEmpty());
+        assertEquals(List.of(item), index.release(VectorClock.of(1, 1)));
+    }
+
+    @Test
+    public void overLongClockIsNeverReleased() {
+        DependencyIndex<VectorClock> index = index(2);
+        // a nonzero entry past the replicas is one no valueTS will ever cover
+        VectorClock item = VectorClock.of(0, 0, 1);
+        index.add(item, VectorClock.zero(2));
+        assertEquals(1, index.size());
+        assertTrue(index.release(VectorClock.of(100, 100)).isEmpty());
+        assertTrue(index.remove(item));
+        assertTrue(index.isEmpty());
+    }
+
+    @Test
+    public void overLongClockWithZeroExtraEntriesIsReleased() {
+        DependencyIndex<VectorClock> index = index(2);
+        VectorClock item = VectorClock.of(0, 1, 0);
+        index.add(item, VectorClock.zero(2));
+        assertEquals(List.of(item), index.release(VectorClock.of(0, 1)));
+    }
+
+    @Test
+    public void removeReportsWhetherTheItemWasStillWaiting() {
+        DependencyIndex<VectorClock> index = index(2);
+        VectorClock item = VectorClock.of(0, 3);
+        index.add(item, VectorClock.zero(2));
+        assertTrue(index.remove(item));
+        assertFalse(index.remove(item));
+        assertTrue(index.isEmpty());
+
+        index.add(item, VectorClock.zero(2));
+        index.release(VectorClock.of(0, 3));
+        assertFalse(index.remove(item));
+    }
+
+    @Test
+    public void clearDropsEverything() {
+        DependencyIndex<VectorClock> index = index(2);
+        index.add(VectorClock.of(1, 0), VectorClock.zero(2));
+        index.add(VectorClock.of(0, 0, 1), VectorClock.zero(2));
+        index.clear();
+        assertTrue(index.isEmpty());
+        assertTrue(index.release(VectorClock.of(9, 9)).isEmpty());
+    }
+}
@@ -0,0 +1,110 @@
+package pt.tecnico.distledger.server.domain;
+
+import org.junit.jupiter.api.Test;
+import pt.tecnico.distledger.server.domain.operation.CreateOp;
+import pt.tecnico.distledger.server.domain.operation.Operation;
+import pt.tecnico.distledger.utils.VectorClock;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SeenOperationsTest {
+
+    // the sequence-th operation of the replica, with nothing of the others before it
+    private static Operation op(int replica, int sequence, int numReplicas) {
+        int[] prevTS = new int[numReplicas];
+        prevTS[replica] = sequence - 1;
+        int[] TS = prevTS.clone();
+        TS[replica] = sequence;
+        return new CreateOp(0, VectorClock.of(prevTS), VectorClock.of(TS));
+    }
+
+    @Test
+    public void inOrderOperationsOnlyMoveTheMark() {
+        SeenOperations seen = new SeenOperations(2);
+        for (int i = 1; i <= 100; i++) {
+            assertFalse(seen.contains(op(0, i, 2)));
+            seen.add(op(0, i, 2));
+            assertTrue(seen.contains(op(0, i, 2)));
+        }
+        assertEquals(VectorClock.of(100, 0), seen.getContiguousTS());
+        assertEquals(0, seen.outOfOrder());
+        assertFalse(seen.contains(op(1, 1, 2)));
+    }
+
+    @Test
+    public void outOfOrderOperationsWaitForTheGap() {
+        SeenOperations seen = new SeenOperations(2);
+        seen.add(op(1, 1, 2));
+        seen.add(op(1, 4, 2));
+        seen.add(op(1, 3, 2));
+        assertTrue(seen.contains(op(1, 3, 2)));
+        assertTrue(seen.contains(op(1, 4, 2)));
+        assertFalse(seen.contains(op(1, 2, 2)));
+        assertFalse(seen.contains(op(1, 5, 2)));
+        assertEquals(VectorClock.of(0, 1), seen.getContiguousTS());
+        assertEquals(2, seen.outOfOrder());
+
+        // filling the gap drains everything received ahead of it
+        seen.add(op(1, 2, 2));
+        assertEquals(VectorClock.of(0, 4), seen.getContiguousTS());
+        assertEquals(0, seen.outOfOrder());
+    }
+
+    @Test
+    public void duplicatesAreNotCountedTwice() {
+        SeenOperations seen = new SeenOperations(1);
+        seen.add(op(0, 3, 1));
+        seen.add(op(0, 3, 1));
+        assertEquals(1, seen.outOfOrder());
+        seen.add(op(0, 1, 1));
+        seen.add(op(0, 1, 1));
+        assertEquals(VectorClock.of(1), seen.getContiguousTS());
+    }
+
+    @Test
+    public void addAllCoversEverythingUpToTheTimestamp() {
+        SeenOperations seen = new SeenOperations(2);
+        seen.add(op(0, 5, 2));
+        seen.add(op(0, 7, 2));
+        seen.addAll(VectorClock.of(5, 2));
+        // 5 was ahead of the gap and now falls under the mark, 7 is still ahead of 6
+        assertEquals(VectorClock.of(5, 2), seen.getContiguousTS());
+        assertEquals(1, seen.outOfOrder());
+        assertTrue(seen.contains(op(1, 2, 2)));
+        assertTrue(seen.contains(op(0, 7, 2)));
+        seen.addAll(VectorClock.of(6, 0));
+        assertEquals(VectorClock.of(7, 2), seen.getContiguousTS());
+        assertEquals(0, seen.outOfOrder());
+    }
+
+    @Test
+    public void resetForgetsWhatWasAhead() {
+        SeenOperations seen = new SeenOperations(2);
+        seen.add(op(0, 10, 2));
+        seen.addAll(VectorClock.of(4, 4));
+        seen.reset(VectorClock.of(2, 1));
+        assertEquals(VectorClock.of(2, 1), seen.getContiguousTS());
+        assertEquals(0, seen.outOfOrder());
+        assertFalse(seen.contains(op(0, 3, 2)));
+        assertFalse(seen.contains(op(0, 10, 2)));
+    }
+
+    @Test
+    public void operationsWithoutAnOriginAreNeverDuplicates() {
+        SeenOperations seen = new SeenOperations(2);
+        // written by an older version, with TS equal to its prevTS
+        Operation old = new CreateOp(0, VectorClock.of(1, 1), VectorClock.of(1, 1));
+        seen.add(old);
+        assertFalse(seen.contains(old));
+        assertEquals(VectorClock.zero(2), seen.getContiguousTS());
+    }
+
+    @Test
+    public void operationsOfAReplicaBeyondTheOnesKnownAreIgnored() {
+        SeenOperations seen = new SeenOperations(2);
+        Operation beyond = op(2, 1, 3);
+        seen.add(beyond);
+        assertFalse(seen.contains(beyond));
+        assertEquals(VectorClock.zero(2), seen.getContiguousTS());
+    }
+}
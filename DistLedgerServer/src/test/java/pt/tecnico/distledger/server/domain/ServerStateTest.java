@@ -0,0 +1,120 @@
+package pt.tecnico.distledger.server.domain;
+
+import org.junit.jupiter.api.Test;
+import pt.tecnico.distledger.server.domain.exceptions.AccountDoesntExistException;
+import pt.tecnico.distledger.server.domain.exceptions.InsufficientFundsException;
+import pt.tecnico.distledger.server.domain.operation.CreateOp;
+import pt.tecnico.distledger.server.domain.operation.Operation;
+import pt.tecnico.distledger.server.domain.operation.TransferOp;
+import pt.tecnico.distledger.utils.VectorClock;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ServerStateTest {
+
+    @Test
+    public void propagatedOperationWithOverLongPrevTSStaysPending() {
+        ServerState state = new ServerState(0, 2);
+        int alice = state.getAccountNames().idOf("alice");
+        // issued by replica 1 on top of an entry no replica has
+        CreateOp op = new CreateOp(alice, VectorClock.of(0, 0, 1), VectorClock.of(0, 1, 1));
+        assertTimeoutPreemptively(Duration.ofSeconds(5),
+                () -> state.propagateState(List.of(op), VectorClock.of(0, 1)));
+        assertEquals(1, state.getPendingCount());
+        assertEquals(VectorClock.zero(2), state.getValueTS());
+    }
+
+    @Test
+    public void propagatedOperationsRunOnceTheirDependenciesArrive() {
+        ServerState state = new ServerState(0, 2);
+        int broker = state.getAccountNames().idOf("broker");
+        int alice = state.getAccountNames().idOf("alice");
+        CreateOp create = new CreateOp(alice, VectorClock.zero(2), VectorClock.of(0, 1));
+        TransferOp transfer = new TransferOp(broker, alice, 10, VectorClock.of(0, 1), VectorClock.of(0, 2));
+        state.propagateState(List.of(transfer), VectorClock.of(0, 2));
+        assertEquals(1, state.getPendingCount());
+        state.propagateState(List.of(create), VectorClock.of(0, 2));
+        assertEquals(0, state.getPendingCount());
+        assertEquals(10, state.getAccountBalance("alice", VectorClock.of(0, 2)));
+    }
+
+    @Test
+    public void batchItemsOnlyDependOnTheItemBefore() {
+        ServerState state = new ServerState(0, 2);
+        // a peer operation received but not executed yet, it waits for one never sent
+        int bob = state.getAccountNames().idOf("bob");
+        CreateOp waiting = new CreateOp(bob, VectorClock.of(0, 1), VectorClock.of(0, 2));
+        state.propagateState(List.of(waiting), VectorClock.of(0, 2));
+
+        List<RuntimeException> results = state.submitBatch(List.of(
+                BatchEntry.createAccount("alice"),
+                BatchEntry.transferTo("broker", "alice", 5)), VectorClock.zero(2));
+        assertNull(results.get(0));
+        assertNull(results.get(1));
+        List<Operation> ledger = state.getLedgerState();
+        TransferOp transfer = (TransferOp) ledger.get(ledger.size() - 1);
+        assertEquals(VectorClock.of(1, 0), transfer.getPrevTS());
+        assertEquals(VectorClock.of(2, 0), transfer.getTS());
+    }
+
+    @Test
+    public void concurrentTransfersKeepTheTotal() throws Exception {
+        ServerState state = new ServerState(0, 1);
+        int accounts = 8;
+        for (int i = 0; i < accounts; i++) {
+            state.createAccount("account-" + i, VectorClock.empty());
+            state.transferTo("broker", "account-" + i, 100, VectorClock.empty());
+        }
+        int threads = 4;
+        int transfers = 2000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            workers.add(executor.submit(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < transfers; i++) {
+                    // opposite transfers between the same accounts run at the same time
+                    String from = "account-" + random.nextInt(accounts);
+                    String to = "account-" + random.nextInt(accounts);
+                    try {
+                        state.transferTo(from, to, 1 + random.nextInt(5), VectorClock.empty());
+                    } catch (InsufficientFundsException e) {
+                        // the account was emptied by another thread
+                    }
+                }
+            }));
+        }
+        for (Future<?> worker : workers) {
+            worker.get(30, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+        long total = state.getAccountBalance("broker", VectorClock.empty());
+        for (int i = 0; i < accounts; i++) {
+            long balance = state.getAccountBalance("account-" + i, VectorClock.empty());
+            assertTrue(balance >= 0);
+            total += balance;
+        }
+        assertEquals(1000, total);
+        // every transfer that went through took its own entry of the replicaTS
+        assertEquals(state.getLedgerSize(), state.getReplicaTS().get(0));
+        assertEquals(state.getReplicaTS(), state.getValueTS());
+    }
+
+    @Test
+    public void deferredTransferBetweenUnknownNamesAddsNoName() {
+        ServerState state = new ServerState(0, 2);
+        int names = state.getAccountNames().size();
+        assertThrows(AccountDoesntExistException.class,
+                () -> state.transferTo("made-up-1", "made-up-2", 1, VectorClock.of(0, 7)));
+        assertEquals(names, state.getAccountNames().size());
+    }
+}
@@ -0,0 +1,132 @@
+package pt.tecnico.distledger.server.persistence;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import pt.tecnico.distledger.server.domain.AccountNames;
+import pt.tecnico.distledger.server.domain.operation.CreateOp;
+import pt.tecnico.distledger.server.domain.operation.Operation;
+import pt.tecnico.distledger.server.domain.operation.TransferOp;
+import pt.tecnico.distledger.utils.VectorClock;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WriteAheadLogTest {
+    // small enough for a few records per segment
+    private static final long SEGMENT_SIZE = 100;
+
+    @TempDir
+    Path directory;
+
+    private static Operation transfer(AccountNames names, int sequence) {
+        return new TransferOp(names.idOf("broker"), names.idOf("account-" + sequence), sequence,
+                VectorClock.of(sequence - 1, 0), VectorClock.of(sequence, 0));
+    }
+
+    // appends the operations and waits for all of them to be on disk
+    private void write(int count) throws IOException {
+        AccountNames names = new AccountNames();
+        try (WriteAheadLog log = new WriteAheadLog(directory, SEGMENT_SIZE, names)) {
+            long last = -1;
+            for (int i = 1; i <= count; i++) {
+                last = log.append(transfer(names, i));
+            }
+            log.awaitDurable(last);
+        }
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static void chop(Path segment, long bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - bytes);
+        }
+    }
+
+    @Test
+    public void recoversWhatWasAppended() throws IOException {
+        write(20);
+        assertTrue(segments().size() > 1);
+        AccountNames names = new AccountNames();
+        try (WriteAheadLog log = new WriteAheadLog(directory, SEGMENT_SIZE, names)) {
+            List<Operation> recovered = log.getRecoveredOperations(0);
+            assertEquals(20, recovered.size());
+            for (int i = 0; i < 20; i++) {
+                TransferOp op = (TransferOp) recovered.get(i);
+                assertEquals("account-" + (i + 1), names.nameOf(op.getDestAccount()));
+                assertEquals(i + 1, op.getAmount());
+                assertEquals(VectorClock.of(i + 1, 0), op.getTS());
+            }
+            assertEquals(20, log.getNextSequence());
+            assertEquals(15, log.getRecoveredOperations(5).size());
+        }
+    }
+
+    @Test
+    public void truncatesATornTailOfTheLastSegment() throws IOException {
+        write(20);
+        List<Path> segments = segments();
+        Path last = segments.get(segments.size() - 1);
+        chop(last, 3);
+        long size = Files.size(last);
+        AccountNames names = new AccountNames();
+        try (WriteAheadLog log = new WriteAheadLog(directory, SEGMENT_SIZE, names)) {
+            assertEquals(19, log.getRecoveredOperations(0).size());
+            assertTrue(Files.size(last) < size);
+            // the record that replaces the torn one takes its sequence number
+            long sequence = log.append(new CreateOp(names.idOf("alice"), VectorClock.of(19, 0),
+                    VectorClock.of(20, 0)));
+            assertEquals(19, sequence);
+            log.awaitDurable(sequence);
+        }
+        try (WriteAheadLog log = new WriteAheadLog(directory, SEGMENT_SIZE, new AccountNames())) {
+            List<Operation> recovered = log.getRecoveredOperations(0);
+            assertEquals(20, recovered.size());
+            assertTrue(recovered.get(19) instanceof CreateOp);
+        }
+    }
+
+    @Test
+    public void refusesATornRecordBeforeTheLastSegment() throws IOException {
+        write(20);
+        chop(segments().get(0), 3);
+        assertThrows(IOException.class, () -> new WriteAheadLog(directory, SEGMENT_SIZE, new AccountNames()));
+    }
+
+    @Test
+    public void refusesAMissingSegment() throws IOException {
+        write(20);
+        List<Path> segments = segments();
+        assertTrue(segments.size() > 2);
+        Files.delete(segments.get(1));
+        assertThrows(IOException.class, () -> new WriteAheadLog(directory, SEGMENT_SIZE, new AccountNames()));
+    }
+
+    @Test
+    public void deletesOnlySegmentsBeforeTheSequence() throws IOException {
+        write(20);
+        AccountNames names = new AccountNames();
+        try (WriteAheadLog log = new WriteAheadLog(directory, SEGMENT_SIZE, names)) {
+            log.deleteSegmentsBefore(10);
+        }
+        try (WriteAheadLog log = new WriteAheadLog(directory, SEGMENT_SIZE, new AccountNames())) {
+            List<Operation> recovered = log.getRecoveredOperations(10);
+            // the segments left start at or before record 10, so it is still there
+            assertEquals(10, recovered.size());
+            assertEquals(VectorClock.of(11, 0), recovered.get(0).getTS());
+            assertEquals(20, log.getNextSequence());
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package pt.tecnico.distledger.loadtest;
+
+import pt.tecnico.distledger.userclient.grpc.UserService;
+import pt.tecnico.distledger.utils.VectorClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Measures how long an operation takes to reach the other replicas: every interval it creates
+// an account on the first replica and polls the others until they know it.
+public class LagProbe implements Runnable {
+    private static final long POLL_INTERVAL = 5;
+    private static final long TIMEOUT = 30000;
+
+    private final UserService userService;
+    private final int replicas;
+    private final String prefix;
+    private final long interval;
+    private final long origin;
+    private final List<Sample> samples = Collections.synchronizedList(new ArrayList<>());
+    private volatile boolean running = true;
+
+    public LagProbe(UserService userService, int replicas, String prefix, long interval, long origin) {
+        this.userService = userService;
+        this.replicas = replicas;
+        this.prefix = prefix;
+        this.interval = interval;
+        this.origin = origin;
+    }
+
+    // one sample per probe and replica, the lag is -1 if it did not arrive within the timeout
+    public static class Sample {
+        public final long elapsedMillis;
+        public final String replica;
+        public final long lagMillis;
+
+        Sample(long elapsedMillis, String replica, long lagMillis) {
+            this.elapsedMillis = elapsedMillis;
+            this.replica = replica;
+            this.lagMillis = lagMillis;
+        }
+    }
+
+    @Override
+    public void run() {
+        VectorClock zero = VectorClock.zero(userService.getMaxServers());
+        for (int probe = 0; running; probe++) {
+            long next = System.currentTimeMillis() + interval;
+            String account = prefix + "probe-" + probe;
+            try {
+                userService.createAccountAsync(LocalCluster.qualifier(0), account, zero).join();
+                long written = System.nanoTime();
+                long elapsed = System.currentTimeMillis() - origin;
+                List<Integer> waiting = new ArrayList<>();
+                for (int replica = 1; replica < replicas; replica++) {
+                    waiting.add(replica);
+                }
+                while (!waiting.isEmpty() && running) {
+                    long lag = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - written);
+                    for (Integer replica : new ArrayList<>(waiting)) {
+                        if (lag > TIMEOUT || knows(replica, account, zero)) {
+                            samples.add(new Sample(elapsed, LocalCluster.qualifier(replica),
+                                    lag > TIMEOUT ? -1 : lag));
+                            waiting.remove(replica);
+                        }
+                    }
+                    Thread.sleep(POLL_INTERVAL);
+                }
+                Thread.sleep(Math.max(0, next - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                // the cluster is overloaded or going down, try again with the next probe
+            }
+        }
+    }
+
+    private boolean knows(int replica, String account, VectorClock zero) {
+        try {
+            userService.balanceAsync(LocalCluster.qualifier(replica), account, zero).join();
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    public List<Sample> getSamples() {
+        synchronized (samples) {
+            return new ArrayList<>(samples);
+        }
+    }
+}
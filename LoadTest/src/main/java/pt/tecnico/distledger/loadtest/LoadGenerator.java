@@ -0,0 +1,151 @@
+package pt.tecnico.distledger.loadtest;
+
+import io.grpc.Status;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import pt.tecnico.distledger.userclient.grpc.UserService;
+import pt.tecnico.distledger.userclient.grpc.UserSession;
+import pt.tecnico.distledger.utils.Logger;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Closed-loop clients: each one sends its next operation as soon as the previous one is
+// answered, to its own replica and with its own causal session. Latencies are recorded per
+// operation type, and so are the status codes of the answers.
+public class LoadGenerator {
+    // latencies are recorded in microseconds, up to a minute
+    private static final long MAX_LATENCY = TimeUnit.MINUTES.toMicros(1);
+
+    private final UserService userService;
+    private final int replicas;
+    private final String[] accounts;
+    private final String prefix;
+    private final OperationMix mix;
+    private final ExecutorService executor;
+    private final Map<OperationMix.Type, Recorder> recorders = new EnumMap<>(OperationMix.Type.class);
+    private final Map<OperationMix.Type, Map<Status.Code, LongAdder>> outcomes =
+            new EnumMap<>(OperationMix.Type.class);
+    private final AtomicInteger created = new AtomicInteger();
+    private volatile boolean running;
+    private volatile boolean measuring;
+    private CountDownLatch stopped;
+
+    public LoadGenerator(UserService userService, int replicas, String[] accounts, String prefix, OperationMix mix,
+            ExecutorService executor) {
+        this.userService = userService;
+        this.replicas = replicas;
+        this.accounts = accounts;
+        this.prefix = prefix;
+        this.mix = mix;
+        this.executor = executor;
+        for (OperationMix.Type type : OperationMix.Type.values()) {
+            recorders.put(type, new Recorder(MAX_LATENCY, 3));
+            outcomes.put(type, new ConcurrentHashMap<>());
+        }
+    }
+
+    public void start(int clients) {
+        running = true;
+        stopped = new CountDownLatch(clients);
+        for (int i = 0; i < clients; i++) {
+            Client client = new Client(new UserSession(userService), LocalCluster.qualifier(i % replicas));
+            executor.execute(() -> issue(client));
+        }
+    }
+
+    // what was recorded before is dropped, e.g. the warmup
+    public void startMeasuring() {
+        for (OperationMix.Type type : OperationMix.Type.values()) {
+            recorders.get(type).reset();
+            outcomes.get(type).clear();
+        }
+        measuring = true;
+    }
+
+    public void stopMeasuring() {
+        measuring = false;
+    }
+
+    // waits for the operations in flight to be answered
+    public void stop() throws InterruptedException {
+        measuring = false;
+        running = false;
+        stopped.await(30, TimeUnit.SECONDS);
+    }
+
+    // the latencies recorded since the previous call
+    public Histogram intervalHistogram(OperationMix.Type type) {
+        return recorders.get(type).getIntervalHistogram();
+    }
+
+    public Map<Status.Code, LongAdder> outcomes(OperationMix.Type type) {
+        return outcomes.get(type);
+    }
+
+    private void issue(Client client) {
+        if (!running) {
+            stopped.countDown();
+            return;
+        }
+        OperationMix.Type type = mix.next();
+        long start = System.nanoTime();
+        CompletableFuture<?> call;
+        try {
+            call = send(client, type);
+        } catch (RuntimeException e) {
+            call = CompletableFuture.failedFuture(e);
+        }
+        // continue on the executor, a call that fails at once must not grow the stack
+        call.whenCompleteAsync((response, failure) -> {
+            record(type, start, failure);
+            issue(client);
+        }, executor);
+    }
+
+    private CompletableFuture<?> send(Client client, OperationMix.Type type) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        switch (type) {
+            case CREATE:
+                return client.session.createAccount(client.server, prefix + "new-" + created.incrementAndGet());
+            case TRANSFER:
+                return client.session.transferTo(client.server, accounts[random.nextInt(accounts.length)],
+                        accounts[random.nextInt(accounts.length)], 1);
+            case BALANCE:
+                return client.session.balance(client.server, accounts[random.nextInt(accounts.length)]);
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    private void record(OperationMix.Type type, long start, Throwable failure) {
+        if (!measuring) {
+            return;
+        }
+        long micros = Math.min(MAX_LATENCY, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        recorders.get(type).recordValue(micros);
+        Status.Code code = failure == null ? Status.Code.OK : Status.fromThrowable(failure).getCode();
+        if (failure != null && code == Status.Code.UNKNOWN) {
+            Logger.log(type.getLabel() + " failed: " + failure.getMessage());
+        }
+        outcomes.get(type).computeIfAbsent(code, c -> new LongAdder()).increment();
+    }
+
+    private static class Client {
+        private final UserSession session;
+        private final String server;
+
+        private Client(UserSession session, String server) {
+            this.session = session;
+            this.server = server;
+        }
+    }
+}
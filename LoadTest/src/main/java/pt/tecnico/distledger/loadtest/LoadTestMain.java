@@ -0,0 +1,237 @@
+package pt.tecnico.distledger.loadtest;
+
+import io.grpc.Status;
+import org.HdrHistogram.Histogram;
+import pt.tecnico.distledger.userclient.grpc.UserService;
+import pt.tecnico.distledger.userclient.grpc.UserSession;
+import pt.ulisboa.tecnico.distledger.contract.user.UserDistLedger.BatchOperation;
+import pt.tecnico.distledger.utils.VectorClock;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LoadTestMain {
+    private static final String SERVICE = "DistLedger";
+    private static final String NS_HOST = "localhost";
+    private static final int NS_PORT = 5001;
+    private static final String BROKER = "broker";
+    private static final long BROKER_BALANCE = 1000;
+    private static final int SETUP_BATCH_SIZE = 1000;
+    private static final long SETUP_TIMEOUT = 60000;
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    private static final int DEFAULT_REPLICAS = 3;
+    private static final int DEFAULT_CLIENTS = 64;
+    private static final long DEFAULT_DURATION = 30;
+    private static final long DEFAULT_WARMUP = 5;
+    private static final int DEFAULT_ACCOUNTS = 1000;
+    private static final String DEFAULT_MIX = "create:5,transfer:45,balance:50";
+    private static final int DEFAULT_PORT = 2001;
+    private static final long DEFAULT_LAG_INTERVAL = 500;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println(LoadTestMain.class.getSimpleName());
+
+        int replicas = Integer.getInteger("replicas", DEFAULT_REPLICAS);
+        int clients = Integer.getInteger("clients", DEFAULT_CLIENTS);
+        long duration = Long.getLong("duration", DEFAULT_DURATION);
+        long warmup = Long.getLong("warmup", DEFAULT_WARMUP);
+        int accounts = Integer.getInteger("accounts", DEFAULT_ACCOUNTS);
+        OperationMix mix = new OperationMix(System.getProperty("mix", DEFAULT_MIX));
+        boolean local = !"external".equals(System.getProperty("cluster", "local"));
+        Path logDir = Paths.get(System.getProperty("log.dir", "loadtest-logs"));
+        Path lagOutput = Paths.get(System.getProperty("lag.output", logDir.resolve("lag.csv").toString()));
+        // names are unique per run, so the load can be run again against the same cluster
+        String prefix = "load-" + Long.toString(System.currentTimeMillis(), 36) + "-";
+
+        System.out.printf("%d replicas, %d clients, %d accounts, mix %s, %d s warmup, %d s measured%n",
+                replicas, clients, accounts, mix, warmup, duration);
+
+        LocalCluster cluster = null;
+        if (local) {
+            cluster = new LocalCluster(replicas, Integer.getInteger("port", DEFAULT_PORT), serverOptions(), logDir);
+            cluster.start();
+            System.out.println("Local cluster started, replica logs in " + logDir);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+        try (UserService userService = new UserService(SERVICE, NS_HOST, NS_PORT)) {
+            String[] names = createAccounts(userService, replicas, accounts, prefix);
+
+            LoadGenerator generator = new LoadGenerator(userService, replicas, names, prefix, mix, executor);
+            LagProbe probe = new LagProbe(userService, replicas, prefix, Long.getLong("lag.interval",
+                    DEFAULT_LAG_INTERVAL), System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(warmup));
+            Thread probeThread = new Thread(probe, "lag-probe");
+            generator.start(clients);
+            probeThread.start();
+            Thread.sleep(TimeUnit.SECONDS.toMillis(warmup));
+            generator.startMeasuring();
+            for (OperationMix.Type type : OperationMix.Type.values()) {
+                generator.intervalHistogram(type);
+            }
+
+            Map<OperationMix.Type, Histogram> totals = new EnumMap<>(OperationMix.Type.class);
+            for (OperationMix.Type type : OperationMix.Type.values()) {
+                totals.put(type, new Histogram(3));
+            }
+            long start = System.nanoTime();
+            for (long second = 1; second <= duration; second++) {
+                Thread.sleep(Math.max(0, start + TimeUnit.SECONDS.toNanos(second) - System.nanoTime()) / 1000000);
+                if (second == duration) {
+                    // the outcomes must count the same operations as the latencies
+                    generator.stopMeasuring();
+                }
+                StringBuilder line = new StringBuilder(String.format("[%4ds]", second));
+                for (OperationMix.Type type : OperationMix.Type.values()) {
+                    Histogram interval = generator.intervalHistogram(type);
+                    totals.get(type).add(interval);
+                    line.append(String.format(" %s %6d/s p99 %7.2f ms |", type.getLabel(),
+                            interval.getTotalCount(), interval.getValueAtPercentile(99) / 1000.0));
+                }
+                line.append(" lag").append(latestLag(probe.getSamples(), replicas));
+                System.out.println(line);
+            }
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            generator.stop();
+            probe.stop();
+            probeThread.interrupt();
+            probeThread.join();
+
+            printSummary(generator, totals, elapsed);
+            printLag(probe.getSamples(), lagOutput);
+        } finally {
+            executor.shutdownNow();
+            if (cluster != null) {
+                cluster.close();
+            }
+        }
+    }
+
+    // JVM options for the replicas, -Dreplication picks how they replicate
+    private static List<String> serverOptions() {
+        List<String> options = new ArrayList<>();
+        options.add("-Dreplication=" + System.getProperty("replication", "stream"));
+        String extra = System.getProperty("server.opts", "").trim();
+        if (!extra.isEmpty()) {
+            options.addAll(Arrays.asList(extra.split("\\s+")));
+        }
+        return options;
+    }
+
+    // Creates the accounts on the first replica, shares the broker's money among them and
+    // waits until every replica has them
+    private static String[] createAccounts(UserService userService, int replicas, int accounts, String prefix)
+            throws InterruptedException {
+        UserSession session = new UserSession(userService);
+        String server = LocalCluster.qualifier(0);
+        String[] names = new String[accounts];
+        List<BatchOperation> batch = new ArrayList<>();
+        for (int i = 0; i < accounts; i++) {
+            names[i] = prefix + i;
+            batch.add(UserService.createAccountOperation(names[i]));
+            if (batch.size() == SETUP_BATCH_SIZE || i == accounts - 1) {
+                session.submitBatch(server, batch).join();
+                batch.clear();
+            }
+        }
+        int funded = (int) Math.min(accounts, BROKER_BALANCE);
+        int amount = (int) (BROKER_BALANCE / funded);
+        for (int i = 0; i < funded; i++) {
+            batch.add(UserService.transferToOperation(BROKER, names[i], amount));
+        }
+        session.submitBatch(server, batch).join();
+        System.out.printf("Created %d accounts, %d of them with %d each%n", accounts, funded, amount);
+
+        VectorClock setupTS = session.getPrevTS();
+        long deadline = System.currentTimeMillis() + SETUP_TIMEOUT;
+        for (int replica = 1; replica < replicas; replica++) {
+            while (true) {
+                try {
+                    // the balance call fails until the replica caught up with the setup
+                    userService.balanceAsync(LocalCluster.qualifier(replica), names[accounts - 1], setupTS).join();
+                    break;
+                } catch (Exception e) {
+                    if (System.currentTimeMillis() > deadline) {
+                        throw new IllegalStateException("Replica " + LocalCluster.qualifier(replica)
+                                + " did not receive the accounts in " + SETUP_TIMEOUT + " ms");
+                    }
+                    Thread.sleep(50);
+                }
+            }
+        }
+        return names;
+    }
+
+    private static String latestLag(List<LagProbe.Sample> samples, int replicas) {
+        StringBuilder lag = new StringBuilder();
+        for (int replica = 1; replica < replicas; replica++) {
+            String name = LocalCluster.qualifier(replica);
+            long latest = -1;
+            for (LagProbe.Sample sample : samples) {
+                if (sample.replica.equals(name)) {
+                    latest = sample.lagMillis;
+                }
+            }
+            lag.append(' ').append(name).append(' ').append(latest < 0 ? "-" : latest + " ms");
+        }
+        return lag.toString();
+    }
+
+    private static void printSummary(LoadGenerator generator, Map<OperationMix.Type, Histogram> totals,
+            double elapsed) {
+        System.out.println();
+        System.out.printf("%-9s %10s %10s %9s %9s %9s %9s %9s  %s%n", "operation", "count", "ops/s",
+                "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms", "outcomes");
+        long all = 0;
+        for (OperationMix.Type type : OperationMix.Type.values()) {
+            Histogram histogram = totals.get(type);
+            all += histogram.getTotalCount();
+            StringBuilder line = new StringBuilder(String.format("%-9s %10d %10.0f", type.getLabel(),
+                    histogram.getTotalCount(), histogram.getTotalCount() / elapsed));
+            for (double percentile : PERCENTILES) {
+                line.append(String.format(" %9.2f", histogram.getValueAtPercentile(percentile) / 1000.0));
+            }
+            line.append(String.format(" %9.2f ", histogram.getMaxValue() / 1000.0));
+            for (Map.Entry<Status.Code, LongAdder> outcome : generator.outcomes(type).entrySet()) {
+                line.append(' ').append(outcome.getKey()).append('=').append(outcome.getValue().sum());
+            }
+            System.out.println(line);
+        }
+        System.out.printf("%-9s %10d %10.0f%n", "total", all, all / elapsed);
+    }
+
+    private static void printLag(List<LagProbe.Sample> samples, Path output) throws IOException {
+        if (samples.isEmpty()) {
+            return;
+        }
+        Histogram lags = new Histogram(3);
+        long timeouts = 0;
+        Files.createDirectories(output.toAbsolutePath().getParent());
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(output))) {
+            writer.println("elapsed_ms,replica,lag_ms");
+            for (LagProbe.Sample sample : samples) {
+                writer.println(sample.elapsedMillis + "," + sample.replica + "," + sample.lagMillis);
+                if (sample.lagMillis < 0) {
+                    timeouts++;
+                } else {
+                    lags.recordValue(sample.lagMillis);
+                }
+            }
+        }
+        System.out.printf("%nReplication lag over %d samples: p50 %d ms, p99 %d ms, max %d ms, %d timed out%n",
+                samples.size(), lags.getValueAtPercentile(50), lags.getValueAtPercentile(99), lags.getMaxValue(),
+                timeouts);
+        System.out.println("Lag curve written to " + output);
+    }
+}
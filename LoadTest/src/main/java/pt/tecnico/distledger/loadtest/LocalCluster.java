@@ -0,0 +1,127 @@
+package pt.tecnico.distledger.loadtest;
+
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import pt.tecnico.distledger.namingserver.domain.NamingServer;
+import pt.tecnico.distledger.namingserver.service.namingServerDistLedgerServiceImpl;
+import pt.tecnico.distledger.utils.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// A naming server running in this JVM and the replicas as local processes on loopback ports,
+// each one started like "mvn exec:java" would, with its output in <logDir>/<qualifier>.log
+public class LocalCluster implements AutoCloseable {
+    private static final String LOCALHOST = "localhost";
+    private static final int NS_PORT = 5001;
+    private static final long STARTUP_TIMEOUT = 30000;
+    private static final String SERVER_MAIN = "pt.tecnico.distledger.server.ServerMain";
+
+    private final int replicas;
+    private final int firstPort;
+    private final List<String> serverOptions;
+    private final Path logDir;
+    private final List<Process> processes = new ArrayList<>();
+    private Server namingServer;
+
+    public LocalCluster(int replicas, int firstPort, List<String> serverOptions, Path logDir) {
+        this.replicas = replicas;
+        this.firstPort = firstPort;
+        this.serverOptions = serverOptions;
+        this.logDir = logDir;
+    }
+
+    // the qualifiers of the replicas: A, B, C...
+    public static String qualifier(int replica) {
+        return String.valueOf((char) ('A' + replica));
+    }
+
+    public void start() throws IOException, InterruptedException {
+        namingServer = ServerBuilder.forPort(NS_PORT)
+                .addService(new namingServerDistLedgerServiceImpl(new NamingServer(replicas)))
+                .build()
+                .start();
+        Logger.log("Naming server started");
+        Files.createDirectories(logDir);
+        for (int i = 0; i < replicas; i++) {
+            // one at a time, so the replicas get the ids of their qualifiers
+            startReplica(i);
+        }
+    }
+
+    private void startReplica(int replica) throws IOException, InterruptedException {
+        int port = firstPort + replica;
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(serverOptions);
+        command.add("-cp");
+        command.add(classPath());
+        command.add(SERVER_MAIN);
+        command.add(String.valueOf(port));
+        command.add(qualifier(replica));
+        File log = logDir.resolve(qualifier(replica) + ".log").toFile();
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start();
+        processes.add(process);
+        awaitPort(port, process);
+        Logger.log("Replica " + qualifier(replica) + " started on port " + port);
+    }
+
+    private static void awaitPort(int port, Process process) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT;
+        while (System.currentTimeMillis() < deadline) {
+            if (!process.isAlive()) {
+                throw new IOException("Replica on port " + port + " exited with " + process.exitValue());
+            }
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(LOCALHOST, port), 100);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IOException("Replica on port " + port + " did not start in " + STARTUP_TIMEOUT + " ms");
+    }
+
+    // under exec:java the project classes are not on java.class.path, only on the class loader
+    private static String classPath() {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        if (!(loader instanceof URLClassLoader)) {
+            return System.getProperty("java.class.path");
+        }
+        List<String> entries = new ArrayList<>();
+        for (URL url : ((URLClassLoader) loader).getURLs()) {
+            try {
+                entries.add(Path.of(url.toURI()).toString());
+            } catch (URISyntaxException e) {
+                entries.add(url.getPath());
+            }
+        }
+        return String.join(File.pathSeparator, entries);
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        // the replicas unregister from the naming server while shutting down, so it stops last
+        for (Process process : processes) {
+            process.destroy();
+        }
+        for (Process process : processes) {
+            if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        }
+        if (namingServer != null) {
+            namingServer.shutdownNow();
+        }
+    }
+}
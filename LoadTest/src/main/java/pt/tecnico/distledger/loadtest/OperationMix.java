@@ -0,0 +1,77 @@
+package pt.tecnico.distledger.loadtest;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+// The share of each operation in the load, given as e.g. "create:5,transfer:45,balance:50"
+public class OperationMix {
+    public enum Type {
+        CREATE("create"),
+        TRANSFER("transfer"),
+        BALANCE("balance");
+
+        private final String label;
+
+        Type(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private final int[] weights = new int[Type.values().length];
+    private final int total;
+
+    public OperationMix(String mix) {
+        int sum = 0;
+        for (String entry : mix.split(",")) {
+            String[] split = entry.trim().split(":");
+            if (split.length != 2) {
+                throw new IllegalArgumentException("Invalid operation mix entry: " + entry);
+            }
+            int weight = Integer.parseInt(split[1].trim());
+            if (weight < 0) {
+                throw new IllegalArgumentException("Negative weight for " + split[0]);
+            }
+            weights[typeOf(split[0].trim()).ordinal()] = weight;
+            sum += weight;
+        }
+        if (sum == 0) {
+            throw new IllegalArgumentException("Operation mix has no operations: " + mix);
+        }
+        this.total = sum;
+    }
+
+    private static Type typeOf(String label) {
+        for (Type type : Type.values()) {
+            if (type.getLabel().equals(label)) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Unknown operation " + label);
+    }
+
+    public Type next() {
+        int pick = ThreadLocalRandom.current().nextInt(total);
+        for (Type type : Type.values()) {
+            pick -= weights[type.ordinal()];
+            if (pick < 0) {
+                return type;
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Type type : Type.values()) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(type.getLabel()).append(':').append(weights[type.ordinal()]);
+        }
+        return builder.toString();
+    }
+}
@@ -25,7 +25,9 @@ public class NamingServerMain {
         final int maxServersPerService = Integer.parseInt(args[0]);
         System.out.println("Max number of servers per service: " + maxServersPerService);
 
-        NamingServer namingServer = new NamingServer(maxServersPerService);
+        // a server that stops sending heartbeats is removed once its lease runs out
+        NamingServer namingServer = new NamingServer(maxServersPerService,
+                Long.getLong("lease.duration", NamingServer.DEFAULT_LEASE_DURATION));
 
         // Create a new server to listen on port
         Server server = ServerBuilder.forPort(namingServerPort)
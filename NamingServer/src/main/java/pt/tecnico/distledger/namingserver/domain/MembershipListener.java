@@ -0,0 +1,9 @@
+package pt.tecnico.distledger.namingserver.domain;
+
+import java.util.List;
+
+// Told about the servers of a watched service whenever they change, called while the naming
+// server is locked, so it must not block
+public interface MembershipListener {
+    void membershipChanged(List<ServerEntry> servers, long version);
+}
@@ -1,23 +1,56 @@
 package pt.tecnico.distledger.namingserver.domain;
 
 import pt.tecnico.distledger.utils.Logger;
+import pt.tecnico.distledger.namingserver.exceptions.HeartbeatFailedException;
 import pt.tecnico.distledger.namingserver.exceptions.RemovalFailedException;
 
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.List;
 import java.util.ArrayList;
 
+// Every registration holds a lease that the server renews with heartbeats. A lease that runs
+// out removes the server as if it had deleted itself, and a server that missed its last
+// heartbeats is reported as suspected until then. Watchers are told when a server becomes
+// suspected and when it recovers, as for any other change of the membership.
 public class NamingServer {
+    public static final long DEFAULT_LEASE_DURATION = 10000;
+    private static final long WHEEL_TICK = 100;
+    private static final int WHEEL_SIZE = 1024;
 
     private Map<String, ServiceEntry> services;
     private final int maxServersPerService;
+    private final long leaseDuration;
+    private final TimerWheel<ServerEntry> leases;
+    private final Map<String, List<MembershipListener>> watchers = new HashMap<>();
+    private long version = 0;
 
     public NamingServer(int maxServersPerService) {
+        this(maxServersPerService, DEFAULT_LEASE_DURATION);
+    }
+
+    public NamingServer(int maxServersPerService, long leaseDuration) {
         Logger.log("Initializing NamingServer");
         this.services = new ConcurrentHashMap<>();
-        Logger.log("NamingServer initialized");
         this.maxServersPerService = maxServersPerService;
+        this.leaseDuration = leaseDuration;
+        this.leases = new TimerWheel<>(WHEEL_TICK, WHEEL_SIZE, this::leaseDue);
+        this.leases.start();
+        Logger.log("NamingServer initialized");
+    }
+
+    public long getLeaseDuration() {
+        return leaseDuration;
+    }
+
+    public boolean isSuspected(ServerEntry server) {
+        return server.isSuspected();
+    }
+
+    // a server is suspected once it missed two heartbeats, a third of the lease each
+    private long suspectedAt(ServerEntry server) {
+        return server.getLeaseExpiresAt() - leaseDuration / 3;
     }
 
     public int getMaxServersofService(String service) {
@@ -26,39 +59,126 @@ public class NamingServer {
 
     public synchronized int register(String service, String host, String qualifier) {
         Logger.log("Register operation: " + service + " " + host + " " + qualifier);
+        ServerEntry server;
         if (services.containsKey(service)) {
             Logger.log("Service already exists");
             ServiceEntry serviceEntry = services.get(service);
-            serviceEntry.addServer(host, qualifier);
+            server = serviceEntry.addServer(host, qualifier);
         } else {
-            addService(service, host, qualifier, maxServersPerService);
+            server = addService(service, host, qualifier, maxServersPerService);
+        }
+        return startLease(server);
+    }
+
+    // a server whose lease ran out registers again with the id it had, failing if it is taken
+    public synchronized int reregister(String service, String host, String qualifier, int id) {
+        Logger.log("Register again operation: " + service + " " + host + " " + qualifier + " " + (id + 1));
+        if (!services.containsKey(service)) {
+            addService(service, maxServersPerService);
         }
-        return (services.get(service).getNumServers() - 1);
+        return startLease(services.get(service).addServer(host, qualifier, id));
+    }
+
+    private int startLease(ServerEntry server) {
+        String service = server.getService();
+        long expiresAt = System.currentTimeMillis() + leaseDuration;
+        server.renewLease(expiresAt);
+        leases.schedule(server, suspectedAt(server));
+        notifyWatchers(service);
+        return server.getId();
+    }
+
+    public synchronized ServerEntry addService(String service, String host, String qualifier,
+            int maxServersPerService) {
+        ServiceEntry serviceEntry = addService(service, maxServersPerService);
+        return serviceEntry.addServer(host, qualifier);
     }
 
-    public synchronized void addService(String service, String host, String qualifier, int maxServersPerService) {
+    private ServiceEntry addService(String service, int maxServersPerService) {
         Logger.log("Adding new service " + service);
         ServiceEntry serviceEntry = new ServiceEntry(service, maxServersPerService);
-        serviceEntry.addServer(host, qualifier);
         services.put(service, serviceEntry);
+        return serviceEntry;
     }
 
-    public synchronized List<String> lookup(String service, String qualifier) {
+    // only moves the deadline, without the naming server lock: the wheel finds the new
+    // deadline when the old one comes due. Only a suspected server takes the lock, to tell
+    // the watchers it recovered.
+    public long heartbeat(String service, String host) {
+        ServiceEntry serviceEntry = services.get(service);
+        ServerEntry server = serviceEntry != null ? serviceEntry.getServer(host) : null;
+        if (server == null) {
+            throw new HeartbeatFailedException(host);
+        }
+        server.renewLease(System.currentTimeMillis() + leaseDuration);
+        if (server.isSuspected()) {
+            recovered(server);
+        }
+        return leaseDuration;
+    }
+
+    private synchronized void recovered(ServerEntry server) {
+        if (!server.isSuspected() || System.currentTimeMillis() >= suspectedAt(server)) {
+            return;
+        }
+        Logger.log("Server " + server.getHost() + " recovered");
+        server.setSuspected(false);
+        notifyWatchers(server.getService());
+    }
+
+    // comes due when the server becomes suspected and then when its lease runs out
+    private synchronized void leaseDue(ServerEntry server) {
+        ServiceEntry serviceEntry = services.get(server.getService());
+        if (serviceEntry == null || serviceEntry.getServer(server.getHost()) != server) {
+            return; // deleted, or registered again with a new lease
+        }
+        long now = System.currentTimeMillis();
+        long expiresAt = server.getLeaseExpiresAt();
+        if (now < suspectedAt(server)) {
+            leases.schedule(server, suspectedAt(server));
+            return;
+        }
+        if (now < expiresAt) {
+            if (!server.isSuspected()) {
+                Logger.log("Server " + server.getHost() + " missed its heartbeats, suspecting it");
+                server.setSuspected(true);
+                notifyWatchers(server.getService());
+            }
+            leases.schedule(server, expiresAt);
+            return;
+        }
+        Logger.log("Lease of " + server.getHost() + " expired, removing it from " + server.getService());
+        serviceEntry.removeServer(server.getHost());
+        notifyWatchers(server.getService());
+    }
+
+    // the servers that are not suspected come first
+    public synchronized List<ServerEntry> lookup(String service, String qualifier) {
         Logger.log("Lookup operation: " + service + " " + qualifier);
         if (services.containsKey(service)) {
             ServiceEntry serviceEntry = services.get(service);
-            return serviceEntry.lookupServer(qualifier);
+            return liveFirst(serviceEntry.lookupServer(qualifier));
         }
-        return new ArrayList<String>();
+        return new ArrayList<ServerEntry>();
     }
 
-    public synchronized List<String> lookup(String service) {
+    public synchronized List<ServerEntry> lookup(String service) {
         Logger.log("Lookup operation: " + service);
         if (services.containsKey(service)) {
             ServiceEntry serviceEntry = services.get(service);
-            return serviceEntry.lookupServer();
+            return liveFirst(serviceEntry.lookupServer());
         }
-        return new ArrayList<String>();
+        return new ArrayList<ServerEntry>();
+    }
+
+    private List<ServerEntry> liveFirst(List<ServerEntry> servers) {
+        List<ServerEntry> ordered = new ArrayList<ServerEntry>(servers.size());
+        List<ServerEntry> suspected = new ArrayList<ServerEntry>();
+        for (ServerEntry server : servers) {
+            (isSuspected(server) ? suspected : ordered).add(server);
+        }
+        ordered.addAll(suspected);
+        return ordered;
     }
 
     public synchronized void delete(String service, String host) {
@@ -66,8 +186,41 @@ public class NamingServer {
         if (services.containsKey(service)) {
             ServiceEntry serviceEntry = services.get(service);
             serviceEntry.removeServer(host);
+            notifyWatchers(service);
         } else {
             throw new RemovalFailedException(service);
         }
     }
+
+    // the listener gets the current servers right away and then every change
+    public synchronized void watch(String service, MembershipListener listener) {
+        Logger.log("Watch operation: " + service);
+        watchers.computeIfAbsent(service, s -> new ArrayList<>()).add(listener);
+        listener.membershipChanged(servers(service), version);
+    }
+
+    public synchronized void unwatch(String service, MembershipListener listener) {
+        List<MembershipListener> listeners = watchers.get(service);
+        if (listeners != null) {
+            listeners.remove(listener);
+        }
+    }
+
+    private List<ServerEntry> servers(String service) {
+        ServiceEntry serviceEntry = services.get(service);
+        return serviceEntry != null ? serviceEntry.getServers() : new ArrayList<ServerEntry>();
+    }
+
+    private void notifyWatchers(String service) {
+        version++;
+        List<MembershipListener> listeners = watchers.get(service);
+        if (listeners == null || listeners.isEmpty()) {
+            return;
+        }
+        List<ServerEntry> servers = servers(service);
+        Logger.log("Notifying " + listeners.size() + " watchers of " + service);
+        for (MembershipListener listener : listeners) {
+            listener.membershipChanged(servers, version);
+        }
+    }
 }
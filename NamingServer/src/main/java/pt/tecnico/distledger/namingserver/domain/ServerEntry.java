@@ -1,12 +1,28 @@
 package pt.tecnico.distledger.namingserver.domain;
 
 public class ServerEntry {
+    private String service;
     private String host;
     private String qualifier;
+    private int id;
+    // renewed by the heartbeats of the server, read without locking by lookups and the wheel
+    private volatile long leaseExpiresAt;
+    // as last reported to the watchers, changed under the naming server lock
+    private volatile boolean suspected;
 
-    public ServerEntry(String host, String qualifier) {
+    public ServerEntry(String service, String host, String qualifier, int id) {
+        this.service = service;
         this.host = host;
         this.qualifier = qualifier;
+        this.id = id;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getService() {
+        return service;
     }
 
     public String getHost() {
@@ -16,4 +32,20 @@ public class ServerEntry {
     public String getQualifier() {
         return qualifier;
     }
+
+    public long getLeaseExpiresAt() {
+        return leaseExpiresAt;
+    }
+
+    public void renewLease(long expiresAt) {
+        this.leaseExpiresAt = expiresAt;
+    }
+
+    public boolean isSuspected() {
+        return suspected;
+    }
+
+    public void setSuspected(boolean suspected) {
+        this.suspected = suspected;
+    }
 }
@@ -43,29 +43,55 @@ public class ServiceEntry {
         servers.remove(server);
     }
 
-    public synchronized void addServer(String host, String qualifier) {
+    public synchronized ServerEntry addServer(String host, String qualifier) {
         if (this.getServer(host) != null) {
             throw new RegistryFailedException(host);
         }
-        this.addServer(new ServerEntry(host, qualifier));
+        // reuse the lowest free id, so a server that restarts keeps its position in the timestamps
+        int id = 0;
+        while (isIdTaken(id)) {
+            id++;
+        }
+        ServerEntry server = new ServerEntry(service, host, qualifier, id);
+        this.addServer(server);
+        return server;
+    }
+
+    // for a server registering again, which has to keep its id: two servers with the same id
+    // would write to the same entry of the timestamps
+    public synchronized ServerEntry addServer(String host, String qualifier, int id) {
+        if (this.getServer(host) != null) {
+            throw new RegistryFailedException(host);
+        }
+        if (isIdTaken(id)) {
+            throw new RegistryFailedException(host, id);
+        }
+        ServerEntry server = new ServerEntry(service, host, qualifier, id);
+        this.addServer(server);
+        return server;
     }
 
-    public synchronized List<String> lookupServer(String qualifier) {
-        List<String> hosts = new ArrayList<String>();
+    private boolean isIdTaken(int id) {
         for (ServerEntry server : servers) {
-            if (server.getQualifier().equals(qualifier)) {
-                hosts.add(server.getHost());
+            if (server.getId() == id) {
+                return true;
             }
         }
-        return hosts;
+        return false;
     }
 
-    public synchronized List<String> lookupServer() {
-        List<String> hosts = new ArrayList<String>();
+    public synchronized List<ServerEntry> lookupServer(String qualifier) {
+        List<ServerEntry> found = new ArrayList<ServerEntry>();
         for (ServerEntry server : servers) {
-            hosts.add(server.getHost());
+            if (server.getQualifier().equals(qualifier)) {
+                found.add(server);
+            }
         }
-        return hosts;
+        return found;
+    }
+
+    public synchronized List<ServerEntry> lookupServer() {
+        return new ArrayList<ServerEntry>(servers);
     }
 
     public synchronized void removeServer(String host) {
@@ -77,6 +103,10 @@ public class ServiceEntry {
         }
     }
 
+    public synchronized List<ServerEntry> getServers() {
+        return new ArrayList<ServerEntry>(servers);
+    }
+
     public synchronized int getNumServers() {
         return servers.size();
     }
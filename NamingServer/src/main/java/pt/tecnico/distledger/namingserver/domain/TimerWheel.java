@@ -0,0 +1,99 @@
+package pt.tecnico.distledger.namingserver.domain;
+
+import pt.tecnico.distledger.utils.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+// Hashed timer wheel: an item is put in the slot of its deadline, so scheduling is O(1) no
+// matter how many items wait, and every tick only looks at the items of one slot.
+// A deadline further away than a turn of the wheel comes due early; the handler is expected
+// to check the deadline itself and schedule the item again, which is also how a renewed item
+// is moved without searching for it.
+public class TimerWheel<T> implements AutoCloseable {
+    private final long tick;
+    private final List<List<T>> slots;
+    private final Consumer<T> onDue;
+    private final LongSupplier clock;
+    private final ScheduledExecutorService executor;
+    // taken to pick a slot and to empty one, so an item is never put in a slot that is being
+    // processed and then left there for a whole turn
+    private final Object lock = new Object();
+    // index of the next slot to be processed
+    private long cursor;
+
+    public TimerWheel(long tick, int size, Consumer<T> onDue) {
+        this(tick, size, onDue, System::currentTimeMillis);
+    }
+
+    // the clock gives the time in milliseconds, e.g. a fake one that advance is called with
+    TimerWheel(long tick, int size, Consumer<T> onDue, LongSupplier clock) {
+        this.tick = tick;
+        this.onDue = onDue;
+        this.clock = clock;
+        this.slots = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            slots.add(new ArrayList<>());
+        }
+        this.cursor = clock.getAsLong() / tick;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "timer-wheel");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        synchronized (lock) {
+            cursor = clock.getAsLong() / tick;
+        }
+        executor.scheduleAtFixedRate(this::advance, tick, tick, TimeUnit.MILLISECONDS);
+    }
+
+    public void schedule(T item, long deadline) {
+        synchronized (lock) {
+            // a deadline in a slot already processed goes in the next one instead of a turn later
+            slot(Math.max(Math.floorDiv(deadline, tick), cursor)).add(item);
+        }
+    }
+
+    private List<T> slot(long index) {
+        return slots.get((int) (index % slots.size()));
+    }
+
+    void advance() {
+        long now = clock.getAsLong() / tick;
+        while (true) {
+            List<T> due;
+            synchronized (lock) {
+                // a late tick processes the slots it skipped, at most one turn of the wheel
+                long next = Math.max(cursor, now - slots.size() + 1);
+                if (next > now) {
+                    return;
+                }
+                List<T> slot = slot(next);
+                due = new ArrayList<>(slot);
+                slot.clear();
+                cursor = next + 1;
+            }
+            // the handler runs without the lock, so it may schedule again
+            for (T item : due) {
+                try {
+                    onDue.accept(item);
+                } catch (RuntimeException e) {
+                    Logger.log("Timer handler failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
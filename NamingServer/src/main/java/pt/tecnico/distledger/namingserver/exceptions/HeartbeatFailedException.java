@@ -0,0 +1,10 @@
+package pt.tecnico.distledger.namingserver.exceptions;
+
+import pt.tecnico.distledger.utils.Logger;
+
+public class HeartbeatFailedException extends RuntimeException {
+    public HeartbeatFailedException(String host) {
+        super("No lease held by " + host);
+        Logger.log(getMessage());
+    }
+}
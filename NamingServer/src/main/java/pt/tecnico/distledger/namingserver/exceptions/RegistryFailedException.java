@@ -7,4 +7,9 @@ public class RegistryFailedException extends RuntimeException {
         super("Failed to register " + host);
         Logger.log(getMessage());
     }
+
+    public RegistryFailedException(String host, int id) {
+        super("Failed to register " + host + " again, server " + (id + 1) + " is taken");
+        Logger.log(getMessage());
+    }
 }
@@ -1,11 +1,14 @@
 package pt.tecnico.distledger.namingserver.service;
 
 import pt.tecnico.distledger.namingserver.exceptions.*;
+import pt.tecnico.distledger.namingserver.domain.MembershipListener;
 import pt.tecnico.distledger.namingserver.domain.NamingServer;
+import pt.tecnico.distledger.namingserver.domain.ServerEntry;
 import pt.ulisboa.tecnico.distledger.contract.namingserver.NamingServerServiceGrpc;
 import pt.ulisboa.tecnico.distledger.contract.namingserver.NamingServerDistLedger.*;
 
 import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 
 import java.util.List;
@@ -43,8 +46,14 @@ public class namingServerDistLedgerServiceImpl extends NamingServerServiceGrpc.N
             return;
         }
         try {
-            int server_id = namingServer.register(request.getService(), request.getHost(), request.getQualifier());
-            responseObserver.onNext(RegisterResponse.newBuilder().setServerId(server_id).build());
+            int server_id = request.getReregister()
+                    ? namingServer.reregister(request.getService(), request.getHost(), request.getQualifier(),
+                            request.getServerId())
+                    : namingServer.register(request.getService(), request.getHost(), request.getQualifier());
+            responseObserver.onNext(RegisterResponse.newBuilder()
+                    .setServerId(server_id)
+                    .setLeaseDuration(namingServer.getLeaseDuration())
+                    .build());
             responseObserver.onCompleted();
         } catch (RegistryFailedException e) {
             responseObserver.onError(Status.ALREADY_EXISTS.withDescription(e.getMessage()).asRuntimeException());
@@ -61,15 +70,16 @@ public class namingServerDistLedgerServiceImpl extends NamingServerServiceGrpc.N
             return;
         }
         try {
-            List<String> hosts;
+            List<ServerEntry> servers;
             if (request.getQualifier().isEmpty()) {
-                hosts = namingServer.lookup(request.getService());
+                servers = namingServer.lookup(request.getService());
             } else {
-                hosts = namingServer.lookup(request.getService(), request.getQualifier());
+                servers = namingServer.lookup(request.getService(), request.getQualifier());
             }
             LookupResponse.Builder response = LookupResponse.newBuilder();
-            for (String host : hosts) {
-                response.addHosts(host);
+            for (ServerEntry server : servers) {
+                response.addHosts(server.getHost());
+                response.addServers(serverInfo(server));
             }
             responseObserver.onNext(response.build());
             responseObserver.onCompleted();
@@ -78,6 +88,63 @@ public class namingServerDistLedgerServiceImpl extends NamingServerServiceGrpc.N
         }
     }
 
+    @Override
+    public void watch(WatchRequest request, StreamObserver<MembershipEvent> responseObserver) {
+        if (request.getService().isEmpty()) {
+            responseObserver.onError(
+                    Status.INVALID_ARGUMENT.withDescription(INVALID_ARGUMENT_MESSAGE).asRuntimeException());
+            return;
+        }
+        ServerCallStreamObserver<MembershipEvent> observer =
+                (ServerCallStreamObserver<MembershipEvent>) responseObserver;
+        // the stream stays open until the watcher cancels it, the events are small enough
+        // to be buffered by gRPC when the watcher is slow to read them
+        MembershipListener listener = (servers, version) -> {
+            if (observer.isCancelled()) {
+                return;
+            }
+            MembershipEvent.Builder event = MembershipEvent.newBuilder().setVersion(version);
+            for (ServerEntry server : servers) {
+                event.addServers(serverInfo(server));
+            }
+            observer.onNext(event.build());
+        };
+        observer.setOnCancelHandler(() -> namingServer.unwatch(request.getService(), listener));
+        try {
+            namingServer.watch(request.getService(), listener);
+        } catch (Exception e) {
+            namingServer.unwatch(request.getService(), listener);
+            responseObserver.onError(Status.UNKNOWN.withDescription(DEFAULT_ERROR_MESSAGE).asRuntimeException());
+        }
+    }
+
+    @Override
+    public void heartbeat(HeartbeatRequest request, StreamObserver<HeartbeatResponse> responseObserver) {
+        if (request.getService().isEmpty() || request.getHost().isEmpty()) {
+            responseObserver.onError(
+                    Status.INVALID_ARGUMENT.withDescription(INVALID_ARGUMENT_MESSAGE).asRuntimeException());
+            return;
+        }
+        try {
+            long leaseDuration = namingServer.heartbeat(request.getService(), request.getHost());
+            responseObserver.onNext(HeartbeatResponse.newBuilder().setLeaseDuration(leaseDuration).build());
+            responseObserver.onCompleted();
+        } catch (HeartbeatFailedException e) {
+            // the lease ran out, the server has to register again
+            responseObserver.onError(Status.NOT_FOUND.withDescription(e.getMessage()).asRuntimeException());
+        } catch (Exception e) {
+            responseObserver.onError(Status.UNKNOWN.withDescription(DEFAULT_ERROR_MESSAGE).asRuntimeException());
+        }
+    }
+
+    private ServerInfo serverInfo(ServerEntry server) {
+        return ServerInfo.newBuilder()
+                .setHost(server.getHost())
+                .setQualifier(server.getQualifier())
+                .setSuspected(namingServer.isSuspected(server))
+                .build();
+    }
+
     @Override
     public void deleteServer(DeleteRequest request, StreamObserver<DeleteResponse> responseObserver) {
         if (request.getService().isEmpty() || request.getHost().isEmpty()) {
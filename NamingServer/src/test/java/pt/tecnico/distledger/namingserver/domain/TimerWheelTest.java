@@ -0,0 +1,131 @@
+package pt.tecnico.distledger.namingserver.domain;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// the wheel is driven by hand with a fake clock, it is never started
+public class TimerWheelTest {
+    private static final long TICK = 100;
+    private static final int SIZE = 8;
+
+    private final AtomicLong now = new AtomicLong(10_000);
+    private final List<String> due = new ArrayList<>();
+    private TimerWheel<String> wheel;
+
+    private TimerWheel<String> wheel(Consumer<String> onDue) {
+        wheel = new TimerWheel<>(TICK, SIZE, onDue, now::get);
+        return wheel;
+    }
+
+    private void advanceTo(long time) {
+        now.set(time);
+        wheel.advance();
+    }
+
+    @AfterEach
+    public void close() {
+        wheel.close();
+    }
+
+    @Test
+    public void itemComesDueInTheTickOfItsDeadline() {
+        wheel(due::add).schedule("a", 10_250);
+        advanceTo(10_100);
+        assertTrue(due.isEmpty());
+        // the tick that starts at 10 200 covers the deadline
+        advanceTo(10_200);
+        assertEquals(List.of("a"), due);
+        advanceTo(10_300);
+        assertEquals(List.of("a"), due);
+    }
+
+    @Test
+    public void pastDeadlineComesDueInTheNextTick() {
+        wheel(due::add);
+        advanceTo(10_500);
+        wheel.schedule("late", 10_000);
+        assertTrue(due.isEmpty());
+        advanceTo(10_600);
+        assertEquals(List.of("late"), due);
+    }
+
+    @Test
+    public void lateTickProcessesTheSlotsItSkipped() {
+        wheel(due::add).schedule("a", 10_100);
+        wheel.schedule("b", 10_300);
+        advanceTo(10_400);
+        assertEquals(List.of("a", "b"), due);
+    }
+
+    @Test
+    public void deadlineBeyondATurnWrapsAroundAndComesDueEarly() {
+        // one turn is SIZE * TICK = 800 ms, so 10 000 + 900 lands in the slot of 10 100
+        wheel(due::add).schedule("far", 10_900);
+        advanceTo(10_100);
+        assertEquals(List.of("far"), due);
+    }
+
+    @Test
+    public void handlerCanRescheduleAcrossTurns() {
+        long deadline = 12_000;
+        List<Long> seen = new ArrayList<>();
+        wheel(item -> {
+            seen.add(now.get());
+            if (now.get() < deadline) {
+                wheel.schedule(item, deadline);
+            } else {
+                due.add(item);
+            }
+        }).schedule("far", deadline);
+        for (long time = 10_100; time <= 12_000; time += TICK) {
+            advanceTo(time);
+        }
+        assertEquals(List.of("far"), due);
+        // it comes due in its slot once every turn until the deadline
+        assertEquals(List.of(10_400L, 11_200L, 12_000L), seen);
+    }
+
+    @Test
+    public void itemScheduledFromTheHandlerForNowIsNotLostForATurn() {
+        wheel(item -> {
+            if (item.equals("first")) {
+                // the slot of now is being processed, the item goes in the next one
+                wheel.schedule("second", now.get());
+            }
+            due.add(item);
+        }).schedule("first", 10_100);
+        advanceTo(10_100);
+        assertEquals(List.of("first"), due);
+        advanceTo(10_200);
+        assertEquals(List.of("first", "second"), due);
+    }
+
+    @Test
+    public void concurrentSchedulesAreNeverLost() throws InterruptedException {
+        List<String> fired = Collections.synchronizedList(new ArrayList<>());
+        wheel(fired::add);
+        int items = 10_000;
+        Thread scheduler = new Thread(() -> {
+            for (int i = 0; i < items; i++) {
+                // always due in the slot that is about to be processed
+                wheel.schedule("item-" + i, now.get());
+            }
+        });
+        scheduler.start();
+        while (scheduler.isAlive()) {
+            advanceTo(now.get() + TICK);
+        }
+        scheduler.join();
+        // everything scheduled before the last tick is due by the one after it
+        advanceTo(now.get() + TICK);
+        assertEquals(items, fired.size());
+    }
+}
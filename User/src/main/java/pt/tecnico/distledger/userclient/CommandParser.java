@@ -1,12 +1,14 @@
 package pt.tecnico.distledger.userclient;
 
 import pt.tecnico.distledger.userclient.grpc.UserService;
+import pt.tecnico.distledger.userclient.grpc.UserSession;
 import pt.ulisboa.tecnico.distledger.contract.user.UserDistLedger.*;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import pt.tecnico.distledger.utils.Logger;
+import pt.tecnico.distledger.utils.VectorClock;
 
 public class CommandParser {
 
@@ -15,17 +17,20 @@ public class CommandParser {
     private static final String DELETE_ACCOUNT = "deleteAccount";
     private static final String TRANSFER_TO = "transferTo";
     private static final String BALANCE = "balance";
+    private static final String ANY = "any";
+    private static final String OPERATIONS_SUFFIX = "ops";
+    private static final String MILLIS_SUFFIX = "ms";
+    private static final int NO_LIMIT = -1;
     private static final String HELP = "help";
     private static final String EXIT = "exit";
 
     private final UserService userService;
-    private List<Integer> prevTS = new ArrayList<>();
+    // keeps the TS of the answers seen so far and sends it with every request
+    private final UserSession session;
 
     public CommandParser(UserService userService) {
         this.userService = userService;
-        for (int i = 0; i < userService.getMaxServers(); i++) {
-            prevTS.add(0);
-        }
+        this.session = new UserSession(userService);
     }
 
     void parseInput() {
@@ -89,11 +94,10 @@ public class CommandParser {
         String username = split[2];
 
         Logger.log("Creating account for user \'" + username + "\' on server " + server + "...");
-        Logger.log("user TS is: " + this.prevTS);
-        List<Integer> tempTS = userService.createAccount(server, username, prevTS).getTSList();
-        Logger.log("received TS is: " + tempTS);
-        updateTS(tempTS);
-        Logger.log("At the end, user TS is: " + this.prevTS);
+        Logger.log("user TS is: " + session.getPrevTS());
+        CreateAccountResponse response = await(session.createAccount(server, username));
+        Logger.log("received TS is: " + VectorClock.from(response.getTSCount(), response::getTS));
+        Logger.log("At the end, user TS is: " + session.getPrevTS());
         System.out.println("OK\n");
         Logger.log("Account created for user \'" + username + "\'");
     }
@@ -117,22 +121,28 @@ public class CommandParser {
     private void balance(String line) {
         String[] split = line.split(SPACE);
 
-        if (split.length != 3) {
+        if (split.length < 3) {
             this.printUsage();
             return;
         }
         String server = split[1];
         String username = split[2];
+        Staleness staleness = null;
+        if (split.length > 3) {
+            staleness = parseStaleness(split);
+            if (staleness == null) {
+                this.printUsage();
+                return;
+            }
+        }
 
         Logger.log("Getting balance for user \'" + username + "\' on server " + server + "...");
-        Logger.log("user TS is: " + this.prevTS);
-
-        BalanceResponse response = userService.balance(server, username, prevTS);
-        int balance = response.getValue();
-        List<Integer> tempTS = response.getValueTSList();
-        Logger.log("received TS is: " + tempTS);
-        updateTS(tempTS);
-        Logger.log("At the end, user TS is: " + this.prevTS);
+        Logger.log("user TS is: " + session.getPrevTS());
+
+        BalanceResponse response = await(session.balance(server, username, staleness));
+        long balance = response.getValue();
+        Logger.log("received TS is: " + VectorClock.from(response.getValueTSCount(), response::getValueTS));
+        Logger.log("At the end, user TS is: " + session.getPrevTS());
         System.out.println("OK");
         if (balance > 0) {
             Logger.log("Balance for user \'" + username + "\' is:");
@@ -141,6 +151,38 @@ public class CommandParser {
         System.out.println();
     }
 
+    // the bound after the username: any, <n>ops, <t>ms or both limits, null if it is invalid;
+    // a limit that is not given is sent as negative, no limit
+    private static Staleness parseStaleness(String[] split) {
+        Staleness.Builder staleness = Staleness.newBuilder().setMaxOperations(NO_LIMIT).setMaxMillis(NO_LIMIT);
+        for (int i = 3; i < split.length; i++) {
+            String bound = split[i];
+            try {
+                if (bound.equals(ANY) && split.length == 4) {
+                    continue;
+                } else if (bound.endsWith(OPERATIONS_SUFFIX)) {
+                    int maxOperations = Integer.parseInt(
+                            bound.substring(0, bound.length() - OPERATIONS_SUFFIX.length()));
+                    if (maxOperations < 0) {
+                        return null;
+                    }
+                    staleness.setMaxOperations(maxOperations);
+                } else if (bound.endsWith(MILLIS_SUFFIX)) {
+                    long maxMillis = Long.parseLong(bound.substring(0, bound.length() - MILLIS_SUFFIX.length()));
+                    if (maxMillis < 0) {
+                        return null;
+                    }
+                    staleness.setMaxMillis(maxMillis);
+                } else {
+                    return null;
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return staleness.build();
+    }
+
     private void transferTo(String line) {
         String[] split = line.split(SPACE);
 
@@ -154,20 +196,23 @@ public class CommandParser {
         Integer amount = Integer.valueOf(split[4]);
 
         Logger.log("Transferring " + amount + " from user \'" + from + "\' to user \'" + dest + "\'");
-        Logger.log("user TS is: " + this.prevTS);
+        Logger.log("user TS is: " + session.getPrevTS());
 
-        List<Integer> tempTS = userService.transferTo(server, from, dest, amount, prevTS).getTSList();
-        Logger.log("received TS is: " + tempTS);
-        updateTS(tempTS);
-        Logger.log("At the end, user TS is: " + this.prevTS);
+        TransferToResponse response = await(session.transferTo(server, from, dest, amount));
+        Logger.log("received TS is: " + VectorClock.from(response.getTSCount(), response::getTS));
+        Logger.log("At the end, user TS is: " + session.getPrevTS());
         System.out.println("OK\n");
     }
 
-    private void updateTS(List<Integer> tempTS) {
-        for (int i = 0; i < tempTS.size(); i++) {
-            if (tempTS.get(i) > prevTS.get(i)) {
-                prevTS.set(i, tempTS.get(i));
+    // waits for the answer, failing with the error of the call itself
+    private static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
             }
+            throw e;
         }
     }
 
@@ -175,7 +220,7 @@ public class CommandParser {
         System.out.println("Usage:\n" +
                 "- createAccount <server> <username>\n" +
                 "- deleteAccount <server> <username>\n" +
-                "- balance <server> <username>\n" +
+                "- balance <server> <username> [any | [<n>ops] [<t>ms]]\n" +
                 "- transferTo <server> <username_from> <username_to> <amount>\n" +
                 "- exit\n");
     }
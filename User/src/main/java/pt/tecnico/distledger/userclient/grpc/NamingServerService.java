@@ -2,32 +2,130 @@ package pt.tecnico.distledger.userclient.grpc;
 
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import io.grpc.stub.StreamObserver;
 import pt.ulisboa.tecnico.distledger.contract.namingserver.NamingServerServiceGrpc;
 import pt.ulisboa.tecnico.distledger.contract.namingserver.NamingServerDistLedger.*;
+import pt.tecnico.distledger.utils.Logger;
 
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Lookups are answered from a cache. A watched service is kept up to date by the naming
+// server, which pushes every change of its membership, so its lookups never leave the
+// process. Other lookups, and every lookup while the watch is broken, are cached for ttl
+// milliseconds.
 public class NamingServerService implements AutoCloseable {
+    private static final long WATCH_RETRY_DELAY = 1000;
+
     private final NamingServerServiceGrpc.NamingServerServiceBlockingStub stub;
+    private final NamingServerServiceGrpc.NamingServerServiceStub asyncStub;
     private final ManagedChannel channel;
+    private final long ttl;
+    private final ScheduledExecutorService executor;
+    // latest membership pushed by the naming server for each watched service
+    private final Map<String, List<ServerInfo>> memberships = new ConcurrentHashMap<>();
+    private final Map<String, CachedLookup> lookups = new ConcurrentHashMap<>();
+    private volatile boolean shutdown;
+
+    private static class CachedLookup {
+        private final LookupResponse response;
+        private final long expiresAt;
 
-    public NamingServerService(String host, int port) {
+        private CachedLookup(LookupResponse response, long expiresAt) {
+            this.response = response;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    public NamingServerService(String host, int port, long ttl) {
         channel = ManagedChannelBuilder.forAddress(host, port).usePlaintext().build();
         stub = NamingServerServiceGrpc.newBlockingStub(channel);
+        asyncStub = NamingServerServiceGrpc.newStub(channel);
+        this.ttl = ttl;
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "naming-watch");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     public MaxServersResponse maxServer(String service) {
         MaxServersRequest request = MaxServersRequest.newBuilder().setService(service).build();
-        MaxServersResponse response = stub.maxServers(request);
-        return response;
+        return stub.maxServers(request);
     }
 
     public LookupResponse lookup(String service, String qualifier) {
+        List<ServerInfo> servers = memberships.get(service);
+        if (servers != null) {
+            // as the naming server does, the servers suspected when the membership was pushed come last
+            LookupResponse.Builder response = LookupResponse.newBuilder();
+            for (boolean suspected : new boolean[] {false, true}) {
+                for (ServerInfo server : servers) {
+                    if (server.getSuspected() == suspected
+                            && (qualifier.isEmpty() || server.getQualifier().equals(qualifier))) {
+                        response.addHosts(server.getHost());
+                        response.addServers(server);
+                    }
+                }
+            }
+            return response.build();
+        }
+        String key = service + "/" + qualifier;
+        CachedLookup cached = lookups.get(key);
+        if (cached != null && System.currentTimeMillis() < cached.expiresAt) {
+            return cached.response;
+        }
         LookupRequest request = LookupRequest.newBuilder().setService(service).setQualifier(qualifier).build();
         LookupResponse response = stub.lookup(request);
+        lookups.put(key, new CachedLookup(response, System.currentTimeMillis() + ttl));
         return response;
     }
 
+    // keeps the membership of the service pushed by the naming server; a broken watch is
+    // opened again after a delay, the lookups fall back to the ttl cache in the meantime
+    public void watch(String service) {
+        if (shutdown) {
+            return;
+        }
+        WatchRequest request = WatchRequest.newBuilder().setService(service).build();
+        asyncStub.watch(request, new StreamObserver<MembershipEvent>() {
+            @Override
+            public void onNext(MembershipEvent event) {
+                Logger.debug("Membership of {} is now {} servers (version {})", service, event.getServersCount(),
+                        event.getVersion());
+                memberships.put(service, event.getServersList());
+                lookups.keySet().removeIf(key -> key.startsWith(service + "/"));
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                rewatch(service, t.getMessage());
+            }
+
+            @Override
+            public void onCompleted() {
+                rewatch(service, "closed by the naming server");
+            }
+        });
+    }
+
+    private void rewatch(String service, String reason) {
+        memberships.remove(service);
+        if (shutdown) {
+            return;
+        }
+        Logger.debug("Watch of {} failed: {}", service, reason);
+        executor.schedule(() -> watch(service), WATCH_RETRY_DELAY, TimeUnit.MILLISECONDS);
+    }
+
     @Override
     public void close() {
+        shutdown = true;
+        executor.shutdownNow();
         channel.shutdown();
     }
 }
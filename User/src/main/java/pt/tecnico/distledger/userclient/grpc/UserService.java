@@ -2,97 +2,244 @@ package pt.tecnico.distledger.userclient.grpc;
 
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
 import pt.ulisboa.tecnico.distledger.contract.user.UserDistLedger.*;
 import pt.ulisboa.tecnico.distledger.contract.user.UserServiceGrpc;
 import pt.ulisboa.tecnico.distledger.contract.namingserver.NamingServerDistLedger.*;
+import pt.tecnico.distledger.utils.VectorClock;
 
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
 
+// Safe to share between threads. There is one channel per server, and the calls of all
+// threads are multiplexed on it, so the async calls can keep many requests in flight.
 public class UserService implements AutoCloseable {
+    private static final long DEFAULT_NAMING_TTL = 30000;
 
     private final String service;
     private final NamingServerService namingServerService;
     private final Map<String, ManagedChannel> serverChannels;
     private final Map<String, UserServiceGrpc.UserServiceBlockingStub> serverStubs;
+    private final Map<String, UserServiceGrpc.UserServiceStub> serverAsyncStubs;
     private final int MAX_SERVERS;
 
     public UserService(String service, String ns_host, int ns_port) {
         this.service = service;
-        this.namingServerService = new NamingServerService(ns_host, ns_port);
+        this.namingServerService = new NamingServerService(ns_host, ns_port,
+                Long.getLong("naming.ttl", DEFAULT_NAMING_TTL));
         this.MAX_SERVERS = this.namingServerService.maxServer(this.service).getMaxServers();
-        this.serverChannels = new HashMap<>();
-        this.serverStubs = new HashMap<>();
+        // servers are found again without asking the naming server, which pushes every change
+        this.namingServerService.watch(this.service);
+        this.serverChannels = new ConcurrentHashMap<>();
+        this.serverStubs = new ConcurrentHashMap<>();
+        this.serverAsyncStubs = new ConcurrentHashMap<>();
     }
 
     public int getMaxServers() {
         return this.MAX_SERVERS;
     }
 
-    private void cacheStub(String server) {
-        if (this.serverStubs.get(server) != null && this.serverChannels.get(server) != null)
-            return;
-        LookupResponse response = this.namingServerService.lookup(this.service, server);
-        if (response.getHostsCount() == 0)
-            throw new RuntimeException("Server not found");
-        String host = response.getHosts(0);
-        this.serverChannels.put(server, ManagedChannelBuilder.forTarget(host).usePlaintext().build());
-        this.serverStubs.put(server, UserServiceGrpc.newBlockingStub(serverChannels.get(server)));
+    private ManagedChannel getChannel(String server) {
+        return this.serverChannels.computeIfAbsent(server, qualifier -> {
+            LookupResponse response = this.namingServerService.lookup(this.service, qualifier);
+            if (response.getHostsCount() == 0)
+                throw new RuntimeException("Server not found");
+            String host = response.getHosts(0);
+            return ManagedChannelBuilder.forTarget(host).usePlaintext().build();
+        });
+    }
+
+    private UserServiceGrpc.UserServiceBlockingStub getStub(String server) {
+        return this.serverStubs.computeIfAbsent(server,
+                qualifier -> UserServiceGrpc.newBlockingStub(getChannel(qualifier)));
     }
 
-    private void invalidateAndCacheStub(String server) {
-        this.serverChannels.remove(server);
+    private UserServiceGrpc.UserServiceStub getAsyncStub(String server) {
+        return this.serverAsyncStubs.computeIfAbsent(server,
+                qualifier -> UserServiceGrpc.newStub(getChannel(qualifier)));
+    }
+
+    // the server may have moved, the next call looks it up again
+    private void invalidateStub(String server) {
         this.serverStubs.remove(server);
-        cacheStub(server);
+        this.serverAsyncStubs.remove(server);
+        ManagedChannel channel = this.serverChannels.remove(server);
+        if (channel != null) {
+            channel.shutdown();
+        }
     }
 
-    public CreateAccountResponse createAccount(String server, String username, List<Integer> prevTS) {
+    public CreateAccountResponse createAccount(String server, String username, VectorClock prevTS) {
+        CreateAccountRequest request = createAccountRequest(username, prevTS);
         try {
-            cacheStub(server);
-            return this.serverStubs.get(server)
-                    .createAccount(CreateAccountRequest.newBuilder().setUserId(username).addAllPrevTS(prevTS).build());
+            return getStub(server).createAccount(request);
         } catch (Exception e) {
-            invalidateAndCacheStub(server);
-            return this.serverStubs.get(server)
-                    .createAccount(CreateAccountRequest.newBuilder().setUserId(username).addAllPrevTS(prevTS).build());
+            invalidateStub(server);
+            return getStub(server).createAccount(request);
         }
     }
 
     public void deleteAccount(String server, String username) {
+        DeleteAccountRequest request = DeleteAccountRequest.newBuilder().setUserId(username).build();
         try {
-            cacheStub(server);
-            this.serverStubs.get(server).deleteAccount(DeleteAccountRequest.newBuilder().setUserId(username).build());
+            getStub(server).deleteAccount(request);
         } catch (Exception e) {
-            invalidateAndCacheStub(server);
-            this.serverStubs.get(server).deleteAccount(DeleteAccountRequest.newBuilder().setUserId(username).build());
+            invalidateStub(server);
+            getStub(server).deleteAccount(request);
         }
     }
 
-    public BalanceResponse balance(String server, String username, List<Integer> prevTS) {
+    public BalanceResponse balance(String server, String username, VectorClock prevTS) {
+        BalanceRequest request = balanceRequest(username, prevTS, null);
         try {
-            cacheStub(server);
-            return this.serverStubs.get(server)
-                    .balance(BalanceRequest.newBuilder().setUserId(username).addAllPrevTS(prevTS).build());
+            return getStub(server).balance(request);
         } catch (Exception e) {
-            invalidateAndCacheStub(server);
-            return this.serverStubs.get(server)
-                    .balance(BalanceRequest.newBuilder().setUserId(username).addAllPrevTS(prevTS).build());
+            invalidateStub(server);
+            return getStub(server).balance(request);
         }
     }
 
-    public TransferToResponse transferTo(String server, String from, String dest, int amount, List<Integer> prevTS) {
+    public TransferToResponse transferTo(String server, String from, String dest, int amount, VectorClock prevTS) {
+        TransferToRequest request = transferToRequest(from, dest, amount, prevTS);
+        try {
+            return getStub(server).transferTo(request);
+        } catch (Exception e) {
+            invalidateStub(server);
+            return getStub(server).transferTo(request);
+        }
+    }
+
+    // Sends many operations in one call, see the helpers below to build them. Unlike the other
+    // calls a batch is never resent, since the server may have applied part of it already.
+    public SubmitBatchResponse submitBatch(String server, List<BatchOperation> operations, VectorClock prevTS) {
+        SubmitBatchRequest request = submitBatchRequest(operations, prevTS);
+        UserServiceGrpc.UserServiceBlockingStub stub;
+        try {
+            stub = getStub(server);
+        } catch (Exception e) {
+            invalidateStub(server);
+            stub = getStub(server);
+        }
+        return stub.submitBatch(request);
+    }
+
+    public static BatchOperation createAccountOperation(String username) {
+        return BatchOperation.newBuilder()
+                .setCreateAccount(CreateAccountRequest.newBuilder().setUserId(username))
+                .build();
+    }
+
+    public static BatchOperation transferToOperation(String from, String dest, int amount) {
+        return BatchOperation.newBuilder()
+                .setTransferTo(TransferToRequest.newBuilder().setAccountFrom(from).setAccountTo(dest).setAmount(amount))
+                .build();
+    }
+
+    // Async calls: they return at once and the future completes with the response, or with
+    // the StatusRuntimeException of the call. A call is only sent again when the server could
+    // not be reached, on a channel to the server found by a new lookup.
+
+    public CompletableFuture<CreateAccountResponse> createAccountAsync(String server, String username,
+            VectorClock prevTS) {
+        CreateAccountRequest request = createAccountRequest(username, prevTS);
+        return callAsync(server, (stub, observer) -> stub.createAccount(request, observer), true);
+    }
+
+    public CompletableFuture<BalanceResponse> balanceAsync(String server, String username, VectorClock prevTS) {
+        return balanceAsync(server, username, prevTS, null);
+    }
+
+    // with a staleness bound the server may answer from a state that misses operations of
+    // prevTS, null for a causal read
+    public CompletableFuture<BalanceResponse> balanceAsync(String server, String username, VectorClock prevTS,
+            Staleness staleness) {
+        BalanceRequest request = balanceRequest(username, prevTS, staleness);
+        return callAsync(server, (stub, observer) -> stub.balance(request, observer), true);
+    }
+
+    public CompletableFuture<TransferToResponse> transferToAsync(String server, String from, String dest,
+            int amount, VectorClock prevTS) {
+        TransferToRequest request = transferToRequest(from, dest, amount, prevTS);
+        return callAsync(server, (stub, observer) -> stub.transferTo(request, observer), true);
+    }
+
+    public CompletableFuture<SubmitBatchResponse> submitBatchAsync(String server, List<BatchOperation> operations,
+            VectorClock prevTS) {
+        SubmitBatchRequest request = submitBatchRequest(operations, prevTS);
+        return callAsync(server, (stub, observer) -> stub.submitBatch(request, observer), false);
+    }
+
+    private <T> CompletableFuture<T> callAsync(String server,
+            BiConsumer<UserServiceGrpc.UserServiceStub, StreamObserver<T>> call, boolean retry) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        startCall(server, call, result, retry);
+        return result;
+    }
+
+    private <T> void startCall(String server, BiConsumer<UserServiceGrpc.UserServiceStub, StreamObserver<T>> call,
+            CompletableFuture<T> result, boolean retry) {
+        UserServiceGrpc.UserServiceStub stub;
         try {
-            cacheStub(server);
-            return this.serverStubs.get(server).transferTo(
-                    TransferToRequest.newBuilder().setAccountFrom(from).setAccountTo(dest).setAmount(amount)
-                            .addAllPrevTS(prevTS).build());
+            stub = getAsyncStub(server);
         } catch (Exception e) {
-            invalidateAndCacheStub(server);
-            return this.serverStubs.get(server).transferTo(
-                    TransferToRequest.newBuilder().setAccountFrom(from).setAccountTo(dest).setAmount(amount)
-                            .addAllPrevTS(prevTS).build());
+            result.completeExceptionally(e);
+            return;
         }
+        call.accept(stub, new StreamObserver<T>() {
+            private T response;
+
+            @Override
+            public void onNext(T value) {
+                response = value;
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                if (retry && Status.fromThrowable(t).getCode() == Status.Code.UNAVAILABLE) {
+                    invalidateStub(server);
+                    startCall(server, call, result, false);
+                } else {
+                    result.completeExceptionally(t);
+                }
+            }
+
+            @Override
+            public void onCompleted() {
+                result.complete(response);
+            }
+        });
+    }
+
+    private static CreateAccountRequest createAccountRequest(String username, VectorClock prevTS) {
+        CreateAccountRequest.Builder request = CreateAccountRequest.newBuilder().setUserId(username);
+        prevTS.forEach(request::addPrevTS);
+        return request.build();
+    }
+
+    private static BalanceRequest balanceRequest(String username, VectorClock prevTS, Staleness staleness) {
+        BalanceRequest.Builder request = BalanceRequest.newBuilder().setUserId(username);
+        prevTS.forEach(request::addPrevTS);
+        if (staleness != null) {
+            request.setStaleness(staleness);
+        }
+        return request.build();
+    }
+
+    private static TransferToRequest transferToRequest(String from, String dest, int amount, VectorClock prevTS) {
+        TransferToRequest.Builder request = TransferToRequest.newBuilder().setAccountFrom(from).setAccountTo(dest)
+                .setAmount(amount);
+        prevTS.forEach(request::addPrevTS);
+        return request.build();
+    }
+
+    private static SubmitBatchRequest submitBatchRequest(List<BatchOperation> operations, VectorClock prevTS) {
+        SubmitBatchRequest.Builder request = SubmitBatchRequest.newBuilder().addAllOperations(operations);
+        prevTS.forEach(request::addPrevTS);
+        return request.build();
     }
 
     @Override
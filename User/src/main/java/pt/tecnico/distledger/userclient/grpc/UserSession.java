@@ -0,0 +1,68 @@
+package pt.tecnico.distledger.userclient.grpc;
+
+import pt.ulisboa.tecnico.distledger.contract.user.UserDistLedger.*;
+import pt.tecnico.distledger.utils.VectorClock;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+
+// The causal context of one client: every call carries the timestamps of the answers seen so
+// far as its prevTS, and its own answer is merged in when it arrives. Calls of a session can
+// run at the same time from any thread; a call only depends on the answers received before
+// it was sent, so wait for a future before sending a call that must see its effect.
+public class UserSession {
+    private final UserService userService;
+    private final AtomicReference<VectorClock> prevTS;
+
+    public UserSession(UserService userService) {
+        this.userService = userService;
+        this.prevTS = new AtomicReference<>(VectorClock.zero(userService.getMaxServers()));
+    }
+
+    public VectorClock getPrevTS() {
+        return prevTS.get();
+    }
+
+    public CompletableFuture<CreateAccountResponse> createAccount(String server, String username) {
+        return userService.createAccountAsync(server, username, prevTS.get())
+                .thenApply(response -> {
+                    observe(VectorClock.from(response.getTSCount(), response::getTS));
+                    return response;
+                });
+    }
+
+    public CompletableFuture<BalanceResponse> balance(String server, String username) {
+        return balance(server, username, null);
+    }
+
+    // A read with a staleness bound does not wait for every answer seen so far, its valueTS
+    // only covers the state it was read from, so later calls depend on no more than that.
+    public CompletableFuture<BalanceResponse> balance(String server, String username, Staleness staleness) {
+        return userService.balanceAsync(server, username, prevTS.get(), staleness)
+                .thenApply(response -> {
+                    observe(VectorClock.from(response.getValueTSCount(), response::getValueTS));
+                    return response;
+                });
+    }
+
+    public CompletableFuture<TransferToResponse> transferTo(String server, String from, String dest, int amount) {
+        return userService.transferToAsync(server, from, dest, amount, prevTS.get())
+                .thenApply(response -> {
+                    observe(VectorClock.from(response.getTSCount(), response::getTS));
+                    return response;
+                });
+    }
+
+    public CompletableFuture<SubmitBatchResponse> submitBatch(String server, List<BatchOperation> operations) {
+        return userService.submitBatchAsync(server, operations, prevTS.get())
+                .thenApply(response -> {
+                    observe(VectorClock.from(response.getTSCount(), response::getTS));
+                    return response;
+                });
+    }
+
+    private void observe(VectorClock TS) {
+        prevTS.updateAndGet(current -> current.merge(TS));
+    }
+}
@@ -1,12 +1,166 @@
 package pt.tecnico.distledger.utils;
 
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+// Leveled logging to stderr. The level is WARN unless -Ddebug turns on DEBUG or -Dlog.level
+// picks one. A disabled call returns after comparing the level: messages with {} placeholders
+// are only formatted, and suppliers only called, when the level is enabled.
+// Enabled messages are formatted by the caller and put in a bounded buffer that a background
+// thread writes out, so callers never wait for the console. When the buffer is full the
+// message is dropped and counted instead of blocking the caller.
 public final class Logger {
-    private static boolean active = (System.getProperty("debug") != null);
+    public enum Level { OFF, ERROR, WARN, INFO, DEBUG }
+
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+    private static final StackWalker walker = StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE);
+    private static final Level level = configuredLevel();
+    private static final BlockingQueue<String> buffer =
+            new ArrayBlockingQueue<>(Integer.getInteger("log.buffer", DEFAULT_BUFFER_SIZE));
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final PrintStream out = System.err;
+
+    static {
+        if (level != Level.OFF) {
+            Thread writer = new Thread(Logger::writeLoop, "logger");
+            writer.setDaemon(true);
+            writer.start();
+            // whatever is still buffered when the JVM exits is written by the hook
+            Runtime.getRuntime().addShutdownHook(new Thread(Logger::flush, "logger-flush"));
+        }
+    }
+
+    private Logger() {
+    }
+
+    private static Level configuredLevel() {
+        String name = System.getProperty("log.level");
+        if (name != null) {
+            return Level.valueOf(name.trim().toUpperCase());
+        }
+        return System.getProperty("debug") != null ? Level.DEBUG : Level.WARN;
+    }
+
+    public static boolean isEnabled(Level messageLevel) {
+        return messageLevel.compareTo(level) <= 0;
+    }
+
+    // kept for the existing callers, the same as debug
+    public static void log(Object message) {
+        if (isEnabled(Level.DEBUG)) {
+            enqueue(Level.DEBUG, walker.getCallerClass(), String.valueOf(message));
+        }
+    }
+
+    public static void debug(String message) {
+        if (isEnabled(Level.DEBUG)) {
+            enqueue(Level.DEBUG, walker.getCallerClass(), message);
+        }
+    }
+
+    // fixed arities, so a disabled call does not even allocate the varargs array
+    public static void debug(String format, Object arg) {
+        if (isEnabled(Level.DEBUG)) {
+            enqueue(Level.DEBUG, walker.getCallerClass(), format(format, arg));
+        }
+    }
+
+    public static void debug(String format, Object arg1, Object arg2) {
+        if (isEnabled(Level.DEBUG)) {
+            enqueue(Level.DEBUG, walker.getCallerClass(), format(format, arg1, arg2));
+        }
+    }
+
+    public static void debug(String format, Object arg1, Object arg2, Object arg3) {
+        if (isEnabled(Level.DEBUG)) {
+            enqueue(Level.DEBUG, walker.getCallerClass(), format(format, arg1, arg2, arg3));
+        }
+    }
+
+    public static void debug(Supplier<String> message) {
+        if (isEnabled(Level.DEBUG)) {
+            enqueue(Level.DEBUG, walker.getCallerClass(), message.get());
+        }
+    }
+
+    public static void info(String format, Object... args) {
+        if (isEnabled(Level.INFO)) {
+            enqueue(Level.INFO, walker.getCallerClass(), format(format, args));
+        }
+    }
+
+    public static void warn(String format, Object... args) {
+        if (isEnabled(Level.WARN)) {
+            enqueue(Level.WARN, walker.getCallerClass(), format(format, args));
+        }
+    }
+
+    public static void error(String format, Object... args) {
+        if (isEnabled(Level.ERROR)) {
+            enqueue(Level.ERROR, walker.getCallerClass(), format(format, args));
+        }
+    }
 
-    public static void log(Object o) {
-        if (active) {
-            String className[] = Thread.currentThread().getStackTrace()[2].getClassName().split("[.]");
-            System.err.println("[" + className[className.length - 1].toUpperCase() + "]: " + o);
+    // replaces each {} with the next argument
+    static String format(String format, Object... args) {
+        if (args.length == 0) {
+            return format;
+        }
+        StringBuilder builder = new StringBuilder(format.length() + 16 * args.length);
+        int from = 0;
+        for (Object arg : args) {
+            int at = format.indexOf("{}", from);
+            if (at < 0) {
+                break;
+            }
+            builder.append(format, from, at).append(arg);
+            from = at + 2;
+        }
+        return builder.append(format, from, format.length()).toString();
+    }
+
+    private static void enqueue(Level messageLevel, Class<?> caller, String message) {
+        String[] className = caller.getName().split("[.]");
+        String line = "[" + className[className.length - 1].toUpperCase() + "]"
+                + (messageLevel == Level.DEBUG ? "" : " " + messageLevel) + ": " + message;
+        if (!buffer.offer(line)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private static void writeLoop() {
+        List<String> lines = new ArrayList<>();
+        try {
+            while (true) {
+                lines.add(buffer.take());
+                buffer.drainTo(lines);
+                write(lines);
+                lines.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void flush() {
+        List<String> lines = new ArrayList<>();
+        buffer.drainTo(lines);
+        write(lines);
+    }
+
+    private static synchronized void write(List<String> lines) {
+        long lost = dropped.getAndSet(0);
+        if (lost > 0) {
+            out.println("[LOGGER] WARN: " + lost + " messages dropped, the log buffer was full");
+        }
+        for (String line : lines) {
+            out.println(line);
         }
+        out.flush();
     }
 }
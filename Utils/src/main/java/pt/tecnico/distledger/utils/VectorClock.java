@@ -0,0 +1,151 @@
+package pt.tecnico.distledger.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.function.IntUnaryOperator;
+
+// Immutable vector timestamp backed by an int array. Comparisons never allocate and
+// merges only allocate when the result differs from both operands.
+// Entries past the end of a shorter clock are treated as 0.
+public final class VectorClock {
+    private static final VectorClock EMPTY = new VectorClock(new int[0]);
+
+    private final int[] entries;
+
+    private VectorClock(int[] entries) {
+        this.entries = entries;
+    }
+
+    public static VectorClock empty() {
+        return EMPTY;
+    }
+
+    public static VectorClock zero(int size) {
+        return size == 0 ? EMPTY : new VectorClock(new int[size]);
+    }
+
+    public static VectorClock of(int... entries) {
+        return new VectorClock(entries.clone());
+    }
+
+    // reads the entries straight from an indexed getter, e.g. a proto repeated int32 field:
+    // VectorClock.from(request.getPrevTSCount(), request::getPrevTS)
+    public static VectorClock from(int size, IntUnaryOperator entry) {
+        if (size == 0) {
+            return EMPTY;
+        }
+        int[] entries = new int[size];
+        for (int i = 0; i < size; i++) {
+            entries[i] = entry.applyAsInt(i);
+        }
+        return new VectorClock(entries);
+    }
+
+    public static VectorClock fromList(List<Integer> list) {
+        return from(list.size(), list::get);
+    }
+
+    public int size() {
+        return entries.length;
+    }
+
+    public int get(int index) {
+        return index < entries.length ? entries[index] : 0;
+    }
+
+    // true when every entry is greater or equal than the same entry of the other clock
+    public boolean dominates(VectorClock other) {
+        int size = Math.max(entries.length, other.entries.length);
+        for (int i = 0; i < size; i++) {
+            if (get(i) < other.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean concurrentWith(VectorClock other) {
+        return !dominates(other) && !other.dominates(this);
+    }
+
+    // entry-wise maximum
+    public VectorClock merge(VectorClock other) {
+        if (dominates(other)) {
+            return this;
+        }
+        if (other.dominates(this)) {
+            return other;
+        }
+        int[] merged = new int[Math.max(entries.length, other.entries.length)];
+        for (int i = 0; i < merged.length; i++) {
+            merged[i] = Math.max(get(i), other.get(i));
+        }
+        return new VectorClock(merged);
+    }
+
+    // entry-wise minimum
+    public VectorClock meet(VectorClock other) {
+        if (other.dominates(this)) {
+            return this;
+        }
+        if (dominates(other)) {
+            return other;
+        }
+        int[] met = new int[Math.max(entries.length, other.entries.length)];
+        for (int i = 0; i < met.length; i++) {
+            met[i] = Math.min(get(i), other.get(i));
+        }
+        return new VectorClock(met);
+    }
+
+    public VectorClock with(int index, int value) {
+        if (get(index) == value) {
+            return this;
+        }
+        int[] updated = Arrays.copyOf(entries, Math.max(entries.length, index + 1));
+        updated[index] = value;
+        return new VectorClock(updated);
+    }
+
+    public VectorClock increment(int index) {
+        return with(index, get(index) + 1);
+    }
+
+    // hands each entry to the consumer, e.g. builder::addTS, without boxing
+    public void forEach(IntConsumer consumer) {
+        for (int entry : entries) {
+            consumer.accept(entry);
+        }
+    }
+
+    public List<Integer> toList() {
+        List<Integer> list = new ArrayList<>(entries.length);
+        for (int entry : entries) {
+            list.add(entry);
+        }
+        return list;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof VectorClock)) {
+            return false;
+        }
+        return Arrays.equals(entries, ((VectorClock) o).entries);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(entries);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(entries);
+    }
+}
@@ -0,0 +1,86 @@
+package pt.tecnico.distledger.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class VectorClockTest {
+
+    @Test
+    public void missingEntriesAreZero() {
+        VectorClock clock = VectorClock.of(1, 2);
+        assertEquals(0, clock.get(2));
+        assertEquals(0, VectorClock.empty().get(0));
+        assertTrue(clock.dominates(VectorClock.empty()));
+        assertTrue(VectorClock.zero(3).dominates(VectorClock.empty()));
+        assertTrue(VectorClock.empty().dominates(VectorClock.zero(3)));
+    }
+
+    @Test
+    public void overLongClockIsComparedOverItsExtraEntries() {
+        VectorClock longer = VectorClock.of(0, 0, 1);
+        assertFalse(VectorClock.of(5, 5).dominates(longer));
+        assertTrue(longer.dominates(VectorClock.of(0, 0)));
+        // extra entries that are zero change nothing
+        assertTrue(VectorClock.of(1, 1).dominates(VectorClock.of(1, 1, 0)));
+    }
+
+    @Test
+    public void concurrentClocks() {
+        VectorClock a = VectorClock.of(1, 0);
+        VectorClock b = VectorClock.of(0, 1);
+        assertTrue(a.concurrentWith(b));
+        assertFalse(a.concurrentWith(a));
+        assertFalse(a.concurrentWith(VectorClock.of(1, 1)));
+    }
+
+    @Test
+    public void mergeAndMeetAreEntryWise() {
+        VectorClock a = VectorClock.of(3, 0, 2);
+        VectorClock b = VectorClock.of(1, 4);
+        assertEquals(VectorClock.of(3, 4, 2), a.merge(b));
+        assertEquals(VectorClock.of(1, 0, 0), a.meet(b));
+    }
+
+    @Test
+    public void mergeReturnsTheDominatingOperand() {
+        VectorClock a = VectorClock.of(3, 4);
+        VectorClock b = VectorClock.of(1, 4);
+        assertSame(a, a.merge(b));
+        assertSame(a, b.merge(a));
+        assertSame(b, a.meet(b));
+    }
+
+    @Test
+    public void clocksAreImmutable() {
+        int[] entries = {1, 2};
+        VectorClock clock = VectorClock.of(entries);
+        entries[0] = 9;
+        assertEquals(1, clock.get(0));
+
+        VectorClock incremented = clock.increment(1);
+        assertEquals(VectorClock.of(1, 2), clock);
+        assertEquals(VectorClock.of(1, 3), incremented);
+        assertSame(clock, clock.with(0, 1));
+    }
+
+    @Test
+    public void withGrowsTheClock() {
+        assertEquals(VectorClock.of(0, 0, 5), VectorClock.empty().with(2, 5));
+        assertEquals(VectorClock.of(1), VectorClock.empty().increment(0));
+    }
+
+    @Test
+    public void conversions() {
+        VectorClock clock = VectorClock.fromList(List.of(4, 5, 6));
+        assertEquals(VectorClock.of(4, 5, 6), clock);
+        assertEquals(List.of(4, 5, 6), clock.toList());
+        assertEquals(clock, VectorClock.from(3, i -> i + 4));
+        assertSame(VectorClock.empty(), VectorClock.from(0, i -> 1));
+        assertEquals(clock.hashCode(), VectorClock.of(4, 5, 6).hashCode());
+        // equality is by entries, so a trailing zero makes another clock
+        assertNotEquals(VectorClock.of(1), VectorClock.of(1, 0));
+    }
+}